@@ -13,10 +13,13 @@ import org.springframework.jmx.support.MetricType;
 import org.springframework.stereotype.Component;
 
 import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
 import one.xmpp.server.errors.stanza.InternalServerErrorCondition;
 import one.xmpp.server.errors.stanza.XmppStanzaError;
 import one.xmpp.server.errors.stream.BadFormatError;
 import one.xmpp.server.errors.stream.InternalServerError;
+import one.xmpp.server.errors.stream.PolicyViolationError;
+import one.xmpp.server.errors.stream.ResourceConstraintError;
 import one.xmpp.server.errors.stream.SaslNotAuthorizedError;
 import one.xmpp.server.errors.stream.XmppStreamError;
 import one.xmpp.server.network.AbstractServer;
@@ -48,6 +51,37 @@ public abstract class AbstractXmppProxyServer extends AbstractServer {
     @Autowired
     private XmppProxyConfiguration xmppServiceConfiguration;
 
+    @Override
+    protected void closeOverloaded(AbstractSocket socket) {
+        ((AbstractXmppProxySocket) socket).queueCloseWithError(new ResourceConstraintError(), "overload");
+    }
+
+    @Override
+    protected void closeSlowConsumer(AbstractSocket socket) {
+        ((AbstractXmppProxySocket) socket).queueCloseWithError(new PolicyViolationError(), "slow-consumer");
+    }
+
+    /**
+     * @return coalescing key of stanza that can be dropped if client doesn't read fast enough, or
+     *         <tt>null</tt> if stanza shall be delivered. Default implementation treats presence
+     *         broadcasts as droppable: only the latest presence of each contact matters.
+     */
+    @Nullable
+    protected Object getCoalesceKey(XmlElement stanza) {
+        if (!XmppConstants.ELEMENT_CLIENT_PRESENCE.getLocalPart().equals(stanza.getQName().getLocalPart())) {
+            return null;
+        }
+
+        final String type = stanza.getAttributeValue(XmppConstants.ATTRIBUTE_CLIENT_TYPE);
+        if (type != null && !"unavailable".equals(type)) {
+            // subscriptions, probes and errors
+            return null;
+        }
+
+        final String from = stanza.getAttributeValue(XmppConstants.ATTRIBUTE_CLIENT_FROM);
+        return from == null ? null : "presence/" + from;
+    }
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getReceivedStanzas() {
         return receivedStanzas.longValue();
@@ -181,6 +215,7 @@ public abstract class AbstractXmppProxyServer extends AbstractServer {
         @Override
         public void onStanza(XmlElement xmlElement) {
             receivedStanzas.incrementAndGet();
+            onStanzaRead();
 
             final long startTime = System.currentTimeMillis();
             try {
@@ -193,6 +228,7 @@ public abstract class AbstractXmppProxyServer extends AbstractServer {
         @Override
         public void onStreamBegin(XmlElement xmlElement) {
             receivedStanzas.incrementAndGet();
+            onStanzaRead();
             handleStreamBegin(this, xmlElement);
         }
 
@@ -216,11 +252,25 @@ public abstract class AbstractXmppProxyServer extends AbstractServer {
             queue(SocketCloseOperation.INSTANCE);
         }
 
+        /**
+         * Drops queued data and closes stream with specified error
+         */
+        void queueCloseWithError(XmppStreamError error, String reasonCode) {
+            setClosingReasonCode(reasonCode);
+            dropQueuedOperations();
+            error.queueWrite(this);
+            queueGoodbuy();
+        }
+
         public void queueRestart() {
             queue(RestartStreamOperation.INSTANCE);
         }
 
         public void queueWrite(CharSequence data) {
+            queueWrite(data, null);
+        }
+
+        private void queueWrite(CharSequence data, @Nullable Object coalesceKey) {
             assertNotClosed();
             final ByteBuffer encoded;
             try {
@@ -229,9 +279,13 @@ public abstract class AbstractXmppProxyServer extends AbstractServer {
                 logEncodeError(data, exc);
                 throw exc;
             }
-            queueWriteImpl(encoded);
+            queueWriteImpl(encoded, coalesceKey);
         }
 
+        /**
+         * Stanzas with coalescing key (see {@link AbstractXmppProxyServer#getCoalesceKey(XmlElement)})
+         * may be dropped if client doesn't read fast enough
+         */
         public void queueWrite(XmlElement data) {
             final CharSequence xml = data.toXml();
 
@@ -239,7 +293,7 @@ public abstract class AbstractXmppProxyServer extends AbstractServer {
                 log.trace("Adding XML '" + xml + "' to write queue of " + this);
             }
 
-            queueWrite(xml);
+            queueWrite(xml, getCoalesceKey(data));
         }
 
         void restart() {
@@ -5,33 +5,170 @@ import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
 import one.ejb.NotNullByDefault;
+import one.xmpp.server.network.SlowConsumerPolicy;
+import one.xmpp.server.network.StandardSlowConsumerPolicy;
 
 @Component
 @ManagedResource
 @NotNullByDefault
 public class DefaultXmppProxyConfiguration implements XmppProxyConfiguration {
 
+    private static final int DEFAULT_POLLER_QUEUE_CAPACITY = 1 << 16;
+
+    private static final int DEFAULT_READ_BUDGET_BYTES = 256 << 10;
+
+    private static final int DEFAULT_READ_BUDGET_STANZAS = 64;
+
+    private static final int DEFAULT_READ_BUFFER_MAX_SIZE = 64 << 10;
+
+    private static final int DEFAULT_READ_BUFFER_MIN_SIZE = 1 << 10;
+
+    private static final int DEFAULT_READ_PAUSE_OUTBOUND_BYTES = 128 << 10;
+
+    private static final int DEFAULT_READ_PAUSE_STANZAS = 1 << 16;
+
+    private static final int DEFAULT_READ_PAUSE_STANZAS_PER_SOCKET = 128;
+
     private static final int DEFAULT_SOCKET_MAX_WRITE_BYTES = 4048;
 
+    private static final int DEFAULT_SOCKET_OUTBOUND_HIGH_WATERMARK = 256 << 10;
+
+    private static final int DEFAULT_SOCKET_OUTBOUND_LOW_WATERMARK = 64 << 10;
+
+    private static final int DEFAULT_SSL_HANDSHAKE_QUEUE_CAPACITY = 1 << 13;
+
+    /**
+     * Per processor. Roughly the number of full RSA-2048 handshakes single core can do per second.
+     */
+    private static final int DEFAULT_SSL_HANDSHAKE_RATE_PER_PROCESSOR = 500;
+
+    private boolean inlineWrites = true;
+
+    private int listenersPerAddress = 1;
+
+    private String[] plainListenAddresses = { "0.0.0.0:5222" };
+
+    private int reactorsCount = 0;
+
+    private int readPauseStanzas = DEFAULT_READ_PAUSE_STANZAS;
+
+    private int readPauseStanzasPerSocket = DEFAULT_READ_PAUSE_STANZAS_PER_SOCKET;
+
+    private SlowConsumerPolicy slowConsumerPolicy = StandardSlowConsumerPolicy.COALESCE;
+
     private int socketMaxWriteBytes = DEFAULT_SOCKET_MAX_WRITE_BYTES;
 
+    private int socketOutboundHighWatermark = DEFAULT_SOCKET_OUTBOUND_HIGH_WATERMARK;
+
+    private int socketOutboundLowWatermark = DEFAULT_SOCKET_OUTBOUND_LOW_WATERMARK;
+
+    private int sslHandshakeRate = DEFAULT_SSL_HANDSHAKE_RATE_PER_PROCESSOR
+            * Runtime.getRuntime().availableProcessors();
+
+    private String[] sslListenAddresses = { "0.0.0.0:5223" };
+
+    private boolean unifiedPolling = false;
+
+    @Override
+    @ManagedAttribute
+    public int getListenersPerAddress() {
+        return listenersPerAddress;
+    }
+
     @Override
     @ManagedAttribute
     public int getMaxConnections() {
         return 1100000;
     }
 
+    @Override
+    @ManagedAttribute
+    public String[] getPlainListenAddresses() {
+        return plainListenAddresses;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getPollerQueueCapacity() {
+        return DEFAULT_POLLER_QUEUE_CAPACITY;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getReactorsCount() {
+        return reactorsCount;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getReadBudgetBytes() {
+        return DEFAULT_READ_BUDGET_BYTES;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getReadBudgetStanzas() {
+        return DEFAULT_READ_BUDGET_STANZAS;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getReadBufferMaxSize() {
+        return DEFAULT_READ_BUFFER_MAX_SIZE;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getReadBufferMinSize() {
+        return DEFAULT_READ_BUFFER_MIN_SIZE;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getReadPauseOutboundBytes() {
+        return DEFAULT_READ_PAUSE_OUTBOUND_BYTES;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getReadPauseStanzas() {
+        return readPauseStanzas;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getReadPauseStanzasPerSocket() {
+        return readPauseStanzasPerSocket;
+    }
+
     @Override
     public int getReadPollersCount() {
         return Runtime.getRuntime().availableProcessors();
     }
 
+    @Override
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
     @Override
     @ManagedAttribute()
     public int getSocketMaxWriteBytes() {
         return socketMaxWriteBytes;
     }
 
+    @Override
+    @ManagedAttribute
+    public int getSocketOutboundHighWatermark() {
+        return socketOutboundHighWatermark;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getSocketOutboundLowWatermark() {
+        return socketOutboundLowWatermark;
+    }
+
     @Override
     @ManagedAttribute
     public long getSocketReadPollTimeout() {
@@ -46,15 +183,110 @@ public class DefaultXmppProxyConfiguration implements XmppProxyConfiguration {
         return 1 * 60 * 1000 * 1000;
     }
 
+    @Override
+    @ManagedAttribute
+    public int getSslHandshakeQueueCapacity() {
+        return DEFAULT_SSL_HANDSHAKE_QUEUE_CAPACITY;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getSslHandshakeRate() {
+        return sslHandshakeRate;
+    }
+
+    @Override
+    @ManagedAttribute
+    public int getSslHandshakeThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    @ManagedAttribute
+    public String[] getSslListenAddresses() {
+        return sslListenAddresses;
+    }
+
     @Override
     public int getWritePollersCount() {
         return Runtime.getRuntime().availableProcessors();
     }
 
+    @Override
+    @ManagedAttribute
+    public boolean isInlineWrites() {
+        return inlineWrites;
+    }
+
+    @Override
+    @ManagedAttribute
+    public boolean isOneShotPolling() {
+        return true;
+    }
+
+    @Override
+    @ManagedAttribute
+    public boolean isUnifiedPolling() {
+        return unifiedPolling;
+    }
+
+    @ManagedAttribute
+    public void setInlineWrites(boolean inlineWrites) {
+        this.inlineWrites = inlineWrites;
+    }
+
+    public void setListenersPerAddress(int listenersPerAddress) {
+        this.listenersPerAddress = listenersPerAddress;
+    }
+
+    public void setPlainListenAddresses(String[] plainListenAddresses) {
+        this.plainListenAddresses = plainListenAddresses;
+    }
+
+    public void setReactorsCount(int reactorsCount) {
+        this.reactorsCount = reactorsCount;
+    }
+
+    @ManagedAttribute
+    public void setReadPauseStanzas(int readPauseStanzas) {
+        this.readPauseStanzas = readPauseStanzas;
+    }
+
+    @ManagedAttribute
+    public void setReadPauseStanzasPerSocket(int readPauseStanzasPerSocket) {
+        this.readPauseStanzasPerSocket = readPauseStanzasPerSocket;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
     public void setSocketMaxWriteBytes(int socketMaxWriteBytes) {
         this.socketMaxWriteBytes = socketMaxWriteBytes;
     }
 
+    @ManagedAttribute
+    public void setSocketOutboundHighWatermark(int socketOutboundHighWatermark) {
+        this.socketOutboundHighWatermark = socketOutboundHighWatermark;
+    }
+
+    @ManagedAttribute
+    public void setSocketOutboundLowWatermark(int socketOutboundLowWatermark) {
+        this.socketOutboundLowWatermark = socketOutboundLowWatermark;
+    }
+
+    public void setSslHandshakeRate(int sslHandshakeRate) {
+        this.sslHandshakeRate = sslHandshakeRate;
+    }
+
+    public void setSslListenAddresses(String[] sslListenAddresses) {
+        this.sslListenAddresses = sslListenAddresses;
+    }
+
+    public void setUnifiedPolling(boolean unifiedPolling) {
+        this.unifiedPolling = unifiedPolling;
+    }
+
     @Override
     @ManagedAttribute
     public int socketListenBacklog() {
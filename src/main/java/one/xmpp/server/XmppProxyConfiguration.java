@@ -5,6 +5,7 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
 import one.ejb.NotNullByDefault;
+import one.xmpp.server.network.SlowConsumerPolicy;
 
 @ManagedResource
 @NotNullByDefault
@@ -16,6 +17,16 @@ public interface XmppProxyConfiguration {
      */
     public static final int CONCURRENCY_LEVEL = 256;
 
+    /**
+     * @return number of listener sockets (each one with its own acceptor thread) to create for
+     *         each listen address. If transport supports <tt>SO_REUSEPORT</tt>, every listener is
+     *         separate server socket and kernel spreads incoming connections among them; otherwise
+     *         value is ignored (with warning) and single acceptor thread is used, since accept of
+     *         shared server socket is serialized anyway. Read at startup only.
+     */
+    @ManagedAttribute
+    public abstract int getListenersPerAddress();
+
     /**
      * Maximum number of connection that server SHOULD be able to handle. Using at starttime to
      * allocate memory and internal structures, so select a bit more than required. 1.1M is okay to
@@ -24,6 +35,87 @@ public interface XmppProxyConfiguration {
     @ManagedAttribute
     public abstract int getMaxConnections();
 
+    /**
+     * @return <tt>host:port</tt> addresses to accept plain (STARTTLS-capable) client connections
+     *         at. Read at startup only.
+     */
+    @ManagedAttribute
+    public abstract String[] getPlainListenAddresses();
+
+    /**
+     * @return capacity of each poller add-to-poll and remove-from-poll queues. If queue is full
+     *         producer will spin (waking up poller) until poller drains it
+     */
+    @ManagedAttribute
+    public abstract int getPollerQueueCapacity();
+
+    /**
+     * @return number of shared-nothing reactors, or <tt>0</tt> to use shared worker pool. Each
+     *         reactor is single thread with its own read poller, own acceptor thread and server
+     *         socket for each listen address (if transport supports <tt>SO_REUSEPORT</tt>;
+     *         otherwise single acceptor thread spreads connections among reactors) and own table
+     *         of sockets. Socket tasks are run by reactor thread itself, so accepted
+     *         connection is handled by single thread for its whole life, and socket handlers shall
+     *         not block. Implies unified polling; {@link #getListenersPerAddress()},
+     *         {@link #getReadPollersCount()} and {@link #getWritePollersCount()} are ignored. Note
+     *         that SSL handshake steps (see {@link #getSslHandshakeThreads()}) and closing of
+     *         sockets by idle timeout still run on shared executors, not on reactor threads. Read
+     *         at startup only.
+     */
+    @ManagedAttribute
+    public abstract int getReactorsCount();
+
+    /**
+     * @return maximum number of bytes to read from single socket during one read task. Socket is
+     *         returned to poll after that, even if it has more data, so it can't starve other
+     *         sockets.
+     */
+    @ManagedAttribute
+    public abstract int getReadBudgetBytes();
+
+    /**
+     * @return maximum number of stanzas to parse from single socket during one read task
+     */
+    @ManagedAttribute
+    public abstract int getReadBudgetStanzas();
+
+    /**
+     * @return maximum size of socket read buffer. Read buffer grows (up to this size) while reads
+     *         fill it completely.
+     */
+    @ManagedAttribute
+    public abstract int getReadBufferMaxSize();
+
+    /**
+     * @return minimum (and initial) size of socket read buffer. Buffers are allocated per worker
+     *         thread, not per socket.
+     */
+    @ManagedAttribute
+    public abstract int getReadBufferMinSize();
+
+    /**
+     * @return number of queued outbound bytes after which socket is not read while waiting for
+     *         write readiness (unified polling mode only: otherwise socket waiting for write
+     *         readiness is not read anyway)
+     */
+    @ManagedAttribute
+    public abstract int getReadPauseOutboundBytes();
+
+    /**
+     * @return number of stanzas in asynchronous processing (by all sockets) after which sockets are
+     *         not read, or <tt>0</tt> to disable. Reading is resumed when half of them are
+     *         processed.
+     */
+    @ManagedAttribute
+    public abstract int getReadPauseStanzas();
+
+    /**
+     * @return number of stanzas in asynchronous processing after which socket is not read, or
+     *         <tt>0</tt> to disable. Reading is resumed when half of them are processed.
+     */
+    @ManagedAttribute
+    public abstract int getReadPauseStanzasPerSocket();
+
     /**
      * @return number of read pollers (i.e. Poll wrappers) to create and maintain
      */
@@ -31,35 +123,106 @@ public interface XmppProxyConfiguration {
     public abstract int getReadPollersCount();
 
     /**
-     * @return maximum number of bytes that shall be written to socket using
-     *         {@link Socket#sendib(long, java.nio.ByteBuffer, int, int)} operation
+     * @return what to do with data queued to socket that is over
+     *         {@link #getSocketOutboundHighWatermark()}
+     */
+    public abstract SlowConsumerPolicy getSlowConsumerPolicy();
+
+    /**
+     * @return maximum number of bytes that shall be written to socket using single (gathering)
+     *         write operation. Consecutive queued write operations are sent together up to this
+     *         limit.
      */
     @ManagedAttribute
     public abstract int getSocketMaxWriteBytes();
 
     /**
-     * @return maximum time in microseconds that socket can be in read poll without any operation.
-     *         Default behavior is to close socket if timeout is reached. Counter is zeroes if ANY
-     *         data is received from socket or queued to write to socket (because socket will be
-     *         removed from poll and readded after write operation).
+     * @return number of queued outbound bytes after which socket is treated as slow consumer, and
+     *         {@link #getSlowConsumerPolicy()} decides what to do with further data
+     */
+    @ManagedAttribute
+    public abstract int getSocketOutboundHighWatermark();
+
+    /**
+     * @return number of queued outbound bytes slow consumer shall drain its queue to, to be treated
+     *         as normal socket again
+     */
+    @ManagedAttribute
+    public abstract int getSocketOutboundLowWatermark();
+
+    /**
+     * @return maximum time in microseconds that socket can stay without any data received or sent.
+     *         Socket is closed if timeout is reached. Timeouts are checked once per second by
+     *         server idle timeouts wheel, not by poll.
      */
     @ManagedAttribute
     public abstract long getSocketReadPollTimeout();
 
     /**
-     * @return maximum time in microseconds that socket can be in write poll without any operation.
-     *         Default behavior is to close socket if timeout is reached. Counter is zeroes if ANY
-     *         signal is received from poll for this socket.
+     * @return maximum time in microseconds that socket can wait for write readiness. Socket is
+     *         closed if timeout is reached. Counter is zeroed if socket becomes writable.
      */
     @ManagedAttribute
     public abstract long getSocketWritePollTimeout();
 
+    /**
+     * @return maximum number of SSL handshake steps waiting for handshake worker thread. Sockets
+     *         that can't be queued are closed. Read at startup only.
+     */
+    @ManagedAttribute
+    public abstract int getSslHandshakeQueueCapacity();
+
+    /**
+     * @return maximum number of SSL connections accepted per second, or <tt>0</tt> for unlimited.
+     *         Connections above the rate wait in listen queue of server socket. Read at startup
+     *         only (use SSL acceptor attribute to change it at runtime).
+     */
+    @ManagedAttribute
+    public abstract int getSslHandshakeRate();
+
+    /**
+     * @return number of threads doing SSL handshakes. Handshakes don't use worker threads that
+     *         handle already connected sockets. Read at startup only.
+     */
+    @ManagedAttribute
+    public abstract int getSslHandshakeThreads();
+
+    /**
+     * @return <tt>host:port</tt> addresses to accept legacy SSL client connections at. Read at
+     *         startup only.
+     */
+    @ManagedAttribute
+    public abstract String[] getSslListenAddresses();
+
     /**
      * @return number of write pollers (i.e. Poll wrappers) to create and maintain
      */
     @ManagedAttribute
     public abstract int getWritePollersCount();
 
+    /**
+     * @return <tt>true</tt> if worker thread shall try to write queued data to socket directly,
+     *         using write poller only if socket send buffer is full
+     */
+    @ManagedAttribute
+    public abstract boolean isInlineWrites();
+
+    /**
+     * @return <tt>true</tt> if sockets shall be armed in poll once and re-armed by worker threads
+     *         directly after being signalled (when supported by transport). Otherwise sockets are
+     *         always passed to poller thread, which also checks that socket is not in poll already.
+     */
+    @ManagedAttribute
+    public abstract boolean isOneShotPolling();
+
+    /**
+     * @return <tt>true</tt> if each socket shall be owned by single (read) poller, that waits for
+     *         both input and output readiness while socket has pending output. Write pollers are
+     *         not created in this mode. Read at startup only.
+     */
+    @ManagedAttribute
+    public abstract boolean isUnifiedPolling();
+
     /**
      * <p>
      * The number of outstanding connections allowed in the sockets listen queue. If this value is
@@ -0,0 +1,37 @@
+package one.xmpp.server.errors.stream;
+
+import java.nio.ByteBuffer;
+
+import one.ejb.NotNullByDefault;
+import one.xmpp.server.AbstractXmppProxyServer.AbstractXmppProxySocket;
+
+/**
+ * The server lacks the system resources necessary to service the stream.
+ */
+public class ResourceConstraintError extends XmppStreamError {
+
+    private static final ByteBuffer MESSAGE = getStandardErrorMessage("resource-constraint");
+
+    private static final long serialVersionUID = 1L;
+
+    public ResourceConstraintError() {
+    }
+
+    public ResourceConstraintError(String message) {
+        super(message);
+    }
+
+    public ResourceConstraintError(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public ResourceConstraintError(Throwable cause) {
+        super(cause);
+    }
+
+    @Override
+    @NotNullByDefault
+    public void queueWrite(AbstractXmppProxySocket xmppSocket) {
+        xmppSocket.queueWrite(MESSAGE);
+    }
+}
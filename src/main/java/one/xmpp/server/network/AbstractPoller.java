@@ -1,10 +1,12 @@
 package one.xmpp.server.network;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
@@ -12,11 +14,6 @@ import javax.annotation.PreDestroy;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.tomcat.jni.Error;
-import org.apache.tomcat.jni.Poll;
-import org.apache.tomcat.jni.Pool;
-import org.apache.tomcat.jni.Socket;
-import org.apache.tomcat.jni.Status;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
@@ -24,87 +21,182 @@ import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.jmx.support.MetricType;
 
 import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
 import one.xmpp.server.network.AbstractServer.AbstractSocket;
+import one.xmpp.utils.BoundedMpscQueue;
 
+/**
+ * Poller thread with its own poll. In reactor mode (see
+ * {@link one.xmpp.server.XmppProxyConfiguration#getReactorsCount()}) poller thread also runs tasks
+ * of its sockets between polls, so it is an {@link Executor}.
+ */
 @ManagedResource
 @NotNullByDefault
-abstract class AbstractPoller {
+abstract class AbstractPoller implements Executor {
 
-    private static final ByteBuffer SIGNAL = ByteBuffer.allocateDirect(1);
-
-    static {
-        SIGNAL.put((byte) 1);
-    }
+    /**
+     * Loop latency (in microseconds) that is considered as small as zero when poller load is
+     * estimated, so idle pollers are compared by number of sockets only
+     */
+    private static final long LOOP_LATENCY_BASE = 100;
 
     @Autowired
     protected AbstractServer abstractServer;
 
     private final AtomicLong addToPollCalls = new AtomicLong(0);
 
-    private final int events;
+    /**
+     * Number of sockets assigned to this poller (not necessary in poll right now)
+     */
+    private final AtomicInteger assignedSockets = new AtomicInteger(0);
+
+    private final AtomicLong directArms = new AtomicLong(0);
 
-    private final long[] getPoolsetSizeArray;
+    private final int events;
 
     private final AtomicLong hangUps = new AtomicLong(0);
 
-    private final AtomicLong internalSignals = new AtomicLong(0);
+    /**
+     * Tasks queued by poller thread itself. Accessed from poller thread only
+     */
+    private final ArrayDeque<Runnable> localTasks = new ArrayDeque<Runnable>();
+
+    /**
+     * Index of this poller in {@link AbstractPollers}
+     */
+    protected final int index;
 
     protected final Log log = LogFactory.getLog(getClass());
 
+    /**
+     * Exponential moving average of time spent by poller thread between two polls (processing
+     * signals and queues). Loops without signalled sockets are counted as zero latency. Written by
+     * poller thread only.
+     */
+    private volatile long loopLatencyNanos = 0;
+
     private final int maxConnections;
 
+    /**
+     * If <tt>true</tt> poller relies on the fact that signalled sockets are removed from poll
+     * automatically: sockets are re-armed directly by worker threads (if supported by transport)
+     * and no speculative {@link TransportPoll#remove(long)} is made before adding socket to poll
+     */
+    private final boolean oneShotPolling;
+
     private final AtomicLong pendingErrors = new AtomicLong(0);
 
-    private long pipeSocketReadPointer;
+    protected TransportPoll poll;
 
-    private long pipeSocketWritePointer;
+    private final AtomicLong pollQueueDrainedItems = new AtomicLong(0);
 
-    protected long pollPointer;
+    private final AtomicLong pollQueueDrains = new AtomicLong(0);
 
-    private long pollTimeoutMicroseconds = 1 * 1000 * 1000;
+    private volatile int pollQueueMaxDrainBatch = 0;
+
+    private final AtomicLong pollQueueOverflows = new AtomicLong(0);
 
-    private long poolPointer;
+    private long pollTimeoutMicroseconds = 1 * 1000 * 1000;
 
     private final AtomicLong removeFromPollCalls = new AtomicLong(0);
 
+    /**
+     * Set when poller thread woke up itself, so the next poll doesn't block. Accessed from poller
+     * thread only
+     */
+    private boolean selfWakeUp = false;
+
     private final AtomicLong signals = new AtomicLong(0);
 
+    private volatile boolean stop = false;
+
     /**
-     * Maximum time to live for a particular socket
+     * Tasks queued by other threads, <tt>null</tt> unless poller is a reactor. Filled by any
+     * thread, drained by poller thread only
      */
-    private final long socketTtl;
+    @Nullable
+    private final BoundedMpscQueue<Runnable> tasks;
 
-    private volatile boolean stop = false;
+    private final AtomicLong tasksExecuted = new AtomicLong(0);
 
-    private Thread thread;
+    private PollerThread thread;
 
     private final String threadName;
 
-    protected final List<AbstractSocket> toPollQueue;
+    @Autowired
+    private Transport transport;
 
-    private final List<RemoveTask> toRemoveQueue;
+    /**
+     * Sockets to be added to poll. Filled by any thread, drained by poller thread only
+     */
+    private final BoundedMpscQueue<AbstractSocket> toPollQueue;
+
+    /**
+     * Sockets drained from {@link #toPollQueue}, but not yet added to poll. Accessed from poller
+     * thread only
+     */
+    private final ArrayList<AbstractSocket> toPollLocal = new ArrayList<AbstractSocket>();
+
+    private final ArrayList<AbstractSocket> toRemoveLocal = new ArrayList<AbstractSocket>();
+
+    /**
+     * Closed sockets to be removed from poll. Filled by any thread, drained by poller thread only
+     */
+    private final BoundedMpscQueue<AbstractSocket> toRemoveQueue;
 
     private final AtomicLong wakeUpCalls = new AtomicLong(0);
 
+    /**
+     * Set by the first producer after poller thread started new loop iteration. While it is set
+     * other producers don't write to the pipe, because poller will wake up anyway and drain all
+     * queues.
+     */
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean(false);
+
     private final AtomicLong wakeUps = new AtomicLong(0);
 
+    private final AtomicLong wakeUpSignalsSent = new AtomicLong(0);
+
+    private final AtomicLong wakeUpSignalsSuppressed = new AtomicLong(0);
+
     /**
-     * @param socketTtl
-     *            Maximum time to live for a particular socket
+     * @param queueCapacity
+     *            capacity of add-to-poll and remove-from-poll queues
+     * @param oneShotPolling
+     *            see {@link one.xmpp.server.XmppProxyConfiguration#isOneShotPolling()}
+     * @param reactor
+     *            <tt>true</tt> if poller thread shall run tasks of its sockets, see
+     *            {@link #execute(Runnable)}
+     * @param index
+     *            index of this poller in {@link AbstractPollers}
      */
-    protected AbstractPoller(String threadName, int events, int expectedMaxConnections, long socketTtl) {
+    protected AbstractPoller(String threadName, int events, int expectedMaxConnections, int queueCapacity,
+            boolean oneShotPolling, boolean reactor, int index) {
         super();
 
         this.threadName = threadName;
         this.events = events;
+        this.index = index;
         this.maxConnections = expectedMaxConnections;
-        this.socketTtl = socketTtl;
-        this.toPollQueue = new ArrayList<AbstractSocket>();
-        this.toRemoveQueue = new ArrayList<RemoveTask>();
-        this.getPoolsetSizeArray = new long[maxConnections * 2];
+        this.oneShotPolling = oneShotPolling;
+        this.toPollQueue = new BoundedMpscQueue<AbstractSocket>(queueCapacity);
+        this.toRemoveQueue = new BoundedMpscQueue<AbstractSocket>(queueCapacity);
+        this.tasks = reactor ? new BoundedMpscQueue<Runnable>(queueCapacity) : null;
     }
 
     protected void addToPollQueue(AbstractSocket socket) {
+        if (oneShotPolling && poll.arm(socket.getClientSocketPointer(), getPollEvents(socket))) {
+            directArms.incrementAndGet();
+
+            if (log.isTraceEnabled()) {
+                log.trace(socket + " re-armed in " + poll);
+            }
+
+            // poll shall see new interest set
+            wakeUpPoll();
+            return;
+        }
+
         addToPollQueueLater(socket);
 
         /*
@@ -121,7 +213,7 @@ abstract class AbstractPoller {
     }
 
     private void addToPollQueueImpl(AbstractSocket socket) {
-        if (Poll.remove(pollPointer, socket.getClientSocketPointer()) == Status.APR_SUCCESS) {
+        if (!oneShotPolling && poll.remove(socket.getClientSocketPointer())) {
             throw new IllegalStateException("Socket were already in poll");
         }
 
@@ -131,26 +223,31 @@ abstract class AbstractPoller {
          */
 
         if (!socket.isClosed()) {
-            Poll.add(pollPointer, socket.getClientSocketPointer(), events);
+            poll.add(socket.getClientSocketPointer(), getPollEvents(socket));
             if (log.isTraceEnabled()) {
-                log.trace(socket + " added to poll #" + pollPointer);
+                log.trace(socket + " added to " + poll);
             }
         } else {
             if (log.isTraceEnabled()) {
-                log.trace(socket + " NOT added to poll #" + pollPointer + " because closed already");
+                log.trace(socket + " NOT added to " + poll + " because closed already");
             }
         }
     }
 
     protected void addToPollQueueLater(AbstractSocket socket) {
         addToPollCalls.incrementAndGet();
-        synchronized (toPollQueue) {
-            toPollQueue.add(socket);
 
-            if (log.isTraceEnabled()) {
-                log.trace(socket + " added to add-to-poll queue for poll #" + pollPointer + ". There are "
-                        + toPollQueue.size() + " sockets in queue now");
-            }
+        if (Thread.currentThread() == thread) {
+            // reactor task (or poller itself), socket is added to poll at the beginning of next loop
+            toPollLocal.add(socket);
+            selfWakeUp = true;
+            return;
+        }
+        offer(toPollQueue, socket);
+
+        if (log.isTraceEnabled()) {
+            log.trace(socket + " added to add-to-poll queue for " + poll + ". There are "
+                    + toPollQueue.size() + " sockets in queue now");
         }
         wakeUpPoll();
     }
@@ -159,11 +256,80 @@ abstract class AbstractPoller {
         wakeUps.incrementAndGet();
     }
 
+    /**
+     * Called by poller thread for every socket drained from add-to-poll queue
+     * 
+     * @return <tt>false</tt> if socket shall not be added to poll (i.e. pending add was cancelled)
+     */
+    @SuppressWarnings("unused")
+    protected boolean beforeAddToPoll(AbstractSocket socket) {
+        return true;
+    }
+
+    /**
+     * @return poller whose thread is the current one, or <tt>null</tt>
+     */
+    @Nullable
+    static AbstractPoller current() {
+        final Thread currentThread = Thread.currentThread();
+        return currentThread instanceof PollerThread ? ((PollerThread) currentThread).poller : null;
+    }
+
+    /**
+     * Moves all sockets from add-to-poll queue to poller-local list. Poller thread only.
+     */
+    private void drainToPollQueue() {
+        final int drained = toPollQueue.drainTo(toPollLocal);
+        onQueueDrained(drained);
+
+        if (drained != 0 && log.isTraceEnabled()) {
+            log.trace("There are " + toPollLocal.size() + " client pointers in add-to-poll queue for " + poll);
+        }
+    }
+
+    /**
+     * Reactor mode only. Tasks queued by poller thread itself are run during the same poller loop
+     * and are not queued here.
+     *
+     * @throws RejectedExecutionException
+     *             if task queue is full or poller is stopped
+     */
+    @Override
+    public void execute(Runnable task) {
+        final BoundedMpscQueue<Runnable> queue = tasks;
+        if (queue == null) {
+            throw new UnsupportedOperationException(this + " is not a reactor");
+        }
+
+        if (Thread.currentThread() == thread) {
+            localTasks.add(task);
+            return;
+        }
+
+        if (stop || !queue.offer(task)) {
+            throw new RejectedExecutionException("Task " + task + " rejected by " + this);
+        }
+        wakeUpPoll();
+    }
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getAddToPollCalls() {
         return addToPollCalls.get();
     }
 
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getAssignedSockets() {
+        return assignedSockets.get();
+    }
+
+    /**
+     * @return number of sockets re-armed by worker threads without passing them to poller thread
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getDirectArms() {
+        return directArms.get();
+    }
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getHangUps() {
         return hangUps.get();
@@ -171,7 +337,24 @@ abstract class AbstractPoller {
 
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getInternalSignals() {
-        return internalSignals.get();
+        return poll.getWakeUpSignalsReceived();
+    }
+
+    /**
+     * @return estimated load of this poller: number of assigned sockets weighted by loop latency.
+     *         Used to choose poller for new socket.
+     */
+    double getLoad() {
+        return (double) (assignedSockets.get() + 1) * (LOOP_LATENCY_BASE + getLoopLatencyMicroseconds());
+    }
+
+    /**
+     * @return average time (in microseconds) spent by poller thread to process poll results and
+     *         queues
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public long getLoopLatencyMicroseconds() {
+        return loopLatencyNanos / 1000;
     }
 
     @ManagedMetric(metricType = MetricType.COUNTER)
@@ -179,6 +362,47 @@ abstract class AbstractPoller {
         return pendingErrors.get();
     }
 
+    /**
+     * @return events socket shall be polled for
+     */
+    @SuppressWarnings("unused")
+    protected int getPollEvents(AbstractSocket socket) {
+        return events;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getPollQueueDrainedItems() {
+        return pollQueueDrainedItems.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getPollQueueDrains() {
+        return pollQueueDrains.get();
+    }
+
+    /**
+     * @return maximum number of items that poller thread drained from add-to-poll and
+     *         remove-from-poll queues at once
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getPollQueueMaxDrainBatch() {
+        return pollQueueMaxDrainBatch;
+    }
+
+    /**
+     * @return number of times producer found add-to-poll or remove-from-poll queue full and had to
+     *         wait for poller thread
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getPollQueueOverflows() {
+        return pollQueueOverflows.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getPollQueueSize() {
+        return toPollQueue.size();
+    }
+
     @ManagedAttribute
     public long getPollTimeoutMicroseconds() {
         return pollTimeoutMicroseconds;
@@ -186,8 +410,7 @@ abstract class AbstractPoller {
 
     @ManagedMetric(metricType = MetricType.GAUGE)
     public int getPoolsetSize() {
-        // expensive, thought
-        return Poll.pollset(pollPointer, getPoolsetSizeArray);
+        return poll.size();
     }
 
     @ManagedMetric(metricType = MetricType.COUNTER)
@@ -195,11 +418,33 @@ abstract class AbstractPoller {
         return removeFromPollCalls.get();
     }
 
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getRemoveQueueSize() {
+        return toRemoveQueue.size();
+    }
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getSignals() {
         return signals.get();
     }
 
+    /**
+     * @return number of tasks queued by other threads and not run yet (reactor mode only)
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getTaskQueueSize() {
+        final BoundedMpscQueue<Runnable> queue = tasks;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return number of socket tasks run by poller thread (reactor mode only)
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getTasksExecuted() {
+        return tasksExecuted.get();
+    }
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getWakeUpCalls() {
         return wakeUpCalls.get();
@@ -210,63 +455,161 @@ abstract class AbstractPoller {
         return wakeUps.get();
     }
 
-    @PostConstruct
-    public void init() throws Exception {
+    /**
+     * @return number of wake-up signals actually written to the pipe socket
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getWakeUpSignalsSent() {
+        return wakeUpSignalsSent.get();
+    }
 
-        this.poolPointer = Pool.create(0);
-        this.pollPointer = Poll.create(maxConnections, poolPointer, 0, socketTtl);
-        Poll.setTtl(pollPointer, socketTtl);
+    /**
+     * @return number of {@link #wakeUpPoll()} calls that didn't write to the pipe socket because
+     *         wake-up was already pending
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getWakeUpSignalsSuppressed() {
+        return wakeUpSignalsSuppressed.get();
+    }
 
-        long[] pipe = PipeSocketsHelper.newPair();
-        this.pipeSocketReadPointer = pipe[0];
-        this.pipeSocketWritePointer = pipe[1];
+    /**
+     * @return ratio of suppressed wake-up signals to the really sent ones
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public double getWakeUpSignalsSuppressedRatio() {
+        final long sent = wakeUpSignalsSent.get();
+        return sent == 0 ? 0 : (double) wakeUpSignalsSuppressed.get() / sent;
+    }
 
-        Socket.optSet(pipeSocketReadPointer, Socket.APR_TCP_NODELAY, 1);
-        Socket.optSet(pipeSocketWritePointer, Socket.APR_TCP_NODELAY, 1);
+    @PostConstruct
+    public void init() throws Exception {
 
-        Poll.add(pollPointer, pipeSocketReadPointer, Poll.APR_POLLIN);
+        this.poll = transport.createPoll(maxConnections);
 
-        thread = new Thread(threadName) {
-            @Override
-            public void run() {
-                AbstractPoller.this.run();
-            }
-        };
+        thread = new PollerThread(this);
         thread.setDaemon(true);
         thread.start();
     }
 
+    @ManagedAttribute
+    public boolean isOneShotPolling() {
+        return oneShotPolling;
+    }
+
     protected abstract void logSignal(long signal);
 
-    protected abstract void onHangUp(long clientSocketPointer);
+    /**
+     * Adds item to the lock-free queue. If queue is full, waits (without locking) until poller
+     * thread drains it.
+     */
+    private <T> void offer(BoundedMpscQueue<T> queue, T item) {
+        while (!queue.offer(item)) {
+            pollQueueOverflows.incrementAndGet();
 
-    protected abstract void onMaintain(long clientSocketPointer);
+            if (Thread.currentThread() == thread) {
+                throw new IllegalStateException("Poller queue " + queue + " is full and can't be drained by "
+                        + threadName + " itself");
+            }
+
+            wakeUpPoll();
+            Thread.yield();
+        }
+    }
+
+    protected abstract void onHangUp(long clientSocketPointer);
 
     protected abstract void onPendingError(long clientSocketPointer);
 
     protected abstract void onSignal(long clientSocketPointer, long signal);
 
-    void remove(AbstractSocket socket) throws InterruptedException {
-        removeFromPollCalls.incrementAndGet();
-        RemoveTask removeTask = new RemoveTask(socket);
-        synchronized (toRemoveQueue) {
-            toRemoveQueue.add(removeTask);
+    void onSocketAssigned() {
+        assignedSockets.incrementAndGet();
+    }
+
+    void onSocketUnassigned() {
+        assignedSockets.decrementAndGet();
+    }
+
+    private void onQueueDrained(int drained) {
+        if (drained == 0) {
+            return;
         }
+
+        pollQueueDrains.incrementAndGet();
+        pollQueueDrainedItems.addAndGet(drained);
+        if (drained > pollQueueMaxDrainBatch) {
+            // single writer (poller thread), no need to CAS
+            pollQueueMaxDrainBatch = drained;
+        }
+    }
+
+    /**
+     * Queues closed socket to be removed from poll. Doesn't wait: poller thread calls
+     * {@link AbstractSocket#onRemovedFromPoll()} when socket is removed.
+     */
+    void remove(AbstractSocket socket) {
+        removeFromPollCalls.incrementAndGet();
+        offer(toRemoveQueue, socket);
         wakeUpPoll();
-        removeTask.latch.await();
     }
 
-    private void removeImpl(RemoveTask removeTask) {
-        AprUtils.removeFromPollSafe(pollPointer, removeTask.socket.getClientSocketPointer());
-        removeTask.latch.countDown();
+    /**
+     * Removes all queued sockets from poll. Poller thread only (or any thread after poller thread
+     * is stopped).
+     */
+    private void removeQueued() {
+        final int drained = toRemoveQueue.drainTo(toRemoveLocal);
+        onQueueDrained(drained);
+
+        if (drained != 0 && log.isTraceEnabled()) {
+            log.trace("There are " + drained + " client pointers in remove-from-poll queue for " + poll);
+        }
+
+        for (int i = 0; i < drained; i++) {
+            final AbstractSocket socket = toRemoveLocal.get(i);
+            try {
+                boolean result = poll.remove(socket.getClientSocketPointer());
+
+                if (log.isTraceEnabled()) {
+                    log.trace("Removed " + socket + " from " + poll + " with result " + result);
+                }
+            } catch (Throwable exc) {
+                log.error("Unable to remove " + socket + " from " + poll + ": " + exc, exc);
+            }
+
+            socket.onRemovedFromPoll();
+        }
+        // to remove links to sockets
+        toRemoveLocal.clear();
+    }
+
+    /**
+     * Runs tasks queued before the call. Tasks queued by them are run during the next loop, so
+     * they can't starve poll. Poller thread only.
+     */
+    private void runTasks(BoundedMpscQueue<Runnable> queue) {
+        queue.drainTo(localTasks);
+
+        for (int i = localTasks.size(); i > 0; i--) {
+            final Runnable task = localTasks.poll();
+            try {
+                task.run();
+            } catch (Throwable exc) {
+                log.error("Unable to execute " + task + " by " + this + ": " + exc, exc);
+            }
+            tasksExecuted.incrementAndGet();
+        }
     }
 
     void run() {
-        final ByteBuffer signalBuffer = ByteBuffer.allocateDirect(1024);
         final long[] pollDescriptors = new long[maxConnections * 2];
 
-        RemoveTask[] removeLocal = new RemoveTask[0];
-        AbstractSocket[] toPoolLocal = new AbstractSocket[0];
+        /*
+         * time when last poll returned with some sockets signalled, 0 if it returned because of
+         * timeout or wake up only (so idle pollers latency decays to zero)
+         */
+        long pollReturnTime = 0;
+
         while (!stop) {
             // synchronized (pollLock) {
             if (stop) {
@@ -274,54 +617,33 @@ abstract class AbstractPoller {
             }
 
             {
-                synchronized (toPollQueue) {
-                    if (!toPollQueue.isEmpty()) {
-                        if (log.isTraceEnabled()) {
-                            log.trace("There are " + toPollQueue.size()
-                                    + " client pointers in add-to-poll queue for poll #" + pollPointer);
-                        }
-
-                        toPoolLocal = toPollQueue.toArray(toPoolLocal);
-                        toPollQueue.clear();
-                    }
-                }
+                drainToPollQueue();
 
-                for (AbstractSocket socket : toPoolLocal) {
-                    if (socket == null) {
-                        continue;
+                for (int i = 0, size = toPollLocal.size(); i < size; i++) {
+                    final AbstractSocket socket = toPollLocal.get(i);
+                    if (beforeAddToPoll(socket)) {
+                        addToPollQueueImpl(socket);
                     }
-
-                    addToPollQueueImpl(socket);
                 }
                 // to remove links to sockets
-                Arrays.fill(toPoolLocal, null);
+                toPollLocal.clear();
             }
 
-            {
-                synchronized (toRemoveQueue) {
-                    if (!toRemoveQueue.isEmpty()) {
-                        if (log.isTraceEnabled()) {
-                            log.trace("There are " + toRemoveQueue.size()
-                                    + " client pointers in remove-from-poll queue for poll #" + pollPointer);
-                        }
-
-                        removeLocal = toRemoveQueue.toArray(removeLocal);
-                        toRemoveQueue.clear();
-                    }
-                }
-                for (RemoveTask removeTask : removeLocal) {
-                    if (removeTask == null) {
-                        continue;
-                    }
+            removeQueued();
 
-                    removeImpl(removeTask);
-                }
-                // to remove links to sockets
-                Arrays.fill(removeLocal, null);
+            {
+                final long latency = pollReturnTime == 0 ? 0 : System.nanoTime() - pollReturnTime;
+                // single writer, 1/8 weight of the new sample
+                loopLatencyNanos += (latency - loopLatencyNanos) >> 3;
             }
 
             {
-                int result = Poll.poll(pollPointer, pollTimeoutMicroseconds, pollDescriptors, true);
+                // don't block if there is something to do already
+                final long timeout = selfWakeUp || !localTasks.isEmpty() ? 0 : pollTimeoutMicroseconds;
+                selfWakeUp = false;
+
+                int result = poll.poll(timeout, pollDescriptors);
+                pollReturnTime = result > 0 ? System.nanoTime() : 0;
 
                 if (result == 0) {
                     log.trace("Poll returned with 0 result");
@@ -332,39 +654,12 @@ abstract class AbstractPoller {
                             final long signal = pollDescriptors[2 * i + 0];
 
                             if (log.isTraceEnabled()) {
-                                log.trace("In pool #" + pollPointer + " socket #" + socket + " signalled " + signal);
-                            }
-
-                            if (socket == pipeSocketReadPointer) {
-
-                                internalSignals.incrementAndGet();
-
-                                if ((signal & Poll.APR_POLLIN) != 0) {
-                                    // it is out special signal socket, read and ignore
-                                    log.trace("Poll waked up by receiving a signal");
-                                    signalBuffer.clear();
-                                    int read = Socket.recvb(socket, signalBuffer, 0, 1024);
-                                    if (log.isTraceEnabled()) {
-                                        log.trace("Read " + read + " bytes from signal pipe socket");
-                                    }
-                                    Poll.add(pollPointer, socket, Poll.APR_POLLIN);
-                                }
-
-                                if ((signal & Poll.APR_POLLHUP) != 0 || (signal & Poll.APR_POLLNVAL) != 0) {
-                                    if (stop) {
-                                        // expected, do not return to poll and exit
-                                    } else {
-                                        log.error("Received hangup signal " + signal + " from pipe stream #"
-                                                + pipeSocketReadPointer + " not during server shutdown");
-                                    }
-                                }
-
-                                continue;
+                                log.trace("In " + poll + " socket #" + socket + " signalled " + signal);
                             }
 
                             logSignal(signal);
 
-                            if ((signal & Poll.APR_POLLERR) != 0) {
+                            if ((signal & Transport.POLLERR) != 0) {
                                 if (log.isTraceEnabled()) {
                                     log.trace("Socket #" + socket + " returned from poll with pending error signal");
                                 }
@@ -373,7 +668,7 @@ abstract class AbstractPoller {
                                 continue;
                             }
 
-                            if ((signal & Poll.APR_POLLHUP) != 0 || (signal & Poll.APR_POLLNVAL) != 0) {
+                            if ((signal & Transport.POLLHUP) != 0 || (signal & Transport.POLLNVAL) != 0) {
                                 if (log.isTraceEnabled()) {
                                     log.trace("Socket #" + socket + " returned from poll with hangup signal");
                                 }
@@ -391,47 +686,32 @@ abstract class AbstractPoller {
 
                     Arrays.fill(pollDescriptors, 0, 0, result << 1);
                 } else {
-                    if (-result != Status.TIMEUP) {
-                        log.error("Poll #" + pollPointer + " error #" + (-result) + ": " + Error.strerror(-result));
-
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
+                    log.error(poll + " " + transport.getErrorDescription(-result));
 
-                        // just to be sure it's not filled with bad data
-                        Arrays.fill(pollDescriptors, 0);
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
                     }
+
+                    // just to be sure it's not filled with bad data
+                    Arrays.fill(pollDescriptors, 0);
                 }
             }
 
-            afterWakeUp();
-
-            if (socketTtl > 0) {
-
-                int result = Poll.maintain(pollPointer, pollDescriptors, true);
-                for (int i = 0; i < result; i++) {
-                    long socket = pollDescriptors[i];
-
-                    if (log.isTraceEnabled()) {
-                        log.trace("In pool #" + pollPointer + " socket #" + socket + " returned from maintain");
-                    }
-
-                    if (socket == pipeSocketReadPointer) {
-                        // return it back
+            /*
+             * Must be reset after poll returned, but before any queue is drained (in afterWakeUp()
+             * and at the beginning of next loop). Producer which enqueued something after that
+             * either sees the flag cleared and sends new signal, or finds it set by another
+             * producer whose signal will be received by the next poll.
+             */
+            wakeUpPending.set(false);
 
-                        if (log.isTraceEnabled()) {
-                            log.trace("Return signal pointer back to poll");
-                        }
-
-                        Poll.add(pollPointer, socket, Poll.APR_POLLIN);
-                        continue;
-                    }
-
-                    onMaintain(socket);
-                }
+            afterWakeUp();
 
+            final BoundedMpscQueue<Runnable> queue = tasks;
+            if (queue != null) {
+                runTasks(queue);
             }
         }
     }
@@ -454,20 +734,16 @@ abstract class AbstractPoller {
             log.error(e, e);
         }
 
-        log.trace("Closing pipe sockets...");
-        Socket.close(pipeSocketWritePointer);
-        Socket.close(pipeSocketReadPointer);
-        Socket.destroy(pipeSocketWritePointer);
-        Socket.destroy(pipeSocketReadPointer);
+        // so sockets closed during shutdown are destroyed
+        removeQueued();
 
         log.trace("Destroying poll...");
-        int result = Poll.destroy(pollPointer);
-        if (result != 0) {
-            log.error("Unable to destroy server poll: " + Error.strerror(result));
-        }
+        poll.destroy();
+    }
 
-        log.trace("Destroying pool...");
-        Pool.destroy(poolPointer);
+    @Override
+    public String toString() {
+        return threadName;
     }
 
     protected void wakeUpPoll() {
@@ -475,16 +751,35 @@ abstract class AbstractPoller {
             log.trace("Waking up " + this);
         }
         wakeUpCalls.incrementAndGet();
-        Socket.sendb(pipeSocketWritePointer, SIGNAL, 0, 1);
+
+        if (Thread.currentThread() == thread) {
+            // poller thread itself, it just shall not block in the next poll
+            selfWakeUp = true;
+            return;
+        }
+
+        // cheap volatile read first, so busy producers don't fight for cache line with CAS
+        if (wakeUpPending.get() || !wakeUpPending.compareAndSet(false, true)) {
+            wakeUpSignalsSuppressed.incrementAndGet();
+            return;
+        }
+
+        wakeUpSignalsSent.incrementAndGet();
+        poll.wakeUp();
     }
 
-    private class RemoveTask {
-        final CountDownLatch latch = new CountDownLatch(1);
+    private static final class PollerThread extends Thread {
+
+        final AbstractPoller poller;
 
-        final AbstractSocket socket;
+        PollerThread(AbstractPoller poller) {
+            super(poller.threadName);
+            this.poller = poller;
+        }
 
-        RemoveTask(AbstractSocket abstractSocket) {
-            this.socket = abstractSocket;
+        @Override
+        public void run() {
+            poller.run();
         }
     }
-}
\ No newline at end of file
+}
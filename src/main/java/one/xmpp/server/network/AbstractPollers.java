@@ -1,12 +1,19 @@
 package one.xmpp.server.network;
 
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.context.ApplicationContext;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.jmx.support.MetricType;
 import org.springframework.stereotype.Component;
@@ -20,50 +27,97 @@ import one.xmpp.server.network.AbstractServer.AbstractSocket;
 @NotNullByDefault
 public abstract class AbstractPollers {
 
-    /**
-     * 64 bit to 32 bit Hash Function by Thomas Wang. Released as part of free library by Apple.
-     * 
-     * @see http://www.concentric.net/~ttwang/tech/inthash.htm
-     * @see http://opensource.apple.com/source/JavaScriptCore/JavaScriptCore-521/wtf/HashFunctions.h
-     */
-    private static int hash6432shift(long key) {
-        key = (~key) + (key << 18); // key = (key << 18) - key - 1;
-        key = key ^ (key >>> 31);
-        key = key * 21; // key = (key + (key << 2)) + (key << 4);
-        key = key ^ (key >>> 11);
-        key = key + (key << 6);
-        key = key ^ (key >>> 22);
-        return (int) key;
-    }
+    private static final Log log = LogFactory.getLog(AbstractPollers.class);
+
+    @Autowired
+    private AbstractServer abstractServer;
 
     private final String beanNamePrefix;
 
     @Autowired
     private ApplicationContext context;
 
-    @Autowired
-    private XmppProxyConfiguration xmppProxyConfiguration;
+    private final AtomicLong migrations = new AtomicLong(0);
+
+    private AbstractPoller[] pollers = new AbstractPoller[0];
 
-    private final AbstractPoller[] pollers;
+    /**
+     * Used to choose two random pollers for new socket
+     */
+    private final Random random = new Random();
 
-    private final int segments;
+    @Autowired
+    private XmppProxyConfiguration xmppProxyConfiguration;
 
     public AbstractPollers(String beanNamePrefix) {
         this.beanNamePrefix = beanNamePrefix;
-
-        // only at startup -- do not adjust in runtime
-        this.segments = Runtime.getRuntime().availableProcessors();
-        this.pollers = new AbstractPoller[segments];
     }
 
+    /**
+     * Must be called by socket operations cycle owner only. Pending migration (if any) is applied
+     * here, because socket is not in any poll at the moment.
+     */
     public void addToPollQueue(AbstractSocket socket) {
+        final PollerAssignment assignment = getAssignment(socket);
+
+        final int migrateTo = assignment.migrateTo;
+        if (migrateTo >= 0) {
+            assignment.migrateTo = -1;
+
+            final int from = assignment.index;
+            if (from >= 0 && from != migrateTo) {
+                pollers[from].onSocketUnassigned();
+                pollers[migrateTo].onSocketAssigned();
+                assignment.index = migrateTo;
+                migrations.incrementAndGet();
+
+                if (log.isDebugEnabled()) {
+                    log.debug(socket + " migrated from " + pollers[from] + " to " + pollers[migrateTo]);
+                }
+            }
+        }
+
         getPoller(socket).addToPollQueue(socket);
     }
 
+    /**
+     * Chooses poller for new socket using "power of two choices": the less loaded of two random
+     * pollers. Unlike choosing the least loaded one, doesn't make all concurrently accepted sockets
+     * go to the same poller, and unlike hashing, doesn't let reconnect storms pile up sockets on
+     * few pollers. Pinned sockets are always assigned to their own poller.
+     */
+    private int assign(AbstractSocket socket, PollerAssignment assignment) {
+        synchronized (assignment) {
+            if (assignment.index >= 0) {
+                return assignment.index;
+            }
+
+            int index = getPinnedPoller(socket);
+            if (index < 0 && pollers.length > 1) {
+                final int first = random.nextInt(pollers.length);
+                int second = random.nextInt(pollers.length - 1);
+                if (second >= first) {
+                    second++;
+                }
+                index = pollers[first].getLoad() <= pollers[second].getLoad() ? first : second;
+            } else if (index < 0) {
+                index = 0;
+            }
+
+            pollers[index].onSocketAssigned();
+            assignment.index = index;
+
+            if (log.isTraceEnabled()) {
+                log.trace(socket + " assigned to " + pollers[index]);
+            }
+            return index;
+        }
+    }
+
     @PreDestroy
     public void destroy() {
-        for (int i = 0; i < segments; i++) {
-            pollers[i].stop();
+        for (AbstractPoller poller : pollers) {
+            poller.stop();
         }
     }
 
@@ -76,6 +130,20 @@ public abstract class AbstractPollers {
         return result;
     }
 
+    /**
+     * @return assignment of socket to one of these pollers
+     */
+    protected abstract PollerAssignment getAssignment(AbstractSocket socket);
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getDirectArms() {
+        long result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getDirectArms();
+        }
+        return result;
+    }
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getHangUps() {
         long result = 0;
@@ -94,6 +162,26 @@ public abstract class AbstractPollers {
         return result;
     }
 
+    /**
+     * @return the worst average poll loop latency (in microseconds) among pollers
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public long getMaxLoopLatency() {
+        long result = 0;
+        for (AbstractPoller poller : pollers) {
+            result = Math.max(result, poller.getLoopLatencyMicroseconds());
+        }
+        return result;
+    }
+
+    /**
+     * @return number of sockets migrated from one poller to another
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getMigrations() {
+        return migrations.get();
+    }
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getPendingErrors() {
         long result = 0;
@@ -103,8 +191,95 @@ public abstract class AbstractPollers {
         return result;
     }
 
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getPollQueueDrainedItems() {
+        long result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getPollQueueDrainedItems();
+        }
+        return result;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getPollQueueDrains() {
+        long result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getPollQueueDrains();
+        }
+        return result;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getPollQueueMaxDrainBatch() {
+        int result = 0;
+        for (AbstractPoller poller : pollers) {
+            result = Math.max(result, poller.getPollQueueMaxDrainBatch());
+        }
+        return result;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getPollQueueOverflows() {
+        long result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getPollQueueOverflows();
+        }
+        return result;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getPollQueueSize() {
+        int result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getPollQueueSize();
+        }
+        return result;
+    }
+
+    /**
+     * @return index of poller socket shall live in for its whole life (it is never migrated), or
+     *         <tt>-1</tt> if any poller can be chosen
+     */
+    @SuppressWarnings("unused")
+    protected int getPinnedPoller(AbstractSocket socket) {
+        return -1;
+    }
+
+    AbstractPoller getPoller(int index) {
+        return pollers[index];
+    }
+
+    /**
+     * @return poller socket is assigned to. Socket is assigned to new poller if it wasn't yet.
+     */
     public AbstractPoller getPoller(AbstractSocket socket) {
-        return pollers[getSegmentIndex(socket)];
+        final PollerAssignment assignment = getAssignment(socket);
+        final int index = assignment.index;
+        return pollers[index >= 0 ? index : assign(socket, assignment)];
+    }
+
+    /**
+     * @return number of sockets assigned to each poller
+     */
+    @ManagedAttribute
+    public int[] getPollerAssignedSockets() {
+        final int[] result = new int[pollers.length];
+        for (int i = 0; i < pollers.length; i++) {
+            result[i] = pollers[i].getAssignedSockets();
+        }
+        return result;
+    }
+
+    /**
+     * @return average poll loop latency (in microseconds) of each poller
+     */
+    @ManagedAttribute
+    public long[] getPollerLoopLatencies() {
+        final long[] result = new long[pollers.length];
+        for (int i = 0; i < pollers.length; i++) {
+            result[i] = pollers[i].getLoopLatencyMicroseconds();
+        }
+        return result;
     }
 
     @ManagedMetric(metricType = MetricType.GAUGE)
@@ -125,10 +300,20 @@ public abstract class AbstractPollers {
         return result;
     }
 
-    private int getSegmentIndex(AbstractSocket socket) {
-        return Math.abs(hash6432shift(socket.getSocketId())) % segments;
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getRemoveQueueSize() {
+        int result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getRemoveQueueSize();
+        }
+        return result;
     }
 
+    /**
+     * @return number of pollers to create at startup
+     */
+    protected abstract int getPollersCount();
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getSignals() {
         long result = 0;
@@ -138,6 +323,24 @@ public abstract class AbstractPollers {
         return result;
     }
 
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getTaskQueueSize() {
+        int result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getTaskQueueSize();
+        }
+        return result;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getTasksExecuted() {
+        long result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getTasksExecuted();
+        }
+        return result;
+    }
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getWakeUpCalls() {
         long result = 0;
@@ -156,24 +359,135 @@ public abstract class AbstractPollers {
         return result;
     }
 
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getWakeUpSignalsSent() {
+        long result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getWakeUpSignalsSent();
+        }
+        return result;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getWakeUpSignalsSuppressed() {
+        long result = 0;
+        for (AbstractPoller poller : pollers) {
+            result += poller.getWakeUpSignalsSuppressed();
+        }
+        return result;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public double getWakeUpSignalsSuppressedRatio() {
+        final long sent = getWakeUpSignalsSent();
+        return sent == 0 ? 0 : (double) getWakeUpSignalsSuppressed() / sent;
+    }
+
     @PostConstruct
     public void init() {
+        // only at startup -- do not adjust in runtime
+        final int segments = getPollersCount();
+        if (segments == 0) {
+            return;
+        }
 
         final AutowireCapableBeanFactory autowireCapableBeanFactory = context.getAutowireCapableBeanFactory();
         final int maxConnectionsPerPoller = (xmppProxyConfiguration.getMaxConnections() / segments) + 1;
 
         // so array won't be changed after object initialization
+        final AbstractPoller[] pollers = new AbstractPoller[segments];
         for (int i = 0; i < segments; i++) {
             pollers[i] = newPoller(maxConnectionsPerPoller, i);
             autowireCapableBeanFactory.autowireBean(pollers[i]);
             autowireCapableBeanFactory.initializeBean(pollers[i], beanNamePrefix + i);
         }
+        this.pollers = pollers;
+    }
+
+    /**
+     * Moves up to <tt>maxSockets</tt> sockets from given poller to the least loaded ones. Sockets
+     * are moved next time they are added to poll. Sockets waiting in poll are pulled out of it
+     * using operations cycle (as if some operation is queued), so they are moved almost
+     * immediately. Pinned sockets are not moved.
+     *
+     * @return number of sockets scheduled for migration
+     */
+    @ManagedOperation
+    public int migrateSockets(int pollerIndex, int maxSockets) {
+        if (pollerIndex < 0 || pollerIndex >= pollers.length) {
+            throw new IllegalArgumentException("No such poller: " + pollerIndex);
+        }
+        if (pollers.length < 2) {
+            return 0;
+        }
+
+        // estimated load after migration, so sockets are spread among several pollers
+        final double[] loads = new double[pollers.length];
+        for (int i = 0; i < pollers.length; i++) {
+            loads[i] = pollers[i].getLoad();
+        }
+
+        int migrated = 0;
+        for (AbstractSocket socket : abstractServer.getSocketsInternal()) {
+            if (migrated >= maxSockets) {
+                break;
+            }
+
+            final PollerAssignment assignment = getAssignment(socket);
+            if (socket.isClosed() || assignment.index != pollerIndex || assignment.migrateTo >= 0
+                    || getPinnedPoller(socket) >= 0) {
+                continue;
+            }
+
+            int target = pollerIndex == 0 ? 1 : 0;
+            for (int i = 0; i < loads.length; i++) {
+                if (i != pollerIndex && loads[i] < loads[target]) {
+                    target = i;
+                }
+            }
+            if (loads[target] >= loads[pollerIndex]) {
+                // balanced already
+                break;
+            }
+
+            final double perSocket = loads[pollerIndex] / Math.max(1, pollers[pollerIndex].getAssignedSockets());
+            loads[target] += perSocket;
+            loads[pollerIndex] -= perSocket;
+
+            assignment.migrateTo = target;
+            onMigrationRequested(socket);
+            migrated++;
+        }
+
+        log.info(migrated + " socket(s) scheduled for migration from " + pollers[pollerIndex]);
+        return migrated;
     }
 
     protected abstract AbstractPoller newPoller(int maxConnectionsPerPoller, int pollerIndex);
 
-    void remove(AbstractSocket socket) throws InterruptedException {
-        getPoller(socket).remove(socket);
+    /**
+     * Called after socket is marked to be migrated. By default nothing is done, socket will be
+     * moved next time it is added to poll.
+     */
+    @SuppressWarnings("unused")
+    protected void onMigrationRequested(AbstractSocket socket) {
+        // no default implementation
+    }
+
+    /**
+     * Queues closed socket to be removed from poll asynchronously
+     *
+     * @return <tt>false</tt> if socket was never added to these pollers, so nothing was queued
+     */
+    boolean remove(AbstractSocket socket) {
+        final int index = getAssignment(socket).index;
+        if (index < 0) {
+            return false;
+        }
+
+        pollers[index].onSocketUnassigned();
+        pollers[index].remove(socket);
+        return true;
     }
 
 }
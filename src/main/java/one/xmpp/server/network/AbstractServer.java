@@ -2,12 +2,21 @@ package one.xmpp.server.network;
 
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -17,12 +26,8 @@ import javax.annotation.PreDestroy;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.tomcat.jni.Address;
-import org.apache.tomcat.jni.Error;
-import org.apache.tomcat.jni.Sockaddr;
-import org.apache.tomcat.jni.Socket;
-import org.apache.tomcat.jni.Status;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
@@ -30,9 +35,13 @@ import org.springframework.jmx.support.MetricType;
 import org.springframework.stereotype.Component;
 
 import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
 import one.xmpp.server.XmppProxyConfiguration;
 import one.xmpp.utils.AsyncOperationsExecutor;
 import one.xmpp.utils.CharSequenceUtils;
+import one.xmpp.utils.ConcurrentLongHashMap;
+import one.xmpp.utils.HashedTimingWheel;
+import one.xmpp.utils.HashedTimingWheel.Timeout;
 
 /**
  * Abstract server, not linked to any particular protocol.
@@ -44,109 +53,670 @@ import one.xmpp.utils.CharSequenceUtils;
 @NotNullByDefault
 public abstract class AbstractServer {
 
+    private static final ThreadLocal<GatheringWriteBatch> gatheringWriteBatch = new ThreadLocal<GatheringWriteBatch>() {
+        @Override
+        protected GatheringWriteBatch initialValue() {
+            return new GatheringWriteBatch();
+        }
+    };
+
+    /**
+     * Data of removed write operations, see {@link SocketWriteOpeation#onRemoved()}
+     */
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    /**
+     * Idle timeouts are checked once per second, so sockets are closed within a second after
+     * deadline
+     */
+    private static final long IDLE_TIMEOUTS_TICK = 1000;
+
+    private static final int IDLE_TIMEOUTS_WHEEL_SIZE = 512;
+
     private static final Log log = LogFactory.getLog(AbstractServer.class);
 
-    static {
-        TomcatNativeLibrary.load();
-    }
+    /**
+     * Maximum number of write operations to be sent using single gathering write
+     */
+    private static final int MAX_GATHERING_WRITE_OPERATIONS = 64;
+
+    private static final AtomicIntegerFieldUpdater<SocketWriteOpeation> WRITE_STATE = AtomicIntegerFieldUpdater
+            .newUpdater(SocketWriteOpeation.class, "state");
 
     @Autowired
     private AsyncOperationsExecutor asyncOperationsExecutor;
 
+    private final AtomicLong gatheredWrites = new AtomicLong(0);
+
+    /**
+     * Total time in nanoseconds worker threads spent on completed handshakes
+     */
+    private final AtomicLong handshakeProcessingTime = new AtomicLong(0);
+
+    private final AtomicLong handshakesCompleted = new AtomicLong(0);
+
+    private final AtomicLong handshakesFailed = new AtomicLong(0);
+
+    private final AtomicInteger handshakesInProgress = new AtomicInteger(0);
+
+    /**
+     * Total time in milliseconds from accept to handshake completion of completed handshakes
+     */
+    private final AtomicLong handshakeTime = new AtomicLong(0);
+
+    private final AtomicLong idleTimeoutCloses = new AtomicLong(0);
+
+    /**
+     * Closes sockets without any data read or sent for socket read poll timeout (or waiting for
+     * write readiness longer than socket write poll timeout). Replaces poll TTL, so pollers don't
+     * need to scan their sockets.
+     */
+    private HashedTimingWheel<AbstractSocket> idleTimeouts;
+
+    private final AtomicLong inlineWrites = new AtomicLong(0);
+
+    /**
+     * Reactor of socket created outside of reactor threads, round robin
+     */
+    private final AtomicInteger nextReactor = new AtomicInteger(0);
+
     @Autowired
     private NetworkOperationsLogger opLogger;
 
+    /**
+     * Number of times sockets waiting for write readiness were not read because of queued
+     * outbound bytes (unified polling mode only)
+     */
+    private final AtomicLong outboundReadPauses = new AtomicLong(0);
+
+    private final AtomicLong polledWrites = new AtomicLong(0);
+
+    /**
+     * @see XmppProxyConfiguration#getReactorsCount()
+     */
+    private int reactors;
+
+    /**
+     * Socket doesn't own read buffer, it is borrowed only for the duration of
+     * {@link AbstractSocket#handleCanRead()}
+     */
+    private AdaptiveReadBufferAllocator readBufferAllocator;
+
+    private final AtomicLong readBudgetExhaustions = new AtomicLong(0);
+
+    /**
+     * Read budgets are shifted right by this number of bits, so overloaded server reads less data
+     * per read task. Set by {@link OverloadController}.
+     */
+    private volatile int readBudgetShift = 0;
+
+    private final AtomicLong readCycleReads = new AtomicLong(0);
+
+    private final AtomicLong readCycles = new AtomicLong(0);
+
+    /**
+     * Set while all sockets are kept out of read poll because too many stanzas are in processing
+     */
+    private final AtomicBoolean readPausedGlobally = new AtomicBoolean(false);
+
+    /**
+     * Sockets to resume reading when {@link #readPausedGlobally} is cleared. May contain stale
+     * entries (resumed or closed sockets) that are skipped.
+     */
+    private final ConcurrentLinkedQueue<AbstractSocket> readPausedGloballySockets =
+            new ConcurrentLinkedQueue<AbstractSocket>();
+
+    /**
+     * Sockets kept out of read poll
+     */
+    private final AtomicInteger readPausedSockets = new AtomicInteger(0);
+
+    private final AtomicLong readPauses = new AtomicLong(0);
+
     @Autowired
     private ReadPollers readPollers;
 
     private final AtomicLong receivedBytes = new AtomicLong(0);
 
+    /**
+     * Sockets whose task was rejected by overloaded executor. They are kept out of poll (so their
+     * events are not signalled again and again) until executor has room for them. May contain
+     * stale entries of sockets already resumed by operations cycle request (see
+     * {@link AbstractSocket#rejectedParked}).
+     */
+    private final ConcurrentLinkedQueue<RejectedSocket> rejectedSockets =
+            new ConcurrentLinkedQueue<RejectedSocket>();
+
+    private final AtomicInteger rejectedSocketsParked = new AtomicInteger(0);
+
+    /**
+     * Number of socket tasks rejected by executor (and retried later)
+     */
+    private final AtomicLong rejectedSocketTasks = new AtomicLong(0);
+
     private final AtomicLong sentBytes = new AtomicLong(0);
 
     private final AtomicLong sentPackets = new AtomicLong(0);
 
-    private Map<Long, AbstractSocket> sockets;
+    private final AtomicLong slowConsumerCloses = new AtomicLong(0);
+
+    private final AtomicLong slowConsumerCoalesces = new AtomicLong(0);
+
+    private final AtomicLong slowConsumerDrops = new AtomicLong(0);
+
+    /**
+     * Number of times sockets exceeded outbound high watermark
+     */
+    private final AtomicLong slowConsumers = new AtomicLong(0);
+
+    /**
+     * Open sockets by socket pointer, one table per reactor (or single table if there are no
+     * reactors). Primitive-keyed, so lookups from socket tasks don't box pointers and million
+     * entries don't produce million map nodes.
+     */
+    private ConcurrentLongHashMap<AbstractSocket>[] socketTables;
 
     private volatile boolean stop = false;
 
+    /**
+     * Stanzas in asynchronous processing by all sockets
+     */
+    private final AtomicInteger totalPendingStanzas = new AtomicInteger(0);
+
+    /**
+     * Outbound bytes queued to all sockets
+     */
+    private final AtomicLong totalQueuedWriteBytes = new AtomicLong(0);
+
+    @Autowired
+    private Transport transport;
+
+    /**
+     * @see XmppProxyConfiguration#isUnifiedPolling()
+     */
+    private boolean unifiedPolling;
+
     @Autowired
     private WritePollers writePollers;
 
     @Autowired
     private XmppProxyConfiguration xmppProxyConfiguration;
 
-    void accepted(final long clientSocketPointer, boolean secured) throws Exception {
-        AbstractSocket iSocket = newISocket(clientSocketPointer, secured);
+    /**
+     * Registers batch of accepted sockets. Sockets that can't be registered are closed.
+     *
+     * @param handshake
+     *            handshake to complete before socket data is handled, or <tt>null</tt>. It is
+     *            notified when each of sockets is destroyed.
+     */
+    void accepted(final long[] clientSocketPointers, boolean secured, @Nullable SocketHandshake handshake) {
+        int registered = 0;
+        for (long clientSocketPointer : clientSocketPointers) {
+            AbstractSocket iSocket = null;
+            try {
+                transport.setupAccepted(clientSocketPointer);
+                iSocket = newISocket(clientSocketPointer, secured);
+                if (handshake != null) {
+                    iSocket.startHandshake(handshake);
+                }
+                handleAccepted(iSocket);
+                registered++;
 
-        Socket.optSet(clientSocketPointer, Socket.APR_SO_REUSEADDR, 1);
-        Socket.optSet(clientSocketPointer, Socket.APR_SO_NONBLOCK, 1);
-        Socket.optSet(clientSocketPointer, Socket.APR_TCP_NODELAY, 1);
-        Socket.timeoutSet(clientSocketPointer, 0);
+                if (log.isDebugEnabled()) {
+                    log.debug("Connection from " + iSocket + " accepted");
+                }
+            } catch (Exception exc) {
+                log.error("Socket not accepted: " + exc);
+                if (iSocket != null) {
+                    iSocket.close();
+                } else {
+                    transport.closeAndDestroy(clientSocketPointer);
+                    if (handshake != null) {
+                        handshake.onSocketDestroyed(clientSocketPointer);
+                    }
+                }
+            }
+        }
+
+        log.info("Accepted " + registered + " of " + clientSocketPointers.length + " connection(s). Total "
+                + getActiveSockets() + " sockets.");
+    }
 
-        handleAccepted(iSocket);
+    /**
+     * @return reactor of new socket: the current one if socket is created by reactor thread (i.e.
+     *         accepted by its acceptor thread), otherwise reactors are chosen round robin
+     */
+    private int chooseReactor() {
+        if (reactors == 0) {
+            return 0;
+        }
+
+        final AbstractPoller poller = AbstractPoller.current();
+        if (poller instanceof ReadPoller) {
+            return poller.index;
+        }
+        return (nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors;
+    }
+
+    /**
+     * Sheds sockets with the most queued outbound bytes (usually clients that don't read their
+     * data, or receive more than they can handle), so their queued data is released. Socket tables
+     * are walked in place, without copying them.
+     *
+     * @param minQueuedBytes
+     *            sockets with less queued outbound bytes are not considered
+     * @return number of sockets being closed
+     */
+    int closeHeaviestSockets(int maxCount, long minQueuedBytes) {
+        if (maxCount <= 0) {
+            return 0;
+        }
 
-        log.info("Connection from " + iSocket + " accepted. Total " + sockets.size() + " sockets.");
+        final HeaviestSockets heaviest = new HeaviestSockets(maxCount, minQueuedBytes);
+        for (ConcurrentLongHashMap<AbstractSocket> socketTable : socketTables) {
+            socketTable.forEach(heaviest);
+        }
+
+        int closed = 0;
+        for (HeavySocket heavySocket : heaviest.sockets) {
+            final AbstractSocket socket = heavySocket.socket;
+            try {
+                log.warn("Closing " + socket + " because of overload, " + heavySocket.queuedBytes
+                        + " byte(s) queued");
+                closeOverloaded(socket);
+                closed++;
+            } catch (Exception exc) {
+                // closed concurrently
+                if (log.isDebugEnabled()) {
+                    log.debug("Unable to close " + socket + " because of overload: " + exc);
+                }
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Closes socket chosen to be shed because of server overload. Queued operations (except the
+     * current one) are dropped. Protocol implementation can override the method to notify client
+     * before closing.
+     */
+    protected void closeOverloaded(AbstractSocket socket) {
+        socket.queueClose("overload", true);
+    }
+
+    /**
+     * Closes socket as requested by {@link SlowConsumerPolicy}. Queued operations (except the
+     * current one) are dropped. Protocol implementation can override the method to notify client
+     * before closing.
+     */
+    protected void closeSlowConsumer(AbstractSocket socket) {
+        socket.queueClose("slow-consumer", true);
     }
 
     protected void addToReadPoll(AbstractSocket socket) {
         socket.lastReadPollAddTime = System.currentTimeMillis();
+        socket.pollEvents = Transport.POLLIN;
         readPollers.addToPollQueue(socket);
     }
 
     protected void addToWritePoll(AbstractSocket socket) {
         socket.lastWritePollAddTime = System.currentTimeMillis();
-        writePollers.addToPollQueue(socket);
+        socket.waitingForWrite = true;
+        idleTimeouts.rescheduleIfEarlier(socket.idleTimeout,
+                socket.lastWritePollAddTime + xmppProxyConfiguration.getSocketWritePollTimeout() / 1000);
+        if (unifiedPolling) {
+            if (socket.queuedWriteBytes.get() >= xmppProxyConfiguration.getReadPauseOutboundBytes()) {
+                // don't read more requests until responses are drained
+                outboundReadPauses.incrementAndGet();
+                socket.pollEvents = Transport.POLLOUT;
+            } else {
+                // keep reading while output is drained
+                socket.pollEvents = Transport.POLLIN | Transport.POLLOUT;
+            }
+            readPollers.addToPollQueue(socket);
+        } else {
+            writePollers.addToPollQueue(socket);
+        }
+    }
+
+    /**
+     * Socket signal handlers are called by poller thread. Reactor is the index of signalling
+     * poller: in reactor mode it is the reactor socket belongs to, otherwise it is ignored.
+     */
+    final void canReadAndWriteWithoutBlocking(int reactor, final long clientSocketPointer) {
+        final Executor handshakeExecutor = getHandshakeExecutor(reactor, clientSocketPointer);
+        if (handshakeExecutor != null) {
+            submitHandshakeStep(reactor, clientSocketPointer, handshakeExecutor, new CanReadAndWriteTask(reactor,
+                    clientSocketPointer));
+            return;
+        }
+
+        try {
+            executeSocketTask(reactor, new CanReadAndWriteTask(reactor, clientSocketPointer));
+        } catch (RejectedExecutionException exc) {
+            if (stop) {
+                log.debug("Rejected read and write task scheduling for socket #" + clientSocketPointer
+                        + " because shutdown in progress");
+                return;
+            }
+            onSocketTaskRejected(reactor, clientSocketPointer, "read and write", true);
+        }
     }
 
-    final void canReadWithoutBlocking(final long clientSocketPointer) {
+    final void canReadWithoutBlocking(int reactor, final long clientSocketPointer) {
+        final Executor handshakeExecutor = getHandshakeExecutor(reactor, clientSocketPointer);
+        if (handshakeExecutor != null) {
+            submitHandshakeStep(reactor, clientSocketPointer, handshakeExecutor, new CanReadTask(reactor,
+                    clientSocketPointer));
+            return;
+        }
+
         try {
-            asyncOperationsExecutor.submit(new CanReadTask(clientSocketPointer));
+            executeSocketTask(reactor, new CanReadTask(reactor, clientSocketPointer));
         } catch (RejectedExecutionException exc) {
             if (stop) {
                 log.debug("Rejected read task scheduling for socket #" + clientSocketPointer
                         + " because shutdown in progress");
                 return;
             }
-            throw exc;
+            onSocketTaskRejected(reactor, clientSocketPointer, "read", false);
         }
     }
 
-    final void canWriteWithoutBlocking(final long clientSocketPointer) {
+    final void canWriteWithoutBlocking(int reactor, final long clientSocketPointer) {
         try {
-            asyncOperationsExecutor.submit(new CanWriteTask(clientSocketPointer));
+            executeSocketTask(reactor, new CanWriteTask(reactor, clientSocketPointer));
         } catch (RejectedExecutionException exc) {
             if (stop) {
                 log.debug("Rejected write task scheduling for socket #" + clientSocketPointer
                         + " because shutdown in progress");
                 return;
             }
-            throw exc;
+            onSocketTaskRejected(reactor, clientSocketPointer, "write", true);
         }
     }
 
     @ManagedOperation
     public String dumpSocketInfo(long clientSocketId) {
-        AbstractSocket socket = sockets.get(Long.valueOf(clientSocketId));
-        if (socket == null) {
-            return "no such socket";
+        for (ConcurrentLongHashMap<AbstractSocket> socketTable : socketTables) {
+            final AbstractSocket socket = socketTable.get(clientSocketId);
+            if (socket != null) {
+                return socket.dump();
+            }
+        }
+        return "no such socket";
+    }
+
+    /**
+     * Runs task that registers sockets accepted by acceptor thread. In reactor mode each acceptor
+     * thread of listen address belongs to its own reactor, so sockets are registered by (and live
+     * in) that reactor. If transport doesn't support <tt>SO_REUSEPORT</tt> there is single acceptor
+     * thread per listen address, and accepted batches are spread among reactors round robin.
+     *
+     * @param acceptorIndex
+     *            index of acceptor thread among ones of the same listen address
+     * @throws RejectedExecutionException
+     *             if task can't be queued
+     */
+    void executeAcceptTask(int acceptorIndex, Runnable task) {
+        if (reactors == 0) {
+            executeSocketTask(0, task);
+        } else if (transport.isReusePortSupported()) {
+            executeSocketTask(acceptorIndex % reactors, task);
+        } else {
+            executeSocketTask((nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors, task);
+        }
+    }
+
+    /**
+     * Runs socket task by reactor thread in reactor mode, or by shared worker pool otherwise
+     *
+     * @throws RejectedExecutionException
+     *             if task can't be queued
+     */
+    void executeSocketTask(int reactor, Runnable task) {
+        if (reactors == 0) {
+            asyncOperationsExecutor.submit(task);
+        } else {
+            readPollers.getPoller(reactor).execute(task);
         }
-        return socket.dump();
     }
 
     @ManagedMetric(metricType = MetricType.GAUGE)
     public int getActiveSockets() {
-        return sockets.size();
+        int result = 0;
+        for (ConcurrentLongHashMap<AbstractSocket> socketTable : socketTables) {
+            result += socketTable.size();
+        }
+        return result;
     }
 
     public ISocket[] getActiveSocketsArray(ISocket[] sockets) {
-        return this.sockets.values().toArray(sockets);
+        return getSocketsInternal().toArray(sockets);
+    }
+
+    /**
+     * @return number of socket writes that completed more than one write operation at once
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getGatheredWrites() {
+        return gatheredWrites.longValue();
+    }
+
+    /**
+     * @return average time in microseconds worker threads spent on single completed handshake.
+     *         Resumed SSL sessions take much less than full handshakes.
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public long getHandshakeAverageProcessingTime() {
+        final long completed = handshakesCompleted.get();
+        return completed == 0 ? 0 : handshakeProcessingTime.get() / completed / 1000;
+    }
+
+    /**
+     * @return average time in milliseconds from accept to handshake completion, including network
+     *         round trips
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public long getHandshakeAverageTime() {
+        final long completed = handshakesCompleted.get();
+        return completed == 0 ? 0 : handshakeTime.get() / completed;
+    }
+
+    /**
+     * @return executor socket handshake step shall be run by, or <tt>null</tt> if socket is not
+     *         handshaking or its handshake steps are run by worker threads
+     */
+    @Nullable
+    private Executor getHandshakeExecutor(int reactor, long clientSocketPointer) {
+        if (handshakesInProgress.get() == 0) {
+            // don't look up sockets if there are no handshakes at all
+            return null;
+        }
+
+        final AbstractSocket socket = getSocketTable(reactor).get(clientSocketPointer);
+        if (socket == null) {
+            return null;
+        }
+        final SocketHandshake handshake = socket.handshake;
+        return handshake == null ? null : handshake.getExecutor();
+    }
+
+    /**
+     * @return number of socket handshakes completed successfully
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getHandshakesCompleted() {
+        return handshakesCompleted.longValue();
+    }
+
+    /**
+     * @return number of socket handshakes failed, timed out or aborted by client
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getHandshakesFailed() {
+        return handshakesFailed.longValue();
+    }
+
+    /**
+     * @return number of sockets waiting for handshake to complete
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getHandshakesInProgress() {
+        return handshakesInProgress.get();
+    }
+
+    /**
+     * @return number of sockets closed because of read or write idle timeout
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getIdleTimeoutCloses() {
+        return idleTimeoutCloses.longValue();
+    }
+
+    /**
+     * @return number of sockets with scheduled idle timeout
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getIdleTimeoutsScheduled() {
+        return idleTimeouts.size();
+    }
+
+    /**
+     * @return number of write operations completed by worker thread without waiting for socket to
+     *         become writable
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getInlineWrites() {
+        return inlineWrites.longValue();
+    }
+
+    /**
+     * @return number of write operations that had to wait for socket to become writable (because
+     *         of full socket send buffer or because inline writes are disabled)
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getPolledWrites() {
+        return polledWrites.longValue();
+    }
+
+    /**
+     * @return number of times sockets waiting for write readiness were not read because of queued
+     *         outbound bytes
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getOutboundReadPauses() {
+        return outboundReadPauses.get();
+    }
+
+    /**
+     * @return number of shared-nothing reactors, <tt>0</tt> if sockets are handled by shared
+     *         worker pool
+     */
+    @ManagedAttribute
+    public int getReactorsCount() {
+        return reactors;
+    }
+
+    /**
+     * @return open sockets of all reactors. Use with care.
+     */
+    protected List<AbstractSocket> getSocketsInternal() {
+        if (socketTables.length == 1) {
+            return socketTables[0].values();
+        }
+
+        final List<AbstractSocket> result = new ArrayList<AbstractSocket>(getActiveSockets());
+        for (ConcurrentLongHashMap<AbstractSocket> socketTable : socketTables) {
+            result.addAll(socketTable.values());
+        }
+        return result;
+    }
+
+    /**
+     * @return open sockets of reactor by socket pointer (the only table if there are no reactors)
+     */
+    private ConcurrentLongHashMap<AbstractSocket> getSocketTable(int reactor) {
+        return socketTables[reactors == 0 ? 0 : reactor];
+    }
+
+    protected Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return number of read cycles stopped because socket exceeded bytes or stanzas budget
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getReadBudgetExhaustions() {
+        return readBudgetExhaustions.get();
+    }
+
+    @ManagedAttribute
+    public int getReadBudgetShift() {
+        return readBudgetShift;
+    }
+
+    /**
+     * @return read buffer size classes, see {@link #getReadBufferSizeClassReads()}
+     */
+    @ManagedAttribute
+    public int[] getReadBufferSizeClasses() {
+        return readBufferAllocator.getSizeClasses();
+    }
+
+    /**
+     * @return number of reads made with each of read buffer size classes
+     */
+    @ManagedAttribute
+    public long[] getReadBufferSizeClassReads() {
+        return readBufferAllocator.getReads();
+    }
+
+    /**
+     * @return total size of direct read buffers allocated by worker threads that are still alive
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public long getReadBuffersAllocatedBytes() {
+        return readBufferAllocator.getAllocatedBytes();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getReadCycleReads() {
+        return readCycleReads.get();
+    }
+
+    /**
+     * @return number of read tasks. Each of them performs one or more socket reads.
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getReadCycles() {
+        return readCycles.get();
+    }
+
+    /**
+     * @return number of sockets kept out of read poll because of stanzas in processing
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getReadPausedSockets() {
+        return readPausedSockets.get();
+    }
+
+    /**
+     * @return number of times sockets were kept out of read poll because of stanzas in processing
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getReadPauses() {
+        return readPauses.get();
     }
 
     /**
-     * @return internal array of open sockets. Use with care.
+     * @return average number of successful socket reads per read task
      */
-    protected Map<Long, AbstractSocket> getSocketsInternal() {
-        return this.sockets;
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public double getReadsPerCycle() {
+        final long cycles = readCycles.get();
+        return cycles == 0 ? 0 : (double) readCycleReads.get() / cycles;
     }
 
     @ManagedMetric(metricType = MetricType.COUNTER)
@@ -154,6 +724,25 @@ public abstract class AbstractServer {
         return receivedBytes.longValue();
     }
 
+    /**
+     * @return number of sockets kept out of poll because their tasks were rejected by overloaded
+     *         executor
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getRejectedSocketsParked() {
+        return rejectedSocketsParked.get();
+    }
+
+    /**
+     * @return number of socket tasks rejected by overloaded executor. Sockets are returned to poll
+     *         when executor has room (or operations cycle is retried), so events are delayed, not
+     *         lost.
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getRejectedSocketTasks() {
+        return rejectedSocketTasks.get();
+    }
+
     @ManagedMetric(metricType = MetricType.COUNTER)
     public long getSentBytes() {
         return sentBytes.longValue();
@@ -164,24 +753,197 @@ public abstract class AbstractServer {
         return sentPackets.longValue();
     }
 
+    /**
+     * @return number of slow consumers closed by {@link SlowConsumerPolicy}
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getSlowConsumerCloses() {
+        return slowConsumerCloses.get();
+    }
+
+    /**
+     * @return number of writes to slow consumers that replaced queued data with the same key
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getSlowConsumerCoalesces() {
+        return slowConsumerCoalesces.get();
+    }
+
+    /**
+     * @return number of writes to slow consumers dropped by {@link SlowConsumerPolicy}
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getSlowConsumerDrops() {
+        return slowConsumerDrops.get();
+    }
+
+    /**
+     * @return number of times sockets exceeded outbound high watermark
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getSlowConsumers() {
+        return slowConsumers.get();
+    }
+
+    /**
+     * @return number of stanzas in asynchronous processing by all sockets
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getTotalPendingStanzas() {
+        return totalPendingStanzas.get();
+    }
+
+    /**
+     * @return outbound bytes queued to all sockets
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public long getTotalQueuedWriteBytes() {
+        return totalQueuedWriteBytes.get();
+    }
+
     protected abstract void handleAccepted(AbstractSocket socket);
 
-    void handleHangUp(final long clientSocketPointer) {
-        asyncOperationsExecutor.submit(new OnHangupTask(clientSocketPointer));
+    void handleHangUp(int reactor, final long clientSocketPointer) {
+        try {
+            executeSocketTask(reactor, new OnHangupTask(reactor, clientSocketPointer));
+        } catch (RejectedExecutionException exc) {
+            if (stop) {
+                return;
+            }
+            // hang up will be signalled again
+            onSocketTaskRejected(reactor, clientSocketPointer, "hang up", false);
+        }
     }
 
-    void handleMaintain(final long clientSocketPointer) {
-        asyncOperationsExecutor.submit(new OnMaintainTask(clientSocketPointer));
+    /**
+     * Called by idle timeouts wheel thread. Timeouts are scheduled lazily: deadline is not moved
+     * on each read or write, so expired timeout is rescheduled if socket was active since then.
+     * Sockets that are really idle are closed by single task.
+     */
+    void handleIdleTimeouts(List<Timeout<AbstractSocket>> timeouts) {
+        final long now = System.currentTimeMillis();
+
+        final List<AbstractSocket> expired = new ArrayList<AbstractSocket>();
+        for (Timeout<AbstractSocket> timeout : timeouts) {
+            final AbstractSocket socket = timeout.getItem();
+            if (socket.isClosed()) {
+                continue;
+            }
+
+            final long deadline = socket.getIdleDeadline();
+            if (deadline > now) {
+                idleTimeouts.reschedule(timeout, deadline);
+            } else {
+                expired.add(socket);
+            }
+        }
+
+        if (expired.isEmpty()) {
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(expired.size() + " socket(s) reached idle timeout");
+        }
+
+        try {
+            asyncOperationsExecutor.submit(new OnIdleTimeoutTask(expired));
+        } catch (RejectedExecutionException exc) {
+            if (stop) {
+                log.debug("Rejected idle timeout task scheduling because shutdown in progress");
+                return;
+            }
+
+            rejectedSocketTasks.incrementAndGet();
+            log.warn("Idle timeout task for " + expired.size() + " socket(s) rejected, retrying in "
+                    + IDLE_TIMEOUTS_TICK + " ms");
+            for (AbstractSocket socket : expired) {
+                idleTimeouts.reschedule(socket.idleTimeout, now + IDLE_TIMEOUTS_TICK);
+            }
+        }
     }
 
-    void handlePendingError(final long clientSocketPointer) {
-        asyncOperationsExecutor.submit(new OnPendingErrorTask(clientSocketPointer));
+    void handlePendingError(int reactor, final long clientSocketPointer) {
+        try {
+            executeSocketTask(reactor, new OnPendingErrorTask(reactor, clientSocketPointer));
+        } catch (RejectedExecutionException exc) {
+            if (stop) {
+                return;
+            }
+            onSocketTaskRejected(reactor, clientSocketPointer, "pending error", false);
+        }
     }
 
+    /**
+     * @param readBuffer
+     *            received data. Buffer is shared between sockets and is valid only until method
+     *            returns, so any unprocessed data shall be copied.
+     */
     protected abstract void handleRead(AbstractSocket socket, final ByteBuffer readBuffer);
 
+    /**
+     * @return <tt>true</tt> if socket shall be kept out of read poll because too many stanzas (of
+     *         its own or of all sockets) are in processing
+     */
+    private boolean isReadBackpressured(AbstractSocket socket) {
+        if (readPausedGlobally.get()) {
+            return true;
+        }
+        final int limit = xmppProxyConfiguration.getReadPauseStanzasPerSocket();
+        return limit > 0 && socket.pendingStanzas.get() >= limit;
+    }
+
+    @ManagedAttribute
+    public boolean isReadPausedGlobally() {
+        return readPausedGlobally.get();
+    }
+
     protected abstract AbstractSocket newISocket(final long clientSocketPointer, boolean secured) throws Exception;
 
+    /**
+     * Accounts stanzas processed (or abandoned by closed socket) and resumes reading of all sockets
+     * when half of global stanzas limit is processed
+     */
+    private void onStanzasProcessed(int count) {
+        final int total = totalPendingStanzas.addAndGet(-count);
+        if (readPausedGlobally.get() && total <= xmppProxyConfiguration.getReadPauseStanzas() / 2
+                && readPausedGlobally.compareAndSet(true, false)) {
+            resumeReadingGlobally();
+        }
+    }
+
+    /**
+     * Keeps socket owned by operations cycle out of read poll. Whoever resumes parked socket
+     * (queued operation or processed stanzas) takes ownership of it.
+     *
+     * @return <tt>true</tt> if backpressure was released (or operation was queued) while socket
+     *         was being parked, so caller still owns socket and shall continue operations cycle
+     */
+    private boolean parkReading(AbstractSocket socket) {
+        socket.readPaused.set(true);
+        readPausedSockets.incrementAndGet();
+        readPauses.incrementAndGet();
+        if (readPausedGlobally.get()) {
+            readPausedGloballySockets.add(socket);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Pausing reading " + socket + " with " + socket.pendingStanzas.get() + " stanzas ("
+                    + totalPendingStanzas.get() + " total) in processing");
+        }
+
+        // re-check after flag is set, so concurrent resume is not lost
+        if (socket.isQueueEmpty() && isReadBackpressured(socket)) {
+            return false;
+        }
+        if (!socket.readPaused.compareAndSet(true, false)) {
+            // resumed by another thread already
+            return false;
+        }
+        readPausedSockets.decrementAndGet();
+        return true;
+    }
+
     /**
      * Process (in sync) any previously scheduled operations for socket.
      */
@@ -191,49 +953,62 @@ public abstract class AbstractServer {
             log.trace(socket + " removed from 'stop-polling-queue' set because processSocketOperations() is started");
         }
 
-        SocketOperation socketOperation;
-        do {
+        SocketOperationsQueue.Node node;
+        while (true) {
+            do {
 
-            if (socket.isClosed()) {
-                if (log.isTraceEnabled()) {
-                    log.trace(socket + " is closed. Stop processing.");
+                if (socket.isClosed()) {
+                    if (log.isTraceEnabled()) {
+                        log.trace(socket + " is closed. Stop processing.");
+                    }
+                    return;
                 }
-                return;
-            }
 
-            synchronized (socket.operationsLock) {
-                socketOperation = socket.operations.peekFirst();
-            }
-
-            if (socketOperation != null) {
-                if (log.isTraceEnabled()) {
-                    log.trace("Executing " + socketOperation + " for " + socket);
+                if (socket.urgentClose) {
+                    socket.close();
+                    return;
                 }
 
-                boolean stopCycle = socketOperation.run(socket);
+                socket.applyDropRequest();
+                node = socket.operations.first();
 
-                if (socketOperation.isComplete()) {
-                    // remove from queue
-                    synchronized (socket.operationsLock) {
-                        socket.operations.remove(socketOperation);
+                if (node != null) {
+                    final SocketOperation socketOperation = node.getOperation();
+                    if (log.isTraceEnabled()) {
+                        log.trace("Executing " + socketOperation + " for " + socket);
                     }
-                }
 
-                if (stopCycle) {
-                    if (log.isTraceEnabled()) {
-                        log.trace("Operation " + socketOperation + " asked not to continue operations cycle for "
-                                + socket + " (something is scheduled)");
+                    boolean stopCycle = socketOperation.run(socket);
+
+                    if (socketOperation.isComplete()) {
+                        // unless removed already (like completed write)
+                        socket.operations.removeFirst(node);
+                    }
+
+                    if (stopCycle) {
+                        if (log.isTraceEnabled()) {
+                            log.trace("Operation " + socketOperation + " asked not to continue operations cycle for "
+                                    + socket + " (something is scheduled)");
+                        }
+                        return;
                     }
-                    return;
                 }
+            } while (node != null);
+
+            if (socket.isClosed()) {
+                if (log.isTraceEnabled()) {
+                    log.trace(socket + " is closed. Stop processing.");
+                }
+                return;
             }
-        } while (socketOperation != null);
 
-        if (socket.isClosed()) {
-            if (log.isTraceEnabled()) {
-                log.trace(socket + " is closed. Stop processing.");
+            if (!isReadBackpressured(socket)) {
+                break;
+            }
+            if (!parkReading(socket)) {
+                // parked, or owned by whoever resumed it
+                return;
             }
-            return;
         }
 
         if (log.isTraceEnabled()) {
@@ -244,9 +1019,130 @@ public abstract class AbstractServer {
         return;
     }
 
-    protected void scheduleOperationsCycle(final AbstractSocket iSocket) {
+    /**
+     * Starts operations cycle of socket just taken from parked state. Operations cycle returns
+     * socket to read poll (or parks it again).
+     */
+    private void resumeParked(AbstractSocket socket) {
+        if (socket.isClosed()) {
+            return;
+        }
+        if (scheduleOperationsCycle(socket)) {
+            return;
+        }
+
+        // executor is overloaded: return socket to poll and let read poller retry the cycle
+        addToReadPoll(socket);
+        if (!socket.isQueueEmpty()) {
+            readPollers.addToScheduleOperationsCycle(socket);
+        }
+    }
+
+    /**
+     * Resumes reading of socket if it is parked
+     */
+    private void resumeReading(AbstractSocket socket) {
+        if (!socket.readPaused.compareAndSet(true, false)) {
+            return;
+        }
+        readPausedSockets.decrementAndGet();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Resuming reading " + socket + " with " + socket.pendingStanzas.get() + " stanzas ("
+                    + totalPendingStanzas.get() + " total) in processing");
+        }
+        resumeParked(socket);
+    }
+
+    /**
+     * Resumes reading of sockets parked because of too many stanzas in processing by all sockets.
+     * Sockets still exceeding their own limit are resumed by their own stanzas processing.
+     */
+    private void resumeReadingGlobally() {
+        log.info("Resuming reading with " + totalPendingStanzas.get() + " stanzas in processing");
+
+        final int limit = xmppProxyConfiguration.getReadPauseStanzasPerSocket();
+        AbstractSocket socket;
+        while ((socket = readPausedGloballySockets.poll()) != null) {
+            if (limit <= 0 || socket.pendingStanzas.get() < limit) {
+                resumeReading(socket);
+            }
+        }
+    }
+
+    /**
+     * @return <tt>false</tt> if executor rejected operations cycle, so caller shall retry later
+     *         (socket is still owned by caller)
+     */
+    protected boolean scheduleOperationsCycle(final AbstractSocket iSocket) {
         iSocket.assertNotClosed();
-        asyncOperationsExecutor.submit(new ProcessSocketOperationsTask(iSocket));
+        try {
+            executeSocketTask(iSocket.reactor, new ProcessSocketOperationsTask(iSocket));
+            return true;
+        } catch (RejectedExecutionException exc) {
+            if (stop) {
+                log.debug("Rejected operations cycle scheduling for " + iSocket + " because shutdown in progress");
+                return true;
+            }
+            rejectedSocketTasks.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Called by poller thread if task for signalled socket (that is not in poll anymore) is
+     * rejected by overloaded executor. Socket is parked until {@link #rearmRejectedSockets()}
+     * finds room in executor and returns it to poll, so event is signalled again instead of being
+     * lost, and data waits in socket buffers meanwhile. Returning socket to poll right away would
+     * make poller spin on the same events while executor is full.
+     */
+    private void onSocketTaskRejected(int reactor, long clientSocketPointer, String task, boolean write) {
+        rejectedSocketTasks.incrementAndGet();
+
+        final AbstractSocket socket = getSocketTable(reactor).get(clientSocketPointer);
+        if (socket == null || socket.isClosed()) {
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Rejected " + task + " task for " + socket + ", parking it until executor has room");
+        }
+        socket.rejectedParked.set(true);
+        rejectedSocketsParked.incrementAndGet();
+        rejectedSockets.add(new RejectedSocket(socket, write));
+    }
+
+    /**
+     * Called by read poller threads each loop. Returns sockets parked because of rejected tasks to
+     * poll, as many as executor has room for (reactor task queues are not bounded for reactor's
+     * own sockets, so all of them are returned in reactor mode). Operations queued while socket
+     * was parked are not signalled by poll, so operations cycle is requested for them.
+     */
+    void rearmRejectedSockets() {
+        if (rejectedSockets.isEmpty()) {
+            return;
+        }
+
+        long room = reactors == 0 ? asyncOperationsExecutor.getRemainingCapacity() : Long.MAX_VALUE;
+        RejectedSocket rejected;
+        while (room > 0 && (rejected = rejectedSockets.poll()) != null) {
+            final AbstractSocket socket = rejected.socket;
+            if (!socket.rejectedParked.compareAndSet(true, false)) {
+                // already resumed by operations cycle request or closed
+                continue;
+            }
+            rejectedSocketsParked.decrementAndGet();
+
+            room--;
+            if (rejected.write) {
+                addToWritePoll(socket);
+            } else {
+                addToReadPoll(socket);
+            }
+            if (!socket.isQueueEmpty()) {
+                readPollers.addToScheduleOperationsCycle(socket);
+            }
+        }
     }
 
     protected void scheduleOperationsCycleLater(AbstractSocket socket) {
@@ -255,44 +1151,140 @@ public abstract class AbstractServer {
             return;
         }
 
-        if (log.isTraceEnabled()) {
-            log.trace("Adding " + socket + " to 'stop-polling-queue' set");
+        if (socket.readPaused.compareAndSet(true, false)) {
+            // not in poll, so it can't be stopped by read poller
+            readPausedSockets.decrementAndGet();
+            resumeParked(socket);
+            return;
+        }
+        if (socket.rejectedParked.compareAndSet(true, false)) {
+            // not in poll either, and rearming it won't signal queued operations
+            rejectedSocketsParked.decrementAndGet();
+            resumeParked(socket);
+            return;
+        }
+
+        if (log.isTraceEnabled()) {
+            log.trace("Adding " + socket + " to 'stop-polling-queue' set");
+        }
+
+        readPollers.addToScheduleOperationsCycle(socket);
+    }
+
+    /**
+     * Called by read poller thread. Socket is not in poll, so if step is rejected it is closed by
+     * operations cycle as usual.
+     */
+    private void submitHandshakeStep(int reactor, long clientSocketPointer, Executor executor, Runnable step) {
+        try {
+            executor.execute(step);
+        } catch (RejectedExecutionException exc) {
+            if (stop) {
+                log.debug("Rejected handshake step scheduling for socket #" + clientSocketPointer
+                        + " because shutdown in progress");
+                return;
+            }
+
+            final AbstractSocket socket = getSocketTable(reactor).get(clientSocketPointer);
+            if (socket != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Handshake step for " + socket + " rejected: " + exc);
+                }
+                socket.queueClose("handshake-rejected", true);
+            }
         }
-
-        readPollers.addToScheduleOperationsCycle(socket);
     }
 
     void setAsyncOperationsExecutor(AsyncOperationsExecutor asyncOperationsExecutor) {
         this.asyncOperationsExecutor = asyncOperationsExecutor;
     }
 
+    void setReadBudgetShift(int readBudgetShift) {
+        this.readBudgetShift = readBudgetShift;
+    }
+
     @PostConstruct
+    @SuppressWarnings({ "unchecked", "rawtypes" })
     public void start() {
-        this.sockets = new ConcurrentHashMap<Long, AbstractSocket>(xmppProxyConfiguration.getMaxConnections(),
-                XmppProxyConfiguration.CONCURRENCY_LEVEL);
+        this.reactors = xmppProxyConfiguration.getReactorsCount();
+
+        final int tables = Math.max(1, reactors);
+        this.socketTables = new ConcurrentLongHashMap[tables];
+        for (int i = 0; i < tables; i++) {
+            socketTables[i] = new ConcurrentLongHashMap<AbstractSocket>(xmppProxyConfiguration.getMaxConnections()
+                    / tables + 1, XmppProxyConfiguration.CONCURRENCY_LEVEL);
+        }
+        this.readBufferAllocator = new AdaptiveReadBufferAllocator(xmppProxyConfiguration.getReadBufferMinSize(),
+                xmppProxyConfiguration.getReadBufferMaxSize());
+        // reactor owns single poll
+        this.unifiedPolling = xmppProxyConfiguration.isUnifiedPolling() || reactors > 0;
+
+        if (reactors > 0) {
+            log.info("Starting " + reactors + " reactor(s)");
+        }
+
+        this.idleTimeouts = new HashedTimingWheel<AbstractSocket>("IdleTimeouts", IDLE_TIMEOUTS_TICK,
+                IDLE_TIMEOUTS_WHEEL_SIZE, new HashedTimingWheel.ExpirationListener<AbstractSocket>() {
+                    @Override
+                    public void onExpired(List<Timeout<AbstractSocket>> timeouts) {
+                        handleIdleTimeouts(timeouts);
+                    }
+                });
+        this.idleTimeouts.start();
     }
 
     @PreDestroy
     public void stop() {
         this.stop = true;
+        this.idleTimeouts.stop();
 
-        for (AbstractSocket iSocket : sockets.values()) {
+        for (AbstractSocket iSocket : getSocketsInternal()) {
             iSocket.queueClose("server-stop", true);
         }
     }
 
     protected class AbstractSocket implements ISocket {
 
-        private final long clientSocketPointer;
+        /**
+         * Handshake socket was accepted with, notified when socket is destroyed. Unlike
+         * {@link #handshake} it is not cleared when handshake is completed.
+         */
+        @Nullable
+        private volatile SocketHandshake acceptHandshake = null;
 
-        private final Long clientSockId;
+        private final long clientSocketPointer;
 
         private volatile boolean closed = false;
 
         private AtomicReference<String> closingReasonCode = new AtomicReference<String>(StringUtils.EMPTY);
 
+        /**
+         * The latest queued write of each coalescing key, so coalescing doesn't walk operations
+         * queue. Created by the first write with coalescing key, guarded by itself.
+         */
+        @Nullable
+        private volatile Map<Object, SocketWriteOpeation> coalesceIndex = null;
+
         private final long connectionTime = System.currentTimeMillis();
 
+        /**
+         * Handshake to complete before socket data is read, <tt>null</tt> if there is no one or it
+         * is completed already. Cleared under socket lock.
+         */
+        @Nullable
+        private volatile SocketHandshake handshake = null;
+
+        /**
+         * Time in nanoseconds spent on handshake steps so far. Accessed by operations cycle owner
+         * only.
+         */
+        private long handshakeProcessingNanos = 0;
+
+        /**
+         * Idle timeout handle, scheduled once for socket lifetime and rescheduled lazily
+         */
+        final Timeout<AbstractSocket> idleTimeout;
+
         private long lastCanReadTime;
 
         private long lastCanWriteTime;
@@ -303,16 +1295,44 @@ public abstract class AbstractServer {
 
         private long lastReadPollAddTime;
 
-        private long lastWritePollAddTime;
+        private volatile long lastWritePollAddTime;
 
         /**
          * Socket operations queue. Usefull for writing and other operations. All operations are
          * executed in specified order, if no operations left and socket is not closed -- it is
          * returned to READ poll.
          */
-        protected final LinkedList<SocketOperation> operations = new LinkedList<SocketOperation>();
+        final SocketOperationsQueue operations = new SocketOperationsQueue();
+
+        /**
+         * Set while socket is in read poller's stop-polling-queue. Cleared by whoever starts
+         * operations cycle first, so queue entry can be skipped without searching the queue.
+         */
+        final AtomicBoolean pendingOperationsCycle = new AtomicBoolean(false);
+
+        /**
+         * Number of pollers that shall remove closed socket before it can be destroyed
+         */
+        private final AtomicInteger pendingPollRemovals = new AtomicInteger(0);
 
-        protected final Object operationsLock = new Object();
+        /**
+         * Stanzas in asynchronous processing, <tt>-1</tt> after socket is closed
+         */
+        final AtomicInteger pendingStanzas = new AtomicInteger(0);
+
+        /**
+         * Index of read poller while socket is in its add-to-poll queue, <tt>-1</tt> otherwise.
+         * Cleared by read poller thread when socket is actually added to poll, or when pending add
+         * is cancelled to start operations cycle. Poller index is used instead of flag, so stale
+         * queue entry of the poller socket migrated from can't be mistaken for the actual one.
+         */
+        final AtomicInteger pendingReadPollAdd = new AtomicInteger(-1);
+
+        /**
+         * Events socket shall be polled for by read poller. Always {@link Transport#POLLIN} unless
+         * unified polling mode is enabled.
+         */
+        volatile int pollEvents = Transport.POLLIN;
 
         /**
          * If this flag is set, that means socket is NOT in poll, and not need to be added to
@@ -320,11 +1340,51 @@ public abstract class AbstractServer {
          */
         private volatile boolean processingAsyncOperation = false;
 
-        // 1 Kb read buffer
-        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(1 << 10);
+        /**
+         * Outbound bytes queued and not sent yet
+         */
+        private final AtomicLong queuedWriteBytes = new AtomicLong(0);
+
+        /**
+         * Set if last read was small enough to fit into buffer of previous size class. Accessed
+         * by operations cycle owner only.
+         */
+        boolean readBufferDecreaseNow = false;
+
+        /**
+         * Index of read buffer size class, see {@link AdaptiveReadBufferAllocator}. Accessed by
+         * operations cycle owner only.
+         */
+        byte readBufferSizeClass = 0;
 
         protected final AtomicLong readBytes = new AtomicLong(0);
 
+        /**
+         * Number of stanzas parsed during current read task. Accessed by operations cycle owner
+         * only.
+         */
+        private int readCycleStanzas = 0;
+
+        /**
+         * Set while socket is kept out of read poll (and is not owned by anyone) because too many
+         * stanzas are in processing. Cleared by whoever resumes socket first.
+         */
+        final AtomicBoolean readPaused = new AtomicBoolean(false);
+
+        /**
+         * Reactor socket lives in (and table it is registered in), <tt>0</tt> if there are no
+         * reactors
+         */
+        final int reactor;
+
+        final PollerAssignment readPollerAssignment = new PollerAssignment();
+
+        /**
+         * Set while socket is kept out of any poll (and is not owned by anyone) because its task
+         * was rejected by overloaded executor. Cleared by whoever resumes socket first.
+         */
+        final AtomicBoolean rejectedParked = new AtomicBoolean(false);
+
         /**
          * Client IP address (in numeric address string format)
          */
@@ -334,23 +1394,81 @@ public abstract class AbstractServer {
 
         private final AtomicLong sentBytes = new AtomicLong(0);
 
+        /**
+         * Set if socket exceeded outbound high watermark and didn't drain its queue to low
+         * watermark yet
+         */
+        private final AtomicBoolean slowConsumer = new AtomicBoolean(false);
+
+        /**
+         * Set if socket is being closed by {@link SlowConsumerPolicy}, so further writes (like
+         * stream error) are queued as usual
+         */
+        private final AtomicBoolean slowConsumerClosing = new AtomicBoolean(false);
+
+        /**
+         * Set by {@link #queueClose(String, boolean)} to close socket before any queued operation
+         * is run. Operations cycle owner closes socket, so producers never clear the queue.
+         */
+        volatile boolean urgentClose = false;
+
+        /**
+         * Set while socket waits for write readiness, so write poll timeout is applied
+         */
+        volatile boolean waitingForWrite = false;
+
+        final PollerAssignment writePollerAssignment = new PollerAssignment();
+
         protected AbstractSocket(long clientSock) throws Exception {
-            this.clientSockId = Long.valueOf(clientSock);
             this.clientSocketPointer = clientSock;
 
-            final long socketRemoteAddressPointer = Address.get(Socket.APR_REMOTE, clientSock);
-            final Sockaddr socketAddress = new Sockaddr();
-            if (!Address.fill(socketAddress, socketRemoteAddressPointer)) {
-                throw new UnsupportedOperationException("Socket address for client socket handler #" + clientSock
-                        + " can't be found");
+            final InetSocketAddress remoteAddress = transport.getRemoteAddress(clientSock);
+            this.remotePort = remoteAddress.getPort();
+            this.remoteIp = remoteAddress.getAddress();
+
+            this.reactor = chooseReactor();
+            getSocketTable(reactor).put(clientSocketPointer, this);
+            this.idleTimeout = idleTimeouts.schedule(this, getIdleDeadline());
+        }
+
+        private void addQueuedWriteBytes(long delta) {
+            final long queued = queuedWriteBytes.addAndGet(delta);
+            totalQueuedWriteBytes.addAndGet(delta);
+
+            if (delta < 0 && slowConsumer.get() && queued <= xmppProxyConfiguration.getSocketOutboundLowWatermark()
+                    && slowConsumer.compareAndSet(true, false)) {
+                if (log.isDebugEnabled()) {
+                    log.debug(this + " drained outbound queue to " + queued + " bytes");
+                }
             }
-            this.remotePort = socketAddress.port;
-            this.remoteIp = InetAddress.getByName(Address.getip(socketRemoteAddressPointer));
+        }
 
-            // set internal buffer to be used for all read operations
-            Socket.setrbb(clientSock, readBuffer);
+        /**
+         * Drops operations queued before {@link #dropQueuedOperations()} was called. Called by
+         * operations cycle owner before the next operation is run.
+         */
+        void applyDropRequest() {
+            final SocketOperationsQueue.Node mark = operations.takeDropMark();
+            if (mark == null || mark.removed || mark.dropped) {
+                // everything up to mark is dropped already
+                return;
+            }
 
-            sockets.put(clientSockId, this);
+            SocketOperationsQueue.Node node = operations.first();
+            if (node instanceof SocketWriteOpeation && ((SocketWriteOpeation) node).isClaimed()) {
+                // may be half-sent, dropping it would break the stream
+                if (node == mark) {
+                    return;
+                }
+                node = operations.next(node);
+            }
+            while (node != null) {
+                drop(node);
+                if (node == mark) {
+                    return;
+                }
+                node = operations.next(node);
+            }
         }
 
         protected final void assertNotClosed() {
@@ -359,6 +1477,12 @@ public abstract class AbstractServer {
             }
         }
 
+        /**
+         * Marks socket closed and queues it to be removed from pollers. Doesn't wait for pollers:
+         * socket is natively closed and destroyed by {@link #onRemovedFromPoll()} when the last
+         * poller removed it. Shall be called by operations cycle owner (that consumes operations
+         * queue), other threads shall use {@link #queueClose(String, boolean)}.
+         */
         protected synchronized void close() {
             if (closed) {
                 return;
@@ -371,59 +1495,56 @@ public abstract class AbstractServer {
             // set flag first so noone will try to access it using sockets array
             closed = true;
 
-            try {
-                if (log.isTraceEnabled()) {
-                    log.trace("Removing " + this + " from read poll");
-                }
-                readPollers.remove(this);
-            } catch (Throwable exc) {
-                log.error("Unable to remove " + this + " from read poll: " + exc, exc);
+            if (finishHandshake()) {
+                handshakesFailed.incrementAndGet();
             }
 
-            try {
-                if (log.isTraceEnabled()) {
-                    log.trace("Removing " + this + " from write poll");
-                }
-                writePollers.remove(this);
-            } catch (Throwable exc) {
-                log.error("Unable to remove " + this + " from write poll: " + exc, exc);
+            idleTimeouts.cancel(idleTimeout);
+
+            if (readPaused.compareAndSet(true, false)) {
+                readPausedSockets.decrementAndGet();
+            }
+            if (rejectedParked.compareAndSet(true, false)) {
+                rejectedSocketsParked.decrementAndGet();
+            }
+            final int stanzas = pendingStanzas.getAndSet(-1);
+            if (stanzas > 0) {
+                onStanzasProcessed(stanzas);
             }
 
             try {
                 if (log.isTraceEnabled()) {
                     log.trace("Removing " + this + " from sockets collection");
                 }
-                sockets.remove(clientSockId);
+                getSocketTable(reactor).remove(clientSocketPointer);
             } catch (Throwable exc) {
                 log.error("Unable to remove " + this + " from sockets collection: " + exc, exc);
             }
 
-            try {
-                if (log.isTraceEnabled()) {
-                    log.trace("Nativelly close and destroy " + this);
-                }
-                AprUtils.closeAndDestroySocketSafe(clientSocketPointer);
-            } catch (Throwable exc) {
-                log.error("Unable to nativelly close and destroy " + this + ": " + exc, exc);
-            }
-
             // just for nice logs
             try {
                 if (log.isTraceEnabled()) {
                     log.trace("Cleanup operation queue for " + this);
                 }
-                synchronized (operationsLock) {
-                    operations.clear();
+                operations.close();
+                SocketOperationsQueue.Node node;
+                while ((node = operations.first()) != null) {
+                    drop(node);
+                    operations.removeFirst(node);
                 }
             } catch (Throwable exc) {
                 log.error("Unable to cleanup operation queue for " + this + ": " + exc, exc);
             }
 
-            opLogger.onSocketClose(closingReasonCode.get());
+            // held by this thread, so socket is not destroyed before all removals are queued
+            pendingPollRemovals.set(1);
 
-            if (log.isInfoEnabled()) {
-                log.info("Closed and destroyed " + this);
+            queuePollRemoval(readPollers, "read");
+            if (!unifiedPolling) {
+                queuePollRemoval(writePollers, "write");
             }
+
+            onRemovedFromPoll();
         }
 
         @Override
@@ -453,6 +1574,14 @@ public abstract class AbstractServer {
             dumpImpl(stringBuilder);
 
             stringBuilder.append("\tProcessing async operation flag: \t").append(processingAsyncOperation).append('\n');
+            stringBuilder.append("\tPending read poll add: \t").append(pendingReadPollAdd.get()).append('\n');
+            stringBuilder.append("\tRead poller: \t").append(readPollerAssignment).append('\n');
+            stringBuilder.append("\tWrite poller: \t").append(writePollerAssignment).append('\n');
+            stringBuilder.append("\tPending operations cycle flag: \t").append(pendingOperationsCycle.get()).append('\n');
+            stringBuilder.append("\tPoll events: \t").append(pollEvents).append('\n');
+            stringBuilder.append("\tWaiting for write flag: \t").append(waitingForWrite).append('\n');
+            stringBuilder.append("\tHandshake: \t").append(handshake).append('\n');
+            stringBuilder.append("\tRead buffer size class: \t").append(readBufferSizeClass).append('\n');
             stringBuilder.append("\tOperations queue: \t").append(operations).append('\n');
 
             return stringBuilder.toString();
@@ -467,11 +1596,43 @@ public abstract class AbstractServer {
             return clientSocketPointer;
         }
 
+        private Map<Object, SocketWriteOpeation> getCoalesceIndex() {
+            Map<Object, SocketWriteOpeation> index = coalesceIndex;
+            if (index == null) {
+                synchronized (this) {
+                    index = coalesceIndex;
+                    if (index == null) {
+                        index = new HashMap<Object, SocketWriteOpeation>(4);
+                        coalesceIndex = index;
+                    }
+                }
+            }
+            return index;
+        }
+
         @Override
         public long getConnectionTime() {
             return connectionTime;
         }
 
+        /**
+         * @return time when socket shall be closed if there is no activity till then
+         */
+        long getIdleDeadline() {
+            final SocketHandshake currentHandshake = handshake;
+            if (currentHandshake != null) {
+                return connectionTime + currentHandshake.getTimeout();
+            }
+
+            final long readDeadline = Math.max(lastDataReadTime.get(), lastDataSentTime.get())
+                    + xmppProxyConfiguration.getSocketReadPollTimeout() / 1000;
+            if (!waitingForWrite) {
+                return readDeadline;
+            }
+            return Math.min(readDeadline, lastWritePollAddTime + xmppProxyConfiguration.getSocketWritePollTimeout()
+                    / 1000);
+        }
+
         @Override
         public long getLastDataReadTime() {
             return lastDataReadTime.get();
@@ -498,135 +1659,394 @@ public abstract class AbstractServer {
             return clientSocketPointer;
         }
 
+        /**
+         * Replaces data of the latest queued write with the same coalescing key, if it is still
+         * the last queued operation. Otherwise other data (e.g. messages of the same sender) is
+         * queued after it, and replacing would send new data ahead of them, so data of the latest
+         * write is dropped instead, and new data shall be queued as usual. Writes already claimed
+         * by operations cycle may be being sent right now, so they are neither replaced nor
+         * dropped.
+         *
+         * @return <tt>false</tt> if data shall be queued
+         */
+        private boolean coalesce(ByteBuffer data, @Nullable Object coalesceKey) {
+            final Map<Object, SocketWriteOpeation> index = coalesceIndex;
+            if (coalesceKey == null || index == null) {
+                return false;
+            }
+
+            final boolean tail;
+            final int replaced;
+            synchronized (index) {
+                final SocketWriteOpeation latest = index.get(coalesceKey);
+                if (latest == null) {
+                    return false;
+                }
+                tail = operations.isTail(latest);
+                replaced = latest.replace(tail ? data : EMPTY_BUFFER);
+                if (!tail && replaced >= 0) {
+                    // so it is not dropped again before new data is queued
+                    index.remove(coalesceKey);
+                }
+            }
+            if (replaced < 0) {
+                return false;
+            }
+            if (!tail) {
+                slowConsumerCoalesces.incrementAndGet();
+                addQueuedWriteBytes(-replaced);
+                return false;
+            }
+            addQueuedWriteBytes(data.remaining() - replaced);
+            return true;
+        }
+
+        /**
+         * Performs next handshake step. Called by read task owning socket. If handshake would block,
+         * socket is returned to read poll by operations cycle as usual.
+         *
+         * @return <tt>true</tt> if handshake is completed (or there is no one), so socket data can
+         *         be read
+         */
+        boolean continueHandshake() {
+            final SocketHandshake currentHandshake = handshake;
+            if (currentHandshake == null) {
+                return true;
+            }
+
+            final boolean completed;
+            final long stepStart = System.nanoTime();
+            try {
+                completed = currentHandshake.step(clientSocketPointer);
+            } catch (Exception exc) {
+                if (finishHandshake()) {
+                    handshakesFailed.incrementAndGet();
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Handshake failed for " + this + ": " + exc);
+                }
+                queueClose("handshake-failed", true);
+                return false;
+            } finally {
+                handshakeProcessingNanos += System.nanoTime() - stepStart;
+            }
+
+            if (!completed) {
+                return false;
+            }
+
+            if (finishHandshake()) {
+                handshakeProcessingTime.addAndGet(handshakeProcessingNanos);
+                handshakeTime.addAndGet(System.currentTimeMillis() - connectionTime);
+                handshakesCompleted.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("Handshake completed for " + this);
+                }
+            }
+            // idle timeout (scheduled at handshake deadline) is rescheduled lazily
+            return !closed;
+        }
+
+        /**
+         * @return <tt>false</tt> if handshake was finished (or closed) already
+         */
+        private synchronized boolean finishHandshake() {
+            if (handshake == null) {
+                return false;
+            }
+            handshake = null;
+            handshakesInProgress.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * Reads and handles data until socket would block, or until socket exceeds bytes or
+         * stanzas budget (so it can't starve other sockets), or until some non-write operation
+         * (like stream restart or close) is queued and shall be processed before reading further
+         * data.
+         */
         void handleCanRead() {
-            readBuffer.clear();
+            final int shift = readBudgetShift;
+            final int budgetBytes = Math.max(1, xmppProxyConfiguration.getReadBudgetBytes() >> shift);
+            final int budgetStanzas = Math.max(1, xmppProxyConfiguration.getReadBudgetStanzas() >> shift);
 
-            // just to be sure it still set
-            Socket.optSet(clientSocketPointer, Socket.APR_SO_NONBLOCK, 1);
-            Socket.timeoutSet(clientSocketPointer, 1000);
+            int reads = 0;
+            int readTotal = 0;
+            readCycleStanzas = 0;
+            try {
+                while (true) {
+                    final int capacity = readBufferAllocator.borrow(this).capacity();
+                    final int read = readOnce();
+                    if (read <= 0) {
+                        return;
+                    }
 
-            int read = Socket.recvbb(clientSocketPointer, 0, readBuffer.capacity());
+                    reads++;
+                    readTotal += read;
 
-            if (read == 0) {
-                opLogger.onSocketReadZeroBytes();
-                log.info("Socket::read for " + this + " returned 0. Closing it");
-                this.queueClose("read-zero", true);
-                return;
+                    if (read < capacity) {
+                        // socket is drained, don't waste syscall for would-block result
+                        return;
+                    }
+
+                    if (closed || hasQueuedNonWriteOperations()) {
+                        return;
+                    }
+
+                    if (readTotal >= budgetBytes || readCycleStanzas >= budgetStanzas) {
+                        readBudgetExhaustions.incrementAndGet();
+                        return;
+                    }
+                }
+            } finally {
+                readCycles.incrementAndGet();
+                readCycleReads.addAndGet(reads);
             }
+        }
 
-            if (read < 0) {
-                opLogger.onSocketReadError(-read);
+        int handleCanWrite() {
+            final GatheringWriteBatch batch = gatheringWriteBatch.get();
+            try {
+                final int toSend = batch.collect(this, xmppProxyConfiguration.getSocketMaxWriteBytes());
+                if (batch.count == 0) {
+                    if (batch.coalesced) {
+                        // nothing left to send, operations cycle continues with the next operation
+                        return 0;
+                    }
+                    throw new IllegalStateException("Queued operation is not SocketWriteOpeation");
+                }
 
-                if (-read == Status.TIMEUP) {
-                    // need to return back to poller
-                    return;
+                if (log.isTraceEnabled()) {
+                    log.trace("Sending " + toSend + " bytes from " + batch.count + " buffer(s) to " + this);
                 }
 
-                log.warn("Socket::read returned " + read + " for " + this + " (" + Error.strerror(-read)
-                        + "). Closing it.");
-                this.queueClose("read-error" + read, true);
-                return;
+                int sent = transport.write(clientSocketPointer, batch.buffers, batch.count);
+
+                if (sent == 0) {
+                    opLogger.onSocketWriteZeroBytes();
+                }
+
+                if (sent < 0) {
+                    opLogger.onSocketWriteError(-sent);
+
+                    if (transport.isWouldBlock(-sent)) {
+                        // socket send buffer is full, need to wait for write poller
+                        return 0;
+                    }
+
+                    log.error("Unable to sent data to " + this + ", " + transport.getErrorDescription(-sent));
+                    queueClose("sent-error" + sent, true);
+                    return sent;
+                }
+
+                opLogger.onSocketWriteBytes(sent);
+
+                if (log.isTraceEnabled()) {
+                    log.trace("Sent " + sent + " bytes to " + this);
+                }
+
+                if (sent > 0) {
+                    this.sentBytes.addAndGet(sent);
+                    AbstractServer.this.sentBytes.addAndGet(sent);
+                    updateLastDataSentTime();
+
+                    final int completed = batch.retire(this, sent);
+                    sentPackets.addAndGet(completed);
+                    if (completed > 1) {
+                        gatheredWrites.incrementAndGet();
+                    }
+                }
+
+                return sent;
+            } finally {
+                batch.clear();
             }
+        }
 
-            opLogger.onSocketReadBytes(read);
+        /**
+         * Marks operation as dropped, so it is skipped by operations cycle. Called by operations
+         * cycle owner.
+         */
+        private void drop(SocketOperationsQueue.Node node) {
+            if (node.dropped) {
+                return;
+            }
+            node.dropped = true;
+            if (node instanceof SocketWriteOpeation) {
+                final SocketWriteOpeation writeOperation = (SocketWriteOpeation) node;
+                writeOperation.claim();
+                addQueuedWriteBytes(-writeOperation.byteBuffer.remaining());
+            }
+        }
 
-            readBuffer.position(0);
-            readBuffer.limit(read);
+        /**
+         * Drops all operations queued so far, except the first one, that may be running (like
+         * half-sent write) right now. Operations are dropped by operations cycle before the next
+         * one is run, so operations queued after this call are not affected.
+         */
+        protected void dropQueuedOperations() {
+            operations.requestDrop();
+        }
 
-            if (log.isTraceEnabled()) {
-                log.trace("Received " + read + " bytes from " + this);
-                if (read > 0) {
-                    log.trace("\t'" + CharSequenceUtils.decodeFromUtf8Safe(readBuffer) + "'");
+        /**
+         * Called by operations cycle owner
+         */
+        private boolean hasQueuedNonWriteOperations() {
+            if (urgentClose) {
+                return true;
+            }
+            for (SocketOperationsQueue.Node node = operations.first(); node != null; node = operations.next(node)) {
+                if (!node.dropped && !(node instanceof SocketWriteOpeation)) {
+                    return true;
                 }
             }
+            return false;
+        }
 
-            AbstractServer.this.receivedBytes.addAndGet(read);
-            this.readBytes.addAndGet(read);
-            updateLastDataReadTime();
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
 
-            handleRead(this, readBuffer);
+        @Override
+        public boolean isQueueEmpty() {
+            return operations.isEmpty();
         }
 
-        int handleCanWrite() {
-            // extract WriteOperation from queue
-            SocketOperation socketOperation = peekFirstSocketOperation();
-            if (!(socketOperation instanceof SocketWriteOpeation)) {
-                throw new IllegalStateException("Queued operation is not SocketWriteOpeation");
+        /**
+         * Queues write, indexing it by coalescing key (if any). Queue order and index are updated
+         * together, so index always refers to the latest write of the key.
+         *
+         * @return <tt>false</tt> if socket is closed already
+         */
+        private boolean offerWrite(SocketWriteOpeation operation) {
+            final Object coalesceKey = operation.coalesceKey;
+            if (coalesceKey == null) {
+                return operations.offer(operation);
             }
 
-            final ByteBuffer byteBuffer = ((SocketWriteOpeation) socketOperation).byteBuffer;
-            final int position = byteBuffer.position();
-            final int remaining = byteBuffer.remaining();
-            final int toSend = Math.min(remaining, xmppProxyConfiguration.getSocketMaxWriteBytes());
+            final Map<Object, SocketWriteOpeation> index = getCoalesceIndex();
+            synchronized (index) {
+                if (!operations.offer(operation)) {
+                    return false;
+                }
+                index.put(coalesceKey, operation);
+                return true;
+            }
+        }
 
-            if (log.isTraceEnabled()) {
-                log.trace("Sending " + toSend + " bytes of (" + remaining + ") from " + byteBuffer + " to " + this);
+        /**
+         * Called by consumer when write with coalescing key is removed from operations queue
+         */
+        void onCoalesceableWriteRemoved(SocketWriteOpeation operation) {
+            final Map<Object, SocketWriteOpeation> index = coalesceIndex;
+            if (index == null) {
+                return;
+            }
+            synchronized (index) {
+                if (index.get(operation.coalesceKey) == operation) {
+                    index.remove(operation.coalesceKey);
+                }
             }
+        }
 
-            // just to be sure it still set
-            Socket.optSet(clientSocketPointer, Socket.APR_SO_NONBLOCK, 1);
-            Socket.timeoutSet(clientSocketPointer, 1000);
-
-            int sent;
-            if (byteBuffer.isDirect()) {
-                sent = Socket.sendb(clientSocketPointer, byteBuffer, position, toSend);
-            } else {
-                sent = Socket.send(clientSocketPointer, byteBuffer.array(), position, toSend);
+        /**
+         * Called by poller thread after closed socket is removed from its poll (and by closing
+         * thread itself). The last caller natively closes and destroys socket.
+         */
+        void onRemovedFromPoll() {
+            if (pendingPollRemovals.decrementAndGet() != 0) {
+                return;
             }
 
-            if (sent == 0) {
-                opLogger.onSocketWriteZeroBytes();
+            try {
+                if (log.isTraceEnabled()) {
+                    log.trace("Nativelly close and destroy " + this);
+                }
+                transport.closeAndDestroy(clientSocketPointer);
+            } catch (Throwable exc) {
+                log.error("Unable to nativelly close and destroy " + this + ": " + exc, exc);
             }
 
-            if (sent < 0) {
-                opLogger.onSocketWriteError(-sent);
-
-                log.error("Unable to sent data to " + this + ", error #" + (-sent) + ": " + Error.strerror(-sent));
-                queueClose("sent-error" + sent, true);
-                return sent;
+            final SocketHandshake acceptHandshake = this.acceptHandshake;
+            if (acceptHandshake != null) {
+                acceptHandshake.onSocketDestroyed(clientSocketPointer);
             }
 
-            opLogger.onSocketWriteBytes(sent);
+            opLogger.onSocketClose(closingReasonCode.get());
 
-            if (log.isTraceEnabled()) {
-                log.trace("Sent " + sent + " bytes to " + this);
+            if (log.isInfoEnabled()) {
+                log.info("Closed and destroyed " + this);
             }
+        }
 
-            if (sent > 0) {
-                this.sentBytes.addAndGet(sent);
-                AbstractServer.this.sentBytes.addAndGet(sent);
-                updateLastDataSentTime();
-
-                byteBuffer.position(position + sent);
-            }
+        /**
+         * Shall be called when stanza handed off by {@link #onStanzaProcessingStarted()} is
+         * processed. Socket is returned to read poll when half of its stanzas limit is processed.
+         */
+        public void onStanzaProcessingCompleted() {
+            int stanzas;
+            do {
+                stanzas = pendingStanzas.get();
+                if (stanzas <= 0) {
+                    // closed already (and accounted), or not started
+                    return;
+                }
+            } while (!pendingStanzas.compareAndSet(stanzas, stanzas - 1));
 
-            if (byteBuffer.remaining() == 0) {
-                // task complete
-                synchronized (operationsLock) {
-                    operations.remove(socketOperation);
+            if (readPaused.get() && stanzas - 1 <= xmppProxyConfiguration.getReadPauseStanzasPerSocket() / 2) {
+                if (readPausedGlobally.get()) {
+                    readPausedGloballySockets.add(this);
+                }
+                // re-check after socket is queued, so concurrent global resume is not lost
+                if (!readPausedGlobally.get()) {
+                    resumeReading(this);
                 }
-                sentPackets.incrementAndGet();
             }
 
-            return sent;
+            onStanzasProcessed(1);
         }
 
-        @Override
-        public boolean isClosed() {
-            return closed;
-        }
+        /**
+         * Shall be called by protocol implementation when stanza is handed off to be processed
+         * asynchronously (by another thread or remote service). Socket is kept out of read poll
+         * while it has too many stanzas in processing, see
+         * {@link XmppProxyConfiguration#getReadPauseStanzasPerSocket()} and
+         * {@link XmppProxyConfiguration#getReadPauseStanzas()}. Each call shall be followed by
+         * {@link #onStanzaProcessingCompleted()}.
+         */
+        public void onStanzaProcessingStarted() {
+            int stanzas;
+            do {
+                stanzas = pendingStanzas.get();
+                if (stanzas < 0) {
+                    return;
+                }
+            } while (!pendingStanzas.compareAndSet(stanzas, stanzas + 1));
 
-        @Override
-        public boolean isQueueEmpty() {
-            synchronized (operationsLock) {
-                return operations.isEmpty();
+            final int limit = xmppProxyConfiguration.getReadPauseStanzas();
+            if (totalPendingStanzas.incrementAndGet() >= limit && limit > 0
+                    && readPausedGlobally.compareAndSet(false, true)) {
+                log.warn("Pausing reading of all sockets with " + totalPendingStanzas.get() + " stanzas in processing");
             }
         }
 
+        /**
+         * Shall be called by protocol implementation for each parsed stanza, so socket read cycle
+         * can be limited by stanzas budget
+         */
+        protected void onStanzaRead() {
+            readCycleStanzas++;
+        }
+
+        /**
+         * Called by operations cycle owner
+         */
+        @Nullable
         private SocketOperation peekFirstSocketOperation() {
-            synchronized (operationsLock) {
-                return operations.peekFirst();
-            }
+            applyDropRequest();
+            final SocketOperationsQueue.Node node = operations.first();
+            return node == null ? null : node.getOperation();
         }
 
         @Override
@@ -648,22 +2068,49 @@ public abstract class AbstractServer {
                 log.trace("Queue operation for " + this + ": " + operation);
             }
 
-            synchronized (operationsLock) {
-                if (next) {
-                    operations.clear();
-                }
-                operations.add(operation);
+            if (next) {
+                // queued operations are dropped by operations cycle
+                urgentClose = true;
+            }
+            if (!operations.offer(operation)) {
+                // closed already
+                return;
             }
 
             scheduleOperationsCycleLater(this);
         }
 
+        private void queuePollRemoval(AbstractPollers pollers, String pollName) {
+            pendingPollRemovals.incrementAndGet();
+            try {
+                if (log.isTraceEnabled()) {
+                    log.trace("Removing " + this + " from " + pollName + " poll");
+                }
+                if (pollers.remove(this)) {
+                    return;
+                }
+            } catch (Throwable exc) {
+                log.error("Unable to remove " + this + " from " + pollName + " poll: " + exc, exc);
+            }
+            // nothing to wait for
+            onRemovedFromPoll();
+        }
+
         @Override
         public void queueWrite(ByteBuffer data) {
             queueWriteImpl(data.duplicate());
         }
 
         protected void queueWriteImpl(ByteBuffer data) {
+            queueWriteImpl(data, null);
+        }
+
+        /**
+         * @param coalesceKey
+         *            key of droppable data, newer data with the same key makes older one obsolete
+         *            (like presence of the same contact); <tt>null</tt> if data can't be dropped
+         */
+        protected void queueWriteImpl(ByteBuffer data, @Nullable Object coalesceKey) {
             assertNotClosed();
 
             if (data.remaining() <= 0) {
@@ -681,7 +2128,104 @@ public abstract class AbstractServer {
                 }
             }
 
-            queue(new SocketWriteOpeation(data));
+            final int bytes = data.remaining();
+
+            SlowConsumerPolicy.Action action = SlowConsumerPolicy.Action.QUEUE;
+            if (!slowConsumerClosing.get()) {
+                // single big write is queued as usual, it's the queue that shall not grow further
+                if (!slowConsumer.get()
+                        && queuedWriteBytes.get() >= xmppProxyConfiguration.getSocketOutboundHighWatermark()
+                        && slowConsumer.compareAndSet(false, true)) {
+                    slowConsumers.incrementAndGet();
+                }
+
+                if (slowConsumer.get()) {
+                    action = xmppProxyConfiguration.getSlowConsumerPolicy().onWrite(this, coalesceKey != null);
+                    if (action == SlowConsumerPolicy.Action.COALESCE && !coalesce(data, coalesceKey)) {
+                        action = SlowConsumerPolicy.Action.QUEUE;
+                    } else if (action == SlowConsumerPolicy.Action.CLOSE
+                            && !slowConsumerClosing.compareAndSet(false, true)) {
+                        // closing by another thread already
+                        action = SlowConsumerPolicy.Action.QUEUE;
+                    }
+                }
+            }
+
+            switch (action) {
+            case QUEUE:
+                // before write is visible, so operations cycle doesn't make counters negative
+                addQueuedWriteBytes(bytes);
+                if (!offerWrite(new SocketWriteOpeation(this, data, coalesceKey))) {
+                    // closed already
+                    addQueuedWriteBytes(-bytes);
+                    break;
+                }
+                scheduleOperationsCycleLater(this);
+                break;
+            case COALESCE:
+                slowConsumerCoalesces.incrementAndGet();
+                break;
+            case DROP:
+                slowConsumerDrops.incrementAndGet();
+                break;
+            case CLOSE:
+                slowConsumerCloses.incrementAndGet();
+                log.info("Closing " + this + " as slow consumer, " + queuedWriteBytes.get() + " bytes queued");
+                closeSlowConsumer(this);
+                break;
+            }
+        }
+
+        /**
+         * @return number of bytes read and handled, or <tt>0</tt> if nothing was read (socket
+         *         would block or is closing)
+         */
+        private int readOnce() {
+            final ByteBuffer readBuffer = readBufferAllocator.borrow(this);
+            readBuffer.clear();
+
+            int read = transport.read(clientSocketPointer, readBuffer, 0, readBuffer.capacity());
+
+            if (read == 0) {
+                opLogger.onSocketReadZeroBytes();
+                log.info("Socket::read for " + this + " returned 0. Closing it");
+                this.queueClose("read-zero", true);
+                return 0;
+            }
+
+            if (read < 0) {
+                opLogger.onSocketReadError(-read);
+
+                if (transport.isWouldBlock(-read)) {
+                    // need to return back to poller
+                    return 0;
+                }
+
+                log.warn("Socket::read returned " + read + " for " + this + " ("
+                        + transport.getErrorDescription(-read) + "). Closing it.");
+                this.queueClose("read-error" + read, true);
+                return 0;
+            }
+
+            opLogger.onSocketReadBytes(read);
+            readBufferAllocator.onRead(this, read);
+
+            readBuffer.position(0);
+            readBuffer.limit(read);
+
+            if (log.isTraceEnabled()) {
+                log.trace("Received " + read + " bytes from " + this);
+                if (read > 0) {
+                    log.trace("\t'" + CharSequenceUtils.decodeFromUtf8Safe(readBuffer) + "'");
+                }
+            }
+
+            AbstractServer.this.receivedBytes.addAndGet(read);
+            this.readBytes.addAndGet(read);
+            updateLastDataReadTime();
+
+            handleRead(this, readBuffer);
+            return read;
         }
 
         public void setClosingReasonCode(String closingReasonCode) {
@@ -689,6 +2233,18 @@ public abstract class AbstractServer {
             this.closingReasonCode.compareAndSet(StringUtils.EMPTY, closingReasonCode);
         }
 
+        /**
+         * Called before socket is added to poll for the first time. Socket data is not read until
+         * handshake is completed, and socket is closed if it is not completed in time.
+         */
+        synchronized void startHandshake(SocketHandshake handshake) {
+            assertNotClosed();
+            this.acceptHandshake = handshake;
+            this.handshake = handshake;
+            handshakesInProgress.incrementAndGet();
+            idleTimeouts.reschedule(idleTimeout, getIdleDeadline());
+        }
+
         @Override
         public String toString() {
             return "ISocketImpl [#" + clientSocketPointer + "; " + getRemoteIp() + ":" + getRemotePort() + "]";
@@ -709,7 +2265,13 @@ public abstract class AbstractServer {
 
         protected final long clientSocketPointer;
 
-        private AbstractSocketTask(long clientSocketPointer) {
+        /**
+         * Reactor socket belongs to, see {@link AbstractServer#getSocketTable(int)}
+         */
+        private final int reactor;
+
+        private AbstractSocketTask(int reactor, long clientSocketPointer) {
+            this.reactor = reactor;
             this.clientSocketPointer = clientSocketPointer;
         }
 
@@ -719,7 +2281,7 @@ public abstract class AbstractServer {
                 log.trace("Executing " + this);
             }
 
-            final AbstractSocket socket = sockets.get(Long.valueOf(clientSocketPointer));
+            final AbstractSocket socket = getSocketTable(reactor).get(clientSocketPointer);
             if (socket == null) {
                 log.warn("Not processing " + this + ", referenced Socket object not found (seems already closed)");
                 return;
@@ -746,14 +2308,53 @@ public abstract class AbstractServer {
 
     }
 
+    /**
+     * Unified polling mode only: socket is both readable and writable. Pending output is written
+     * first, then socket is read, so single task owns socket as usual.
+     */
+    private final class CanReadAndWriteTask extends AbstractSocketTask {
+
+        private CanReadAndWriteTask(int reactor, long clientSocketPointer) {
+            super(reactor, clientSocketPointer);
+        }
+
+        @Override
+        protected void run(AbstractSocket socket) throws Exception {
+            socket.waitingForWrite = false;
+            if (!socket.continueHandshake()) {
+                return;
+            }
+
+            if (socket.peekFirstSocketOperation() instanceof SocketWriteOpeation) {
+                socket.lastCanWriteTime = System.currentTimeMillis();
+                if (socket.handleCanWrite() < 0) {
+                    // closing already
+                    return;
+                }
+            }
+
+            socket.lastCanReadTime = System.currentTimeMillis();
+            socket.handleCanRead();
+        }
+
+        @Override
+        public String toString() {
+            return "CanReadAndWriteTask [" + clientSocketPointer + "]";
+        }
+    }
+
     private final class CanReadTask extends AbstractSocketTask {
 
-        private CanReadTask(long clientSocketPointer) {
-            super(clientSocketPointer);
+        private CanReadTask(int reactor, long clientSocketPointer) {
+            super(reactor, clientSocketPointer);
         }
 
         @Override
         protected void run(AbstractSocket socket) throws Exception {
+            if (!socket.continueHandshake()) {
+                return;
+            }
+
             socket.lastCanReadTime = System.currentTimeMillis();
             socket.handleCanRead();
         }
@@ -766,12 +2367,13 @@ public abstract class AbstractServer {
 
     private final class CanWriteTask extends AbstractSocketTask {
 
-        private CanWriteTask(long clientSocketPointer) {
-            super(clientSocketPointer);
+        private CanWriteTask(int reactor, long clientSocketPointer) {
+            super(reactor, clientSocketPointer);
         }
 
         @Override
         protected void run(AbstractSocket socket) throws Exception {
+            socket.waitingForWrite = false;
             socket.lastCanWriteTime = System.currentTimeMillis();
             socket.handleCanWrite();
         }
@@ -782,10 +2384,158 @@ public abstract class AbstractServer {
         }
     }
 
+    /**
+     * Consecutive write operations from the head of socket operations queue, to be sent using
+     * single gathering write. One instance per worker thread.
+     */
+    private static final class GatheringWriteBatch {
+
+        final ByteBuffer[] buffers = new ByteBuffer[MAX_GATHERING_WRITE_OPERATIONS];
+
+        /**
+         * Set if write operations with data dropped by coalescing were skipped
+         */
+        boolean coalesced = false;
+
+        int count = 0;
+
+        final SocketWriteOpeation[] operations = new SocketWriteOpeation[MAX_GATHERING_WRITE_OPERATIONS];
+
+        void clear() {
+            // to remove links to buffers
+            Arrays.fill(buffers, 0, count, null);
+            Arrays.fill(operations, 0, count, null);
+            count = 0;
+            coalesced = false;
+        }
+
+        /**
+         * @return number of bytes to send
+         */
+        int collect(AbstractSocket socket, int maxBytes) {
+            socket.applyDropRequest();
+
+            final SocketOperationsQueue queue = socket.operations;
+            int total = 0;
+            for (SocketOperationsQueue.Node node = queue.first(); node != null; node = queue.next(node)) {
+                if (node.dropped) {
+                    continue;
+                }
+                if (!(node instanceof SocketWriteOpeation) || total >= maxBytes || count == operations.length) {
+                    break;
+                }
+
+                final SocketWriteOpeation writeOperation = (SocketWriteOpeation) node;
+                // data can't be replaced by coalescing anymore
+                writeOperation.claim();
+                if (writeOperation.isComplete()) {
+                    // data was dropped by coalescing, see AbstractSocket#coalesce()
+                    socket.drop(writeOperation);
+                    coalesced = true;
+                    continue;
+                }
+                final int toSend = Math.min(writeOperation.byteBuffer.remaining(), maxBytes - total);
+                final ByteBuffer region = writeOperation.byteBuffer.duplicate();
+                region.limit(region.position() + toSend);
+
+                operations[count] = writeOperation;
+                buffers[count] = region;
+                count++;
+                total += toSend;
+            }
+            return total;
+        }
+
+        /**
+         * Advances buffers of collected operations by number of sent bytes and removes completed
+         * operations from socket operations queue.
+         * 
+         * @return number of completed operations
+         */
+        int retire(AbstractSocket socket, int sent) {
+            int completed = 0;
+            long retired = 0;
+            for (int i = 0; i < count && sent > 0; i++) {
+                final ByteBuffer byteBuffer = operations[i].byteBuffer;
+                final int advance = Math.min(sent, byteBuffer.remaining());
+                byteBuffer.position(byteBuffer.position() + advance);
+                sent -= advance;
+                retired += advance;
+
+                if (byteBuffer.remaining() == 0) {
+                    completed++;
+                }
+            }
+
+            if (retired != 0) {
+                socket.addQueuedWriteBytes(-retired);
+            }
+            for (int i = 0; i < completed; i++) {
+                socket.operations.removeFirst(operations[i]);
+            }
+            return completed;
+        }
+    }
+
+    /**
+     * Keeps sockets with the most queued outbound bytes among visited ones
+     */
+    private static final class HeaviestSockets implements ConcurrentLongHashMap.Visitor<AbstractSocket> {
+
+        private final int maxCount;
+
+        private final long minQueuedBytes;
+
+        /**
+         * Heaviest sockets found so far, the lightest one on top
+         */
+        final PriorityQueue<HeavySocket> sockets;
+
+        HeaviestSockets(int maxCount, long minQueuedBytes) {
+            this.maxCount = maxCount;
+            this.minQueuedBytes = minQueuedBytes;
+            this.sockets = new PriorityQueue<HeavySocket>(maxCount);
+        }
+
+        @Override
+        public void visit(AbstractSocket socket) {
+            if (socket.isClosed()) {
+                return;
+            }
+            final long queued = socket.queuedWriteBytes.get();
+            if (queued < minQueuedBytes) {
+                return;
+            }
+            if (sockets.size() < maxCount) {
+                sockets.add(new HeavySocket(socket, queued));
+            } else if (queued > sockets.peek().queuedBytes) {
+                sockets.poll();
+                sockets.add(new HeavySocket(socket, queued));
+            }
+        }
+    }
+
+    private static final class HeavySocket implements Comparable<HeavySocket> {
+
+        final long queuedBytes;
+
+        final AbstractSocket socket;
+
+        HeavySocket(AbstractSocket socket, long queuedBytes) {
+            this.socket = socket;
+            this.queuedBytes = queuedBytes;
+        }
+
+        @Override
+        public int compareTo(HeavySocket o) {
+            return queuedBytes < o.queuedBytes ? -1 : (queuedBytes == o.queuedBytes ? 0 : 1);
+        }
+    }
+
     private final class OnHangupTask extends AbstractSocketTask {
 
-        private OnHangupTask(long clientSocketPointer) {
-            super(clientSocketPointer);
+        private OnHangupTask(int reactor, long clientSocketPointer) {
+            super(reactor, clientSocketPointer);
         }
 
         @Override
@@ -799,27 +2549,42 @@ public abstract class AbstractServer {
         }
     }
 
-    private final class OnMaintainTask extends AbstractSocketTask {
+    /**
+     * Closes batch of idle sockets. Sockets may be owned by poller or other worker, so close is
+     * queued as usual.
+     */
+    private final class OnIdleTimeoutTask implements Runnable {
 
-        private OnMaintainTask(long clientSocketPointer) {
-            super(clientSocketPointer);
+        private final List<AbstractSocket> sockets;
+
+        private OnIdleTimeoutTask(List<AbstractSocket> sockets) {
+            this.sockets = sockets;
         }
 
         @Override
-        protected void run(AbstractSocket socket) throws Exception {
-            socket.queueClose("on-maintain", true);
+        public void run() {
+            for (AbstractSocket socket : sockets) {
+                try {
+                    if (!socket.isClosed()) {
+                        idleTimeoutCloses.incrementAndGet();
+                        socket.queueClose("idle-timeout", true);
+                    }
+                } catch (Throwable exc) {
+                    log.error("Unable to close idle " + socket + ": " + exc, exc);
+                }
+            }
         }
 
         @Override
         public String toString() {
-            return "OnMaintainTask [" + clientSocketPointer + "]";
+            return "OnIdleTimeoutTask [" + sockets.size() + " sockets]";
         }
     }
 
     private final class OnPendingErrorTask extends AbstractSocketTask {
 
-        private OnPendingErrorTask(long clientSocketPointer) {
-            super(clientSocketPointer);
+        private OnPendingErrorTask(int reactor, long clientSocketPointer) {
+            super(reactor, clientSocketPointer);
         }
 
         @Override
@@ -851,13 +2616,80 @@ public abstract class AbstractServer {
         }
     }
 
-    private class SocketWriteOpeation implements SocketOperation {
+    /**
+     * Socket whose task was rejected by executor, parked (out of any poll) until executor has
+     * room for it again
+     */
+    private static final class RejectedSocket {
+
+        final AbstractSocket socket;
+
+        /**
+         * <tt>true</tt> to return socket to write poll, <tt>false</tt> to read poll
+         */
+        final boolean write;
+
+        RejectedSocket(AbstractSocket socket, boolean write) {
+            this.socket = socket;
+            this.write = write;
+        }
+    }
+
+    /**
+     * Write operation is operations queue node itself, so queueing write doesn't allocate
+     * anything else
+     */
+    private class SocketWriteOpeation extends SocketOperationsQueue.Node implements SocketOperation {
+
+        private static final int CLAIMED = 2;
+
+        private static final int QUEUED = 0;
+
+        private static final int REPLACING = 1;
 
-        private final ByteBuffer byteBuffer;
+        /**
+         * Replaced by producer (under {@link #REPLACING} state) until operation is claimed by
+         * consumer, so consumer shall access it only after {@link #claim()}
+         */
+        private ByteBuffer byteBuffer;
+
+        @Nullable
+        final Object coalesceKey;
+
+        /**
+         * Socket whose queue operation is in
+         */
+        private final AbstractSocket owner;
 
-        SocketWriteOpeation(ByteBuffer byteBuffer) {
+        volatile int state = QUEUED;
+
+        SocketWriteOpeation(AbstractSocket owner, ByteBuffer byteBuffer, @Nullable Object coalesceKey) {
             super();
+            this.owner = owner;
             this.byteBuffer = byteBuffer;
+            this.coalesceKey = coalesceKey;
+        }
+
+        /**
+         * Prevents data from being replaced by coalescing. Called by consumer before data is sent
+         * or dropped.
+         */
+        void claim() {
+            while (state != CLAIMED) {
+                if (!WRITE_STATE.compareAndSet(this, QUEUED, CLAIMED)) {
+                    // being replaced right now
+                    Thread.yield();
+                }
+            }
+        }
+
+        @Override
+        SocketOperation getOperation() {
+            return this;
+        }
+
+        boolean isClaimed() {
+            return state == CLAIMED;
         }
 
         @Override
@@ -865,32 +2697,65 @@ public abstract class AbstractServer {
             return byteBuffer.remaining() == 0;
         }
 
+        @Override
+        void onRemoved() {
+            // queue head keeps reference to removed node
+            byteBuffer = EMPTY_BUFFER;
+            if (coalesceKey != null) {
+                owner.onCoalesceableWriteRemoved(this);
+            }
+        }
+
+        /**
+         * Replaces data unless operation is claimed by consumer already. Called by producers.
+         * Operation with empty data is dropped by consumer.
+         *
+         * @return number of bytes replaced, or <tt>-1</tt> if operation is claimed
+         */
+        int replace(ByteBuffer data) {
+            if (!WRITE_STATE.compareAndSet(this, QUEUED, REPLACING)) {
+                return -1;
+            }
+            final int replaced = byteBuffer.remaining();
+            byteBuffer = data;
+            state = QUEUED;
+            return replaced;
+        }
+
         @Override
         public boolean run(ISocket socket) {
 
+            final AbstractSocket abstractSocket = (AbstractSocket) socket;
+
             /*
-             * This was very nice idea to optimize writing single packets, skipping
-             * add-to-poll-wakeup-poll-async steps, but it turns out socket badly handles
-             * "no more buffer space" situation, resulting in "error #20014: Internal error". You
-             * can try to uncomment those lines and repeat the following test: Search 100 accounts
-             * in Psi, select them and ask for VCard (yep, for 100 VCard at the same time). --
-             * vlsergey
+             * Most of stanzas fit into socket send buffer, so try to write them without
+             * add-to-poll-wakeup-poll-async steps. Sockets stay non-blocking with zero timeout
+             * (see Transport#setupAccepted()), so full send buffer is reported as would-block
+             * result, that just means we need to wait for write poller. Any other error still
+             * closes socket: former "error #20014: Internal error" failures of inline writes with
+             * APR were not reproduced, so disable isInlineWrites() if they show up again. Note
+             * that handleCanWrite() writes at most getSocketMaxWriteBytes() at once.
              */
+            if (xmppProxyConfiguration.isInlineWrites()) {
+                int sent;
+                do {
+                    sent = abstractSocket.handleCanWrite();
+                } while (sent > 0 && !isComplete());
+
+                if (sent < 0) {
+                    // socket close is queued, continue cycle to process it
+                    return false;
+                }
+
+                if (isComplete()) {
+                    inlineWrites.incrementAndGet();
+                    return false;
+                }
+            }
 
-            // final AbstractSocket abstractSocket = (AbstractSocket) socket;
-            // we try to send data once,
-            // int sent;
-            // do {
-            // sent = abstractSocket.handleCanWrite();
-            // } while (sent > 0 && abstractSocket.peekFirstSocketOperation() instanceof
-            // SocketWriteOpeation);
-            //
-            // if (sent == 0 && abstractSocket.peekFirstSocketOperation() instanceof
-            // SocketWriteOpeation) {
-            addToWritePoll((AbstractSocket) socket);
+            polledWrites.incrementAndGet();
+            addToWritePoll(abstractSocket);
             return true;
-            // }
-            // return false;
         }
 
         @Override
@@ -1,19 +1,43 @@
 package one.xmpp.server.network;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.tomcat.jni.Socket;
 
 import one.ejb.NotNullByDefault;
-
+import one.ejb.Nullable;
+
+/**
+ * Accepts connections in batches: waits for the first one, drains listen queue without blocking and
+ * passes all accepted sockets to listener at once, so during reconnect storms workers get one task
+ * per batch instead of one per connection. If {@link AcceptAdmission} is specified, connections are
+ * accepted only as fast as it allows, the rest wait in listen queue of server socket. Admission is
+ * asked only when there is pending connection: single permit is waited for, and the rest of batch
+ * takes only permits available at once.
+ */
 @NotNullByDefault
 class AcceptorThread extends Thread {
 
+    /**
+     * Maximum number of connections accepted at once
+     */
+    static final int MAX_BATCH_SIZE = 256;
+
     private static final Log log = LogFactory.getLog(AcceptorThread.class);
 
-    private final AtomicLong counter = new AtomicLong(1);
+    private final long[] accepted = new long[MAX_BATCH_SIZE];
+
+    @Nullable
+    private final AcceptAdmission admission;
+
+    private final AtomicLong counter = new AtomicLong(0);
+
+    /**
+     * Index of this thread among acceptor threads of the same listen address
+     */
+    private final int index;
 
     private final SocketAcceptedListener listener;
 
@@ -21,43 +45,65 @@ class AcceptorThread extends Thread {
 
     private volatile boolean stop = false;
 
-    public AcceptorThread(final String name, final long serverSocketPointer, final SocketAcceptedListener listener) {
+    private final Transport transport;
+
+    public AcceptorThread(final String name, final int index, final Transport transport,
+            final long serverSocketPointer, final SocketAcceptedListener listener,
+            @Nullable AcceptAdmission admission) {
         super(name);
         setDaemon(true);
 
+        this.index = index;
+        this.transport = transport;
         this.serverSocketPointer = serverSocketPointer;
         this.listener = listener;
+        this.admission = admission;
     }
 
     @Override
     public void run() {
         while (!stop) {
+            int permits = 0;
             try {
 
-                final long clientSocketPointer = Socket.accept(serverSocketPointer);
+                transport.awaitAcceptable(serverSocketPointer);
+
+                if (admission == null) {
+                    permits = MAX_BATCH_SIZE;
+                } else {
+                    admission.acquire();
+                    permits = 1 + admission.tryAcquire(MAX_BATCH_SIZE - 1);
+                }
+
+                final int count = transport.accept(serverSocketPointer, accepted, permits);
+                if (admission != null && count < permits) {
+                    admission.release(permits - count);
+                }
+                permits = 0;
+
+                if (count == 0) {
+                    // poll timeout, or connection was accepted by other thread
+                    continue;
+                }
 
+                final long total = counter.addAndGet(count);
                 if (log.isDebugEnabled()) {
-                    log.debug("Accepted connection #" + counter.getAndIncrement() + " at client socket "
-                            + clientSocketPointer);
+                    log.debug("Accepted " + count + " connection(s), " + total + " total");
                 }
 
-                listener.onAcceptedSocket(clientSocketPointer);
+                listener.onAcceptedSockets(index, Arrays.copyOf(accepted, count));
 
-            } catch (org.apache.tomcat.jni.Error exc) {
+            } catch (Exception exc) {
 
-                if (730004 == exc.getError() && stop) {
-                    // shutdown in progress
-                    break;
+                if (admission != null && permits > 0) {
+                    admission.release(permits);
                 }
 
-                log.error("Unable to accept connection from server socket: Error #" + exc.getError() + ": " + exc, exc);
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                if (stop) {
+                    // shutdown in progress, server socket is closed
+                    break;
                 }
-                continue;
-            } catch (Exception exc) {
+
                 log.error("Unable to accept connection from server socket: " + exc, exc);
                 try {
                     Thread.sleep(1000);
@@ -73,8 +119,35 @@ class AcceptorThread extends Thread {
         this.stop = stop;
     }
 
+    /**
+     * Limits rate connections are accepted with
+     */
+    public interface AcceptAdmission {
+        /**
+         * Blocks until single connection can be accepted
+         */
+        void acquire() throws InterruptedException;
+
+        /**
+         * Returns permits acquired but not used, because there were less pending connections
+         */
+        void release(int permits);
+
+        /**
+         * @return number of connections that can be accepted right now, from <tt>0</tt> to
+         *         <tt>max</tt>
+         */
+        int tryAcquire(int max);
+    }
+
     public interface SocketAcceptedListener {
-        void onAcceptedSocket(long clientSocketPointer);
+        /**
+         * @param acceptorIndex
+         *            index of acceptor thread among ones of the same listen address
+         * @param clientSocketPointers
+         *            batch of accepted sockets (never empty)
+         */
+        void onAcceptedSockets(int acceptorIndex, long[] clientSocketPointers);
     }
 
 }
\ No newline at end of file
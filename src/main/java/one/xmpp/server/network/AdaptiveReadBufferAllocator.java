@@ -0,0 +1,170 @@
+package one.xmpp.server.network;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import one.ejb.NotNullByDefault;
+import one.xmpp.server.network.AbstractServer.AbstractSocket;
+
+/**
+ * Chooses read size for each socket based on previous reads (like Netty's
+ * <tt>AdaptiveRecvByteBufAllocator</tt>). Size grows to the next size class if read fills the
+ * whole buffer, and shrinks to the previous one after two consecutive reads that would fit into it.
+ *
+ * <p>
+ * Sizes are powers of two between configured bounds. Buffers themselves are not owned by sockets:
+ * each worker thread lazily allocates single direct buffer per size class it ever used. Allocated
+ * bytes are accounted per thread, so buffers of terminated threads (e.g. idle workers released by
+ * executor) are not counted anymore.
+ */
+@NotNullByDefault
+class AdaptiveReadBufferAllocator {
+
+    /**
+     * Accounting of threads that allocated buffers. Doesn't reference buffers themselves, so they
+     * are collected together with thread.
+     */
+    private final ConcurrentLinkedQueue<ThreadAllocations> allocations = new ConcurrentLinkedQueue<ThreadAllocations>();
+
+    private final ThreadLocal<ThreadBuffers> buffers = new ThreadLocal<ThreadBuffers>() {
+        @Override
+        protected ThreadBuffers initialValue() {
+            pruneTerminatedThreads();
+
+            final ThreadBuffers threadBuffers = new ThreadBuffers(sizeClasses.length);
+            allocations.add(threadBuffers.allocations);
+            return threadBuffers;
+        }
+    };
+
+    private final AtomicLongArray reads;
+
+    private final int[] sizeClasses;
+
+    AdaptiveReadBufferAllocator(int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Illegal read buffer size bounds: [" + minSize + "; " + maxSize + "]");
+        }
+
+        int size = Integer.highestOneBit(minSize);
+        if (size < minSize) {
+            size <<= 1;
+        }
+
+        int count = 1;
+        for (int i = size; i < maxSize && i > 0; i <<= 1) {
+            count++;
+        }
+
+        this.sizeClasses = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizeClasses[i] = size << i;
+        }
+        this.reads = new AtomicLongArray(count);
+    }
+
+    /**
+     * @return worker thread buffer of socket current size class. Valid until next call from the
+     *         same thread.
+     */
+    ByteBuffer borrow(AbstractSocket socket) {
+        final int sizeClass = socket.readBufferSizeClass;
+        final ThreadBuffers threadBuffers = buffers.get();
+
+        ByteBuffer buffer = threadBuffers.buffers[sizeClass];
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(sizeClasses[sizeClass]);
+            threadBuffers.allocations.bytes += buffer.capacity();
+            threadBuffers.buffers[sizeClass] = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * @return total size of buffers allocated by threads that are still alive
+     */
+    long getAllocatedBytes() {
+        pruneTerminatedThreads();
+
+        long result = 0;
+        for (ThreadAllocations threadAllocations : allocations) {
+            result += threadAllocations.bytes;
+        }
+        return result;
+    }
+
+    long[] getReads() {
+        final long[] result = new long[sizeClasses.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = reads.get(i);
+        }
+        return result;
+    }
+
+    int[] getSizeClasses() {
+        return sizeClasses.clone();
+    }
+
+    private void pruneTerminatedThreads() {
+        for (Iterator<ThreadAllocations> iterator = allocations.iterator(); iterator.hasNext();) {
+            final Thread thread = iterator.next().thread.get();
+            if (thread == null || !thread.isAlive()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Updates socket size class after successful read
+     */
+    void onRead(AbstractSocket socket, int read) {
+        final int sizeClass = socket.readBufferSizeClass;
+        reads.incrementAndGet(sizeClass);
+
+        if (read >= sizeClasses[sizeClass]) {
+            // buffer is full, there is probably more data
+            socket.readBufferSizeClass = (byte) Math.min(sizeClass + 1, sizeClasses.length - 1);
+            socket.readBufferDecreaseNow = false;
+            return;
+        }
+
+        if (sizeClass > 0 && read <= sizeClasses[sizeClass - 1]) {
+            if (socket.readBufferDecreaseNow) {
+                socket.readBufferSizeClass = (byte) (sizeClass - 1);
+                socket.readBufferDecreaseNow = false;
+            } else {
+                socket.readBufferDecreaseNow = true;
+            }
+            return;
+        }
+
+        socket.readBufferDecreaseNow = false;
+    }
+
+    private static final class ThreadAllocations {
+
+        /**
+         * Written by owner thread only
+         */
+        volatile long bytes = 0;
+
+        final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+    }
+
+    private static final class ThreadBuffers {
+
+        final ThreadAllocations allocations = new ThreadAllocations();
+
+        /**
+         * Buffer of each size class, allocated on first use
+         */
+        final ByteBuffer[] buffers;
+
+        ThreadBuffers(int sizeClasses) {
+            this.buffers = new ByteBuffer[sizeClasses];
+        }
+    }
+}
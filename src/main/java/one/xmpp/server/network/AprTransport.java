@@ -0,0 +1,300 @@
+package one.xmpp.server.network;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.tomcat.jni.Address;
+import org.apache.tomcat.jni.Error;
+import org.apache.tomcat.jni.Poll;
+import org.apache.tomcat.jni.Pool;
+import org.apache.tomcat.jni.Sockaddr;
+import org.apache.tomcat.jni.Socket;
+import org.apache.tomcat.jni.Status;
+import org.springframework.stereotype.Component;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * {@link Transport} implementation based on Apache Portable Runtime and Tomcat Native library.
+ * Socket handles are native APR socket pointers.
+ *
+ * @author Sergey Vladimirov ( sergey {dot} vladimirov {at} odnoklassniki {dot} ru )
+ */
+@Component
+@NotNullByDefault
+public class AprTransport implements Transport {
+
+    /**
+     * Time in microseconds acceptor waits for pending connections in server socket poll before
+     * checking if server socket is closed
+     */
+    private static final long ACCEPT_POLL_TIMEOUT = 1000 * 1000;
+
+    /**
+     * Per-thread buffer to gather data before sending
+     */
+    private static final ThreadLocal<ByteBuffer> gatheringBuffer = new ThreadLocal<ByteBuffer>();
+
+    private static final Log log = LogFactory.getLog(AprTransport.class);
+
+    static {
+        TomcatNativeLibrary.load();
+    }
+
+    private long poolPointer;
+
+    private final Map<Long, AprServerSocket> serverSockets = new ConcurrentHashMap<Long, AprServerSocket>();
+
+    @Override
+    public int accept(long serverSocket, long[] sockets, int max) throws Exception {
+        return serverSocket(serverSocket).accept(sockets, max);
+    }
+
+    @Override
+    public void awaitAcceptable(long serverSocket) throws Exception {
+        serverSocket(serverSocket).awaitAcceptable();
+    }
+
+    @Override
+    public void closeAndDestroy(long socket) {
+        AprUtils.closeAndDestroySocketSafe(socket);
+    }
+
+    @Override
+    public void closeServer(long serverSocket) {
+        final AprServerSocket server = serverSockets.remove(Long.valueOf(serverSocket));
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Override
+    public TransportPoll createPoll(int maxSockets) throws Exception {
+        return new AprTransportPoll(maxSockets);
+    }
+
+    @Override
+    public String getErrorDescription(int errorCode) {
+        return "error #" + errorCode + ": " + Error.strerror(errorCode);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress(long socket) throws Exception {
+        final long socketRemoteAddressPointer = Address.get(Socket.APR_REMOTE, socket);
+        final Sockaddr socketAddress = new Sockaddr();
+        if (!Address.fill(socketAddress, socketRemoteAddressPointer)) {
+            throw new UnsupportedOperationException("Socket address for client socket handler #" + socket
+                    + " can't be found");
+        }
+        return new InetSocketAddress(InetAddress.getByName(Address.getip(socketRemoteAddressPointer)),
+                socketAddress.port);
+    }
+
+    @PostConstruct
+    public void init() {
+        poolPointer = Pool.create(0);
+    }
+
+    /**
+     * Tomcat Native doesn't expose <tt>SO_REUSEPORT</tt> option
+     */
+    @Override
+    public boolean isReusePortSupported() {
+        return false;
+    }
+
+    @Override
+    public boolean isWouldBlock(int errorCode) {
+        return errorCode == Status.TIMEUP || errorCode == Status.EAGAIN || Status.APR_STATUS_IS_TIMEUP(errorCode)
+                || Status.APR_STATUS_IS_EAGAIN(errorCode);
+    }
+
+    @Override
+    public long listen(String address, int port, int backlog, boolean reusePort) throws Exception {
+        if (reusePort) {
+            throw new UnsupportedOperationException("SO_REUSEPORT is not supported by " + this);
+        }
+
+        final long inetAddress = Address.info(address, Socket.APR_INET, port, 0, poolPointer);
+        final long serverSocketPointer = Socket.create(Socket.APR_INET, Socket.SOCK_STREAM, Socket.APR_PROTO_TCP,
+                poolPointer);
+        Socket.optSet(serverSocketPointer, Socket.APR_SO_REUSEADDR, 1);
+        Socket.optSet(serverSocketPointer, Socket.APR_TCP_DEFER_ACCEPT, 1);
+
+        int status = Socket.bind(serverSocketPointer, inetAddress);
+        if (status != Status.APR_SUCCESS) {
+            Socket.destroy(serverSocketPointer);
+
+            if (status == 730048) {
+                throw (new Exception("Can't create Acceptor. IP address and port " + address + ":" + port
+                        + " is already occupied by other application."));
+            }
+
+            throw (new Exception("Can't create Acceptor. Error #" + status + ": " + Error.strerror(status)));
+        }
+
+        status = Socket.listen(serverSocketPointer, backlog);
+        if (status != Status.APR_SUCCESS) {
+            Socket.destroy(serverSocketPointer);
+            throw (new Exception("Can't listen " + address + ":" + port + ". Error #" + status + ": "
+                    + Error.strerror(status)));
+        }
+
+        // acceptors drain listen queue until it would block, and wait in poll
+        Socket.optSet(serverSocketPointer, Socket.APR_SO_NONBLOCK, 1);
+        Socket.timeoutSet(serverSocketPointer, 0);
+
+        final long pollPointer;
+        try {
+            pollPointer = Poll.create(1, poolPointer, 0, 0);
+            Poll.add(pollPointer, serverSocketPointer, Poll.APR_POLLIN);
+        } catch (Exception exc) {
+            Socket.destroy(serverSocketPointer);
+            throw exc;
+        }
+
+        serverSockets.put(Long.valueOf(serverSocketPointer), new AprServerSocket(serverSocketPointer, pollPointer));
+        return serverSocketPointer;
+    }
+
+    @Override
+    public int read(long socket, ByteBuffer buffer, int offset, int length) {
+        return Socket.recvb(socket, buffer, offset, length);
+    }
+
+    private AprServerSocket serverSocket(long serverSocket) throws Exception {
+        final AprServerSocket server = serverSockets.get(Long.valueOf(serverSocket));
+        if (server == null) {
+            throw new Exception("Server socket #" + serverSocket + " is closed");
+        }
+        return server;
+    }
+
+    @Override
+    public void setupAccepted(long socket) throws Exception {
+        Socket.optSet(socket, Socket.APR_SO_REUSEADDR, 1);
+        Socket.optSet(socket, Socket.APR_SO_NONBLOCK, 1);
+        Socket.optSet(socket, Socket.APR_TCP_NODELAY, 1);
+        Socket.timeoutSet(socket, 0);
+    }
+
+    @PreDestroy
+    public void stop() {
+        log.trace("Destroying pool...");
+        Pool.destroy(poolPointer);
+    }
+
+    @Override
+    public String toString() {
+        return "AprTransport";
+    }
+
+    @Override
+    public int write(long socket, ByteBuffer buffer, int offset, int length) {
+        if (buffer.isDirect()) {
+            return Socket.sendb(socket, buffer, offset, length);
+        }
+        return Socket.send(socket, buffer.array(), buffer.arrayOffset() + offset, length);
+    }
+
+    /**
+     * Tomcat Native can send vector of byte arrays only, so data is copied to per-thread direct
+     * buffer and sent using single call. It is still much cheaper than separate send for each
+     * buffer.
+     */
+    @Override
+    public int write(long socket, ByteBuffer[] buffers, int count) {
+        if (count == 1) {
+            return write(socket, buffers[0], buffers[0].position(), buffers[0].remaining());
+        }
+
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length += buffers[i].remaining();
+        }
+
+        ByteBuffer gathered = gatheringBuffer.get();
+        if (gathered == null || gathered.capacity() < length) {
+            gathered = ByteBuffer.allocateDirect(Integer.highestOneBit(length) << 1);
+            gatheringBuffer.set(gathered);
+        }
+
+        gathered.clear();
+        for (int i = 0; i < count; i++) {
+            gathered.put(buffers[i].duplicate());
+        }
+
+        return write(socket, gathered, 0, length);
+    }
+
+    /**
+     * Non-blocking server socket with pollset to wait for pending connections. Neither pollset nor
+     * socket can be destroyed while used by acceptor thread, so all operations are synchronized and
+     * acceptor polls with timeout.
+     */
+    private static final class AprServerSocket {
+
+        private boolean closed = false;
+
+        private final long[] descriptors = new long[2];
+
+        private final long pollPointer;
+
+        private final long serverSocketPointer;
+
+        AprServerSocket(long serverSocketPointer, long pollPointer) {
+            this.serverSocketPointer = serverSocketPointer;
+            this.pollPointer = pollPointer;
+        }
+
+        synchronized int accept(long[] sockets, int max) throws Exception {
+            checkNotClosed();
+
+            int count = 0;
+            while (count < max && !closed) {
+                final long socket;
+                try {
+                    socket = Socket.accept(serverSocketPointer);
+                } catch (Error exc) {
+                    if (count > 0 || Status.APR_STATUS_IS_EAGAIN(exc.getError())) {
+                        // listen queue is drained (or error will be reported by next call)
+                        break;
+                    }
+                    throw exc;
+                }
+                sockets[count++] = socket;
+            }
+            return count;
+        }
+
+        synchronized void awaitAcceptable() throws Exception {
+            checkNotClosed();
+
+            final int result = Poll.poll(pollPointer, ACCEPT_POLL_TIMEOUT, descriptors, false);
+            if (result < 0 && !Status.APR_STATUS_IS_TIMEUP(-result) && !Status.APR_STATUS_IS_EINTR(-result)) {
+                throw new Exception("Unable to poll server socket #" + serverSocketPointer + ". Error #"
+                        + (-result) + ": " + Error.strerror(-result));
+            }
+        }
+
+        private void checkNotClosed() throws Exception {
+            if (closed) {
+                throw new Exception("Server socket #" + serverSocketPointer + " is closed");
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            Poll.destroy(pollPointer);
+            Socket.destroy(serverSocketPointer);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package one.xmpp.server.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.tomcat.jni.Error;
+import org.apache.tomcat.jni.Poll;
+import org.apache.tomcat.jni.Pool;
+import org.apache.tomcat.jni.Socket;
+import org.apache.tomcat.jni.Status;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * APR pollset wrapper. Since APR poll can't be interrupted from other thread, additional pair of
+ * connected loopback sockets is used: one byte is sent to the pipe to wake up poll.
+ */
+@NotNullByDefault
+class AprTransportPoll implements TransportPoll {
+
+    private static final Log log = LogFactory.getLog(AprTransportPoll.class);
+
+    private static final ByteBuffer SIGNAL = ByteBuffer.allocateDirect(1);
+
+    static {
+        SIGNAL.put((byte) 1);
+    }
+
+    private final long[] getPoolsetSizeArray;
+
+    private final long pipeSocketReadPointer;
+
+    private final long pipeSocketWritePointer;
+
+    private final long pollPointer;
+
+    private final long poolPointer;
+
+    private final ByteBuffer signalBuffer = ByteBuffer.allocateDirect(1024);
+
+    private final AtomicLong wakeUpSignalsReceived = new AtomicLong(0);
+
+    AprTransportPoll(int maxSockets) throws Exception {
+        this.poolPointer = Pool.create(0);
+        // no TTL: pollset doesn't need to track add time of each socket
+        this.pollPointer = Poll.create(maxSockets, poolPointer, 0, 0);
+
+        long[] pipe = PipeSocketsHelper.newPair();
+        this.pipeSocketReadPointer = pipe[0];
+        this.pipeSocketWritePointer = pipe[1];
+
+        Socket.optSet(pipeSocketReadPointer, Socket.APR_TCP_NODELAY, 1);
+        Socket.optSet(pipeSocketWritePointer, Socket.APR_TCP_NODELAY, 1);
+
+        Poll.add(pollPointer, pipeSocketReadPointer, Poll.APR_POLLIN);
+
+        this.getPoolsetSizeArray = new long[maxSockets * 2];
+    }
+
+    @Override
+    public void add(long socket, int events) {
+        Poll.add(pollPointer, socket, events);
+    }
+
+    /**
+     * APR pollset (as wrapped by Tomcat Native) is not thread-safe, so sockets are always added by
+     * poller thread. Signalled sockets are still removed by poll itself, so no additional
+     * {@link Poll#remove(long, long)} calls are required.
+     */
+    @Override
+    public boolean arm(long socket, int events) {
+        return false;
+    }
+
+    @Override
+    public void destroy() {
+        log.trace("Closing pipe sockets...");
+        Socket.close(pipeSocketWritePointer);
+        Socket.close(pipeSocketReadPointer);
+        Socket.destroy(pipeSocketWritePointer);
+        Socket.destroy(pipeSocketReadPointer);
+
+        log.trace("Destroying poll...");
+        int result = Poll.destroy(pollPointer);
+        if (result != 0) {
+            log.error("Unable to destroy server poll: " + Error.strerror(result));
+        }
+
+        log.trace("Destroying pool...");
+        Pool.destroy(poolPointer);
+    }
+
+    @Override
+    public long getWakeUpSignalsReceived() {
+        return wakeUpSignalsReceived.get();
+    }
+
+    @Override
+    public int poll(long timeout, long[] descriptors) {
+        int result = Poll.poll(pollPointer, timeout, descriptors, true);
+
+        if (result < 0) {
+            return -result == Status.TIMEUP ? 0 : result;
+        }
+
+        // exclude our pipe socket from result
+        int count = 0;
+        for (int i = 0; i < result; i++) {
+            final long signal = descriptors[2 * i + 0];
+            final long socket = descriptors[2 * i + 1];
+
+            if (socket != pipeSocketReadPointer) {
+                descriptors[2 * count + 0] = signal;
+                descriptors[2 * count + 1] = socket;
+                count++;
+                continue;
+            }
+
+            wakeUpSignalsReceived.incrementAndGet();
+
+            if ((signal & Poll.APR_POLLIN) != 0) {
+                // it is out special signal socket, read and ignore
+                log.trace("Poll waked up by receiving a signal");
+                signalBuffer.clear();
+                int read = Socket.recvb(socket, signalBuffer, 0, 1024);
+                if (log.isTraceEnabled()) {
+                    log.trace("Read " + read + " bytes from signal pipe socket");
+                }
+                Poll.add(pollPointer, socket, Poll.APR_POLLIN);
+            }
+
+            if ((signal & Poll.APR_POLLHUP) != 0 || (signal & Poll.APR_POLLNVAL) != 0) {
+                log.error("Received hangup signal " + signal + " from pipe stream #" + pipeSocketReadPointer);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean remove(long socket) {
+        return Poll.remove(pollPointer, socket) == Status.APR_SUCCESS;
+    }
+
+    @Override
+    public int size() {
+        // expensive, thought
+        return Poll.pollset(pollPointer, getPoolsetSizeArray);
+    }
+
+    @Override
+    public String toString() {
+        return "AprTransportPoll [#" + pollPointer + "]";
+    }
+
+    @Override
+    public void wakeUp() {
+        Socket.sendb(pipeSocketWritePointer, SIGNAL, 0, 1);
+    }
+}
@@ -3,7 +3,6 @@ package one.xmpp.server.network;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.tomcat.jni.Error;
-import org.apache.tomcat.jni.Poll;
 import org.apache.tomcat.jni.Socket;
 import org.apache.tomcat.jni.Status;
 
@@ -45,19 +44,4 @@ class AprUtils {
         }
     }
 
-    public static void removeFromPollSafe(final long pollPointer, final long clientSocketPointer) {
-        try {
-            int result = Poll.remove(pollPointer, clientSocketPointer);
-
-            if (log.isTraceEnabled()) {
-                log.trace("Removed socket #" + clientSocketPointer + " from poll #" + pollPointer + " with result "
-                        + result);
-            }
-
-        } catch (Throwable exc) {
-            log.error("Unable to remove from poll #" + pollPointer + " socket #" + clientSocketPointer + ": " + exc,
-                    exc);
-        }
-    }
-
 }
@@ -0,0 +1,124 @@
+package one.xmpp.server.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+import one.xmpp.server.XmppProxyConfiguration;
+
+/**
+ * Server sockets and acceptor threads of single acceptor. Each listen address gets
+ * {@link XmppProxyConfiguration#getListenersPerAddress()} acceptor threads (one per reactor in
+ * reactor mode). If transport supports <tt>SO_REUSEPORT</tt> each thread has its own server socket
+ * (and own SYN and accept queues), and kernel spreads incoming connections among them. Otherwise
+ * single acceptor thread is used: accept of shared server socket is serialized by transport, so
+ * more threads would only contend for it.
+ */
+@NotNullByDefault
+final class Listeners {
+
+    private static final Log log = LogFactory.getLog(Listeners.class);
+
+    private final List<AcceptorThread> acceptorThreads = new ArrayList<AcceptorThread>();
+
+    @Nullable
+    private final AcceptorThread.AcceptAdmission admission;
+
+    private final AcceptorThread.SocketAcceptedListener listener;
+
+    private final List<Long> serverSockets = new ArrayList<Long>();
+
+    private final Transport transport;
+
+    /**
+     * @param admission
+     *            limits rate all acceptor threads accept connections with, or <tt>null</tt>
+     */
+    Listeners(Transport transport, AcceptorThread.SocketAcceptedListener listener,
+            @Nullable AcceptorThread.AcceptAdmission admission) {
+        this.transport = transport;
+        this.listener = listener;
+        this.admission = admission;
+    }
+
+    /**
+     * @return number of acceptor threads to create for each listen address
+     */
+    static int getListenersPerAddress(XmppProxyConfiguration xmppProxyConfiguration) {
+        final int reactors = xmppProxyConfiguration.getReactorsCount();
+        return reactors > 0 ? reactors : xmppProxyConfiguration.getListenersPerAddress();
+    }
+
+    private void listen(String address, int listenersPerAddress, int backlog) throws Exception {
+        final int colon = address.lastIndexOf(':');
+        if (colon <= 0 || colon == address.length() - 1) {
+            throw new IllegalArgumentException("Listen address shall be specified as host:port, but was '"
+                    + address + "'");
+        }
+        String host = address.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            // [::]:5222
+            host = host.substring(1, host.length() - 1);
+        }
+        final int port = Integer.parseInt(address.substring(colon + 1));
+
+        if (listenersPerAddress > 1 && !transport.isReusePortSupported()) {
+            log.warn(transport + " doesn't support SO_REUSEPORT, so " + listenersPerAddress
+                    + " acceptor threads would share single server socket of " + address
+                    + "; using single acceptor thread instead");
+            listenersPerAddress = 1;
+        }
+
+        final boolean reusePort = listenersPerAddress > 1;
+        log.info("Accepting: " + host + ":" + port + " using " + transport + " with " + listenersPerAddress
+                + " acceptor thread(s)" + (reusePort ? " and SO_REUSEPORT server sockets" : ""));
+
+        long serverSocket = 0;
+        for (int i = 0; i < listenersPerAddress; i++) {
+            if (i == 0 || reusePort) {
+                serverSocket = transport.listen(host, port, backlog, reusePort);
+                serverSockets.add(Long.valueOf(serverSocket));
+            }
+
+            final String threadName = "AcceptorThread-" + port + (listenersPerAddress > 1 ? "-" + i : "");
+            final AcceptorThread acceptorThread = new AcceptorThread(threadName, i, transport, serverSocket,
+                    listener, admission);
+            acceptorThreads.add(acceptorThread);
+            acceptorThread.start();
+        }
+    }
+
+    /**
+     * @param addresses
+     *            <tt>host:port</tt> addresses to listen
+     */
+    void start(String[] addresses, int listenersPerAddress, int backlog) throws Exception {
+        if (listenersPerAddress <= 0) {
+            throw new IllegalArgumentException("Illegal listeners per address count: " + listenersPerAddress);
+        }
+
+        try {
+            for (String address : addresses) {
+                listen(address, listenersPerAddress, backlog);
+            }
+        } catch (Exception exc) {
+            stop();
+            throw exc;
+        }
+    }
+
+    void stop() {
+        for (AcceptorThread acceptorThread : acceptorThreads) {
+            acceptorThread.setStop(true);
+        }
+        for (Long serverSocket : serverSockets) {
+            transport.closeServer(serverSocket.longValue());
+        }
+        acceptorThreads.clear();
+        serverSockets.clear();
+    }
+}
@@ -0,0 +1,365 @@
+package one.xmpp.server.network;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.stereotype.Component;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+import one.xmpp.utils.ConcurrentLongHashMap;
+
+/**
+ * Pure-Java {@link Transport} implementation based on {@link java.nio.channels.Selector}. Doesn't
+ * require Tomcat Native library, so server can be run (and benchmarked against APR one) on hosts
+ * without libtcnative. Socket handles are sequence numbers and never reused.
+ *
+ * <p>
+ * Note that {@link SslAcceptor} relies on APR SSL implementation and can't be used with this
+ * transport.
+ */
+@Component
+@NotNullByDefault
+public class NioTransport implements Transport {
+
+    /**
+     * Socket is not known (closed already)
+     */
+    static final int ERROR_BAD_SOCKET = 1;
+
+    /**
+     * I/O error occurred. Details are logged.
+     */
+    static final int ERROR_IO = 2;
+
+    /**
+     * Operation would block
+     */
+    static final int ERROR_WOULD_BLOCK = 3;
+
+    private static final Log log = LogFactory.getLog(NioTransport.class);
+
+    /**
+     * <tt>StandardSocketOptions.SO_REUSEPORT</tt> (Java 9+, resolved reflectively, since sources
+     * are Java 6 compatible) or <tt>null</tt> if not supported by JVM or platform
+     */
+    @Nullable
+    private static final Object REUSE_PORT_OPTION;
+
+    @Nullable
+    private static final Method SET_OPTION_METHOD;
+
+    static {
+        Object reusePortOption = null;
+        Method setOptionMethod = null;
+        try {
+            final Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT")
+                    .get(null);
+            final ServerSocketChannel probe = ServerSocketChannel.open();
+            try {
+                final Set<?> supportedOptions = (Set<?>) ServerSocketChannel.class.getMethod("supportedOptions")
+                        .invoke(probe);
+                if (supportedOptions.contains(option)) {
+                    setOptionMethod = ServerSocketChannel.class.getMethod("setOption",
+                            Class.forName("java.net.SocketOption"), Object.class);
+                    reusePortOption = option;
+                }
+            } finally {
+                probe.close();
+            }
+        } catch (Exception exc) {
+            log.debug("SO_REUSEPORT is not supported: " + exc);
+        }
+        REUSE_PORT_OPTION = reusePortOption;
+        SET_OPTION_METHOD = setOptionMethod;
+    }
+
+    private final ConcurrentLongHashMap<SocketChannel> channels = new ConcurrentLongHashMap<SocketChannel>();
+
+    private final AtomicLong handlesSequence = new AtomicLong(0);
+
+    private final Map<Long, NioServerSocket> serverSockets = new ConcurrentHashMap<Long, NioServerSocket>();
+
+    @Override
+    public int accept(long serverSocket, long[] sockets, int max) throws Exception {
+        return serverSocket(serverSocket).accept(sockets, max);
+    }
+
+    @Override
+    public void awaitAcceptable(long serverSocket) throws Exception {
+        serverSocket(serverSocket).awaitAcceptable();
+    }
+
+    @Nullable
+    SocketChannel channel(long socket) {
+        return channels.get(socket);
+    }
+
+    @Override
+    public void closeAndDestroy(long socket) {
+        final SocketChannel channel = channels.remove(socket);
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (Throwable exc) {
+            log.error("Unable to close socket #" + socket + ": " + exc);
+        }
+    }
+
+    @Override
+    public void closeServer(long serverSocket) {
+        final NioServerSocket server = serverSockets.remove(Long.valueOf(serverSocket));
+        if (server == null) {
+            return;
+        }
+
+        try {
+            server.close();
+        } catch (Throwable exc) {
+            log.error("Unable to close server socket #" + serverSocket + ": " + exc);
+        }
+    }
+
+    @Override
+    public TransportPoll createPoll(int maxSockets) throws Exception {
+        return new NioTransportPoll(this);
+    }
+
+    @Override
+    public String getErrorDescription(int errorCode) {
+        switch (errorCode) {
+        case ERROR_BAD_SOCKET:
+            return "error #" + errorCode + ": socket is closed";
+        case ERROR_IO:
+            return "error #" + errorCode + ": I/O error";
+        case ERROR_WOULD_BLOCK:
+            return "error #" + errorCode + ": operation would block";
+        default:
+            return "error #" + errorCode;
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress(long socket) throws Exception {
+        final SocketChannel channel = channel(socket);
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        return (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+    }
+
+    @Override
+    public boolean isReusePortSupported() {
+        return REUSE_PORT_OPTION != null;
+    }
+
+    @Override
+    public boolean isWouldBlock(int errorCode) {
+        return errorCode == ERROR_WOULD_BLOCK;
+    }
+
+    @Override
+    public long listen(String address, int port, int backlog, boolean reusePort) throws Exception {
+        if (reusePort && !isReusePortSupported()) {
+            throw new UnsupportedOperationException("SO_REUSEPORT is not supported by " + this);
+        }
+
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            if (reusePort) {
+                SET_OPTION_METHOD.invoke(serverChannel, REUSE_PORT_OPTION, Boolean.TRUE);
+            }
+            serverChannel.socket().bind(new InetSocketAddress(address, port), backlog);
+            serverChannel.configureBlocking(false);
+        } catch (Exception exc) {
+            serverChannel.close();
+            throw new Exception("Can't create Acceptor at " + address + ":" + port + ": " + exc, exc);
+        }
+
+        final NioServerSocket server;
+        try {
+            server = new NioServerSocket(serverChannel);
+        } catch (IOException exc) {
+            serverChannel.close();
+            throw exc;
+        }
+
+        final long serverSocket = handlesSequence.incrementAndGet();
+        serverSockets.put(Long.valueOf(serverSocket), server);
+        return serverSocket;
+    }
+
+    @Override
+    public int read(long socket, ByteBuffer buffer, int offset, int length) {
+        final SocketChannel channel = channel(socket);
+        if (channel == null) {
+            return -ERROR_BAD_SOCKET;
+        }
+
+        final ByteBuffer region = buffer.duplicate();
+        region.limit(offset + length).position(offset);
+        try {
+            final int read = channel.read(region);
+            if (read < 0) {
+                // end of stream
+                return 0;
+            }
+            if (read == 0) {
+                return -ERROR_WOULD_BLOCK;
+            }
+            return read;
+        } catch (IOException exc) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to read from socket #" + socket + ": " + exc, exc);
+            }
+            return -ERROR_IO;
+        }
+    }
+
+    private NioServerSocket serverSocket(long serverSocket) throws ClosedChannelException {
+        final NioServerSocket server = serverSockets.get(Long.valueOf(serverSocket));
+        if (server == null) {
+            throw new ClosedChannelException();
+        }
+        return server;
+    }
+
+    @Override
+    public void setupAccepted(long socket) throws Exception {
+        final SocketChannel channel = channel(socket);
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (Long serverSocket : serverSockets.keySet()) {
+            closeServer(serverSocket.longValue());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioTransport";
+    }
+
+    @Override
+    public int write(long socket, ByteBuffer buffer, int offset, int length) {
+        final SocketChannel channel = channel(socket);
+        if (channel == null) {
+            return -ERROR_BAD_SOCKET;
+        }
+
+        final ByteBuffer region = buffer.duplicate();
+        region.limit(offset + length).position(offset);
+        try {
+            return channel.write(region);
+        } catch (IOException exc) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to write to socket #" + socket + ": " + exc, exc);
+            }
+            return -ERROR_IO;
+        }
+    }
+
+    @Override
+    public int write(long socket, ByteBuffer[] buffers, int count) {
+        final SocketChannel channel = channel(socket);
+        if (channel == null) {
+            return -ERROR_BAD_SOCKET;
+        }
+
+        final ByteBuffer[] regions = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            regions[i] = buffers[i].duplicate();
+        }
+        try {
+            return (int) channel.write(regions, 0, count);
+        } catch (IOException exc) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to write to socket #" + socket + ": " + exc, exc);
+            }
+            return -ERROR_IO;
+        }
+    }
+
+    /**
+     * Non-blocking server channel with selector to wait for pending connections
+     */
+    private final class NioServerSocket {
+
+        private final ServerSocketChannel channel;
+
+        private final Selector selector;
+
+        NioServerSocket(ServerSocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.selector = Selector.open();
+            try {
+                channel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException exc) {
+                selector.close();
+                throw exc;
+            }
+        }
+
+        synchronized int accept(long[] sockets, int max) throws IOException {
+            int count = 0;
+            while (count < max) {
+                final SocketChannel accepted = channel.accept();
+                if (accepted == null) {
+                    // listen queue is drained
+                    break;
+                }
+
+                try {
+                    accepted.configureBlocking(false);
+                } catch (IOException exc) {
+                    log.error("Unable to configure accepted socket: " + exc);
+                    accepted.close();
+                    continue;
+                }
+
+                final long socket = handlesSequence.incrementAndGet();
+                channels.put(socket, accepted);
+                sockets[count++] = socket;
+            }
+            return count;
+        }
+
+        synchronized void awaitAcceptable() throws IOException {
+            // selector is closed (and woken up) by close()
+            selector.select();
+            selector.selectedKeys().clear();
+        }
+
+        void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                selector.close();
+            }
+        }
+    }
+}
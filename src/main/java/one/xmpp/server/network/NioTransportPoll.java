@@ -0,0 +1,247 @@
+package one.xmpp.server.network;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * {@link Selector} wrapper with APR-like poll semantics: signalled sockets are removed from poll
+ * (i.e. their interest set is cleared, selection key itself stays registered to avoid expensive
+ * re-registration). Since interest set can be changed from any thread, signalled sockets can be
+ * re-armed by worker threads directly, without passing them to poller thread.
+ */
+@NotNullByDefault
+class NioTransportPoll implements TransportPoll {
+
+    private static final Log log = LogFactory.getLog(NioTransportPoll.class);
+
+    private static int toEvents(int readyOps) {
+        int events = 0;
+        if ((readyOps & (SelectionKey.OP_READ | SelectionKey.OP_ACCEPT)) != 0) {
+            events |= Transport.POLLIN;
+        }
+        if ((readyOps & (SelectionKey.OP_WRITE | SelectionKey.OP_CONNECT)) != 0) {
+            events |= Transport.POLLOUT;
+        }
+        return events;
+    }
+
+    private static int toInterestOps(int events) {
+        int ops = 0;
+        if ((events & Transport.POLLIN) != 0) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if ((events & Transport.POLLOUT) != 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    private final Selector selector;
+
+    /**
+     * Number of armed keys
+     */
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private final NioTransport transport;
+
+    private final AtomicBoolean wakeUpRequested = new AtomicBoolean(false);
+
+    private final AtomicLong wakeUpSignalsReceived = new AtomicLong(0);
+
+    NioTransportPoll(NioTransport transport) throws IOException {
+        this.transport = transport;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void add(long socket, int events) {
+        final SocketChannel channel = transport.channel(socket);
+        if (channel == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Socket #" + socket + " is not added to " + this + " because closed already");
+            }
+            return;
+        }
+
+        try {
+            SelectionKey key = channel.keyFor(selector);
+            if (key == null) {
+                key = channel.register(selector, 0, new Registration(socket));
+            }
+            arm(key, events);
+        } catch (CancelledKeyException exc) {
+            if (log.isDebugEnabled()) {
+                log.debug("Socket #" + socket + " is not added to " + this + " because closed already");
+            }
+        } catch (IOException exc) {
+            log.error("Unable to add socket #" + socket + " to " + this + ": " + exc, exc);
+        }
+    }
+
+    @Override
+    public boolean arm(long socket, int events) {
+        final SocketChannel channel = transport.channel(socket);
+        if (channel == null) {
+            return false;
+        }
+
+        final SelectionKey key = channel.keyFor(selector);
+        if (key == null) {
+            // first add, registration is allowed from poller thread only
+            return false;
+        }
+
+        try {
+            arm(key, events);
+        } catch (CancelledKeyException exc) {
+            if (log.isDebugEnabled()) {
+                log.debug("Socket #" + socket + " is not armed in " + this + " because closed already");
+            }
+        }
+        return true;
+    }
+
+    private void arm(SelectionKey key, int events) {
+        final Registration registration = (Registration) key.attachment();
+        synchronized (registration) {
+            key.interestOps(toInterestOps(events));
+            if (!registration.armed) {
+                registration.armed = true;
+                size.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            selector.close();
+        } catch (IOException exc) {
+            log.error("Unable to close selector: " + exc, exc);
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if key was armed
+     */
+    private boolean disarm(SelectionKey key) {
+        final Registration registration = (Registration) key.attachment();
+        synchronized (registration) {
+            if (!registration.armed) {
+                return false;
+            }
+            registration.armed = false;
+            size.decrementAndGet();
+            key.interestOps(0);
+            return true;
+        }
+    }
+
+    @Override
+    public long getWakeUpSignalsReceived() {
+        return wakeUpSignalsReceived.get();
+    }
+
+    @Override
+    public int poll(long timeout, long[] descriptors) {
+        try {
+            if (timeout <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(Math.max(1, timeout / 1000));
+            }
+        } catch (IOException exc) {
+            log.error("Unable to select from " + this + ": " + exc, exc);
+            return -NioTransport.ERROR_IO;
+        }
+
+        if (wakeUpRequested.getAndSet(false)) {
+            wakeUpSignalsReceived.incrementAndGet();
+        }
+
+        int count = 0;
+        final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext() && 2 * count < descriptors.length) {
+            final SelectionKey key = iterator.next();
+            iterator.remove();
+
+            try {
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                final int events = toEvents(key.readyOps());
+                // remove from poll, as APR does
+                if (!disarm(key)) {
+                    continue;
+                }
+
+                descriptors[2 * count + 0] = events;
+                descriptors[2 * count + 1] = ((Registration) key.attachment()).socket;
+                count++;
+            } catch (CancelledKeyException exc) {
+                // closed concurrently
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean remove(long socket) {
+        final SocketChannel channel = transport.channel(socket);
+        if (channel == null) {
+            return false;
+        }
+
+        final SelectionKey key = channel.keyFor(selector);
+        if (key == null) {
+            return false;
+        }
+
+        try {
+            return disarm(key);
+        } catch (CancelledKeyException exc) {
+            return false;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NioTransportPoll [" + selector + "]";
+    }
+
+    @Override
+    public void wakeUp() {
+        wakeUpRequested.set(true);
+        selector.wakeup();
+    }
+
+    private static final class Registration {
+
+        boolean armed = false;
+
+        final long socket;
+
+        Registration(long socket) {
+            this.socket = socket;
+        }
+    }
+}
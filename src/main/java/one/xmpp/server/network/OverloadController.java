@@ -0,0 +1,543 @@
+package one.xmpp.server.network;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+import one.xmpp.utils.AsyncOperationsExecutor;
+
+/**
+ * Watches worker queue depth, read poller loop latency, old generation usage after collection and
+ * direct memory usage, and moves server between {@link OverloadState}s. Server goes to more severe
+ * state as soon as any signal crosses its threshold (or any task is rejected by worker executor),
+ * and steps back one state at a time only after all signals stay below thresholds for a while, so
+ * state doesn't flap.
+ *
+ * <p>
+ * Actions of each state:
+ * <ul>
+ * <li>accepting is paused by acceptors' {@link AcceptorThread.AcceptAdmission} (SSL acceptor pauses
+ * from {@link OverloadState#SHEDDING}, so no new handshakes are started; plain acceptor pauses from
+ * {@link OverloadState#CRITICAL}). Pending connections wait in listen queues;
+ * <li>read budgets of {@link AbstractServer} are shifted right by state ordinal, so each read task
+ * handles less data and TCP flow control pushes back on clients;
+ * <li>in {@link OverloadState#CRITICAL} sessions with the most queued outbound bytes are closed on
+ * each check (with stream error, see {@link AbstractServer#closeOverloaded(AbstractServer.AbstractSocket)}).
+ * </ul>
+ */
+@Component
+@ManagedResource
+@NotNullByDefault
+public class OverloadController {
+
+    private static final long CHECK_DELAY = 250;
+
+    private static final String DIRECT_BUFFER_POOL = "java.nio:type=BufferPool,name=direct";
+
+    private static final Log log = LogFactory.getLog(OverloadController.class);
+
+    private static final int MAX_RECENT_TRANSITIONS = 16;
+
+    /**
+     * How often (in milliseconds) paused acceptor checks if it can accept again
+     */
+    private static final long PAUSE_CHECK_DELAY = 100;
+
+    /**
+     * Number of consecutive checks all signals shall stay below current state thresholds to step
+     * back
+     */
+    static final int RECOVERY_CHECKS = 20;
+
+    /**
+     * @return old generation heap pool, i.e. the only heap pool that supports usage threshold, or
+     *         <tt>null</tt> if it can't be found
+     */
+    @Nullable
+    private static MemoryPoolMXBean findTenuredPool() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported()) {
+                return pool;
+            }
+        }
+        log.warn("Old generation heap pool not found, heap usage is not watched");
+        return null;
+    }
+
+    private final AtomicLong acceptPauses = new AtomicLong(0);
+
+    @Autowired
+    private AsyncOperationsExecutor asyncOperationsExecutor;
+
+    private double criticalDirectMemoryUsage = 0.95;
+
+    private double criticalExecutorQueueUsage = 0.75;
+
+    private double criticalHeapUsage = 0.95;
+
+    /**
+     * Microseconds
+     */
+    private long criticalPollerLag = 100 * 1000;
+
+    private volatile double directMemoryUsage = 0;
+
+    private volatile double executorQueueUsage = 0;
+
+    private volatile double heapUsage = 0;
+
+    private long lastRejectedTasks = 0;
+
+    /**
+     * Direct memory limit. JVM default <tt>-XX:MaxDirectMemorySize</tt> equals maximum heap size.
+     */
+    private long maxDirectMemory = Runtime.getRuntime().maxMemory();
+
+    private long overloadCloseMinQueuedBytes = 64 << 10;
+
+    private final AtomicLong overloadCloses = new AtomicLong(0);
+
+    private int overloadClosesPerCheck = 16;
+
+    private volatile long pollerLag = 0;
+
+    @Autowired
+    private ReadPollers readPollers;
+
+    /**
+     * Guarded by itself
+     */
+    private final LinkedList<String> recentTransitions = new LinkedList<String>();
+
+    /**
+     * Accessed by checking thread only
+     */
+    private int recoveryChecks = 0;
+
+    @Resource
+    private AbstractServer server;
+
+    private double sheddingDirectMemoryUsage = 0.85;
+
+    private double sheddingExecutorQueueUsage = 0.25;
+
+    private double sheddingHeapUsage = 0.85;
+
+    /**
+     * Microseconds
+     */
+    private long sheddingPollerLag = 20 * 1000;
+
+    private volatile OverloadState state = OverloadState.NORMAL;
+
+    private final AtomicLong stateTransitions = new AtomicLong(0);
+
+    private volatile boolean stop = false;
+
+    @Nullable
+    private final MemoryPoolMXBean tenuredPool = findTenuredPool();
+
+    @Scheduled(fixedDelay = CHECK_DELAY)
+    public void check() {
+        if (stop) {
+            return;
+        }
+
+        final long queueCapacity = asyncOperationsExecutor.getQueueSize()
+                + asyncOperationsExecutor.getRemainingCapacity();
+        executorQueueUsage = queueCapacity == 0 ? 0 : (double) asyncOperationsExecutor.getQueueSize()
+                / queueCapacity;
+        pollerLag = readPollers.getMaxLoopLatency();
+
+        heapUsage = getTenuredUsage();
+
+        final long directMemoryUsed = getDirectMemoryUsed();
+        directMemoryUsage = directMemoryUsed < 0 || maxDirectMemory <= 0 ? 0 : (double) directMemoryUsed
+                / maxDirectMemory;
+
+        final long rejectedTasks = asyncOperationsExecutor.getRejectedTasks();
+        final long newRejectedTasks = rejectedTasks - lastRejectedTasks;
+        lastRejectedTasks = rejectedTasks;
+
+        OverloadState target = max(OverloadState.NORMAL,
+                level(executorQueueUsage, sheddingExecutorQueueUsage, criticalExecutorQueueUsage));
+        target = max(target, level(pollerLag, sheddingPollerLag, criticalPollerLag));
+        target = max(target, level(heapUsage, sheddingHeapUsage, criticalHeapUsage));
+        target = max(target, level(directMemoryUsage, sheddingDirectMemoryUsage, criticalDirectMemoryUsage));
+        if (newRejectedTasks > 0) {
+            target = OverloadState.CRITICAL;
+        }
+
+        final OverloadState current = state;
+        if (target.compareTo(current) > 0) {
+            recoveryChecks = 0;
+            transition(current, target, newRejectedTasks);
+        } else if (target.compareTo(current) < 0) {
+            if (++recoveryChecks >= RECOVERY_CHECKS) {
+                recoveryChecks = 0;
+                transition(current, OverloadState.values()[current.ordinal() - 1], newRejectedTasks);
+            }
+        } else {
+            recoveryChecks = 0;
+        }
+
+        if (state == OverloadState.CRITICAL) {
+            overloadCloses.addAndGet(server.closeHeaviestSockets(overloadClosesPerCheck,
+                    overloadCloseMinQueuedBytes));
+        }
+    }
+
+    /**
+     * @return number of times acceptor threads were paused because of overload
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getAcceptPauses() {
+        return acceptPauses.get();
+    }
+
+    @ManagedAttribute
+    public double getCriticalDirectMemoryUsage() {
+        return criticalDirectMemoryUsage;
+    }
+
+    @ManagedAttribute
+    public double getCriticalExecutorQueueUsage() {
+        return criticalExecutorQueueUsage;
+    }
+
+    @ManagedAttribute
+    public double getCriticalHeapUsage() {
+        return criticalHeapUsage;
+    }
+
+    /**
+     * @return read poller loop latency (in microseconds) that makes server critically overloaded
+     */
+    @ManagedAttribute
+    public long getCriticalPollerLag() {
+        return criticalPollerLag;
+    }
+
+    /**
+     * @return direct memory usage (part of {@link #getMaxDirectMemory()}) at last check
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public double getDirectMemoryUsage() {
+        return directMemoryUsage;
+    }
+
+    /**
+     * @return bytes used by direct buffers, or <tt>-1</tt> if JVM doesn't provide buffer pool
+     *         statistics
+     */
+    private long getDirectMemoryUsed() {
+        try {
+            return ((Number) ManagementFactory.getPlatformMBeanServer().getAttribute(
+                    new ObjectName(DIRECT_BUFFER_POOL), "MemoryUsed")).longValue();
+        } catch (Exception exc) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return worker executor queue usage (part of its capacity) at last check
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public double getExecutorQueueUsage() {
+        return executorQueueUsage;
+    }
+
+    /**
+     * @return old generation usage after the latest collection of it (part of its maximum size) at
+     *         last check. Garbage collected by the next collection is not counted, so usage is high
+     *         only if live data doesn't fit.
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public double getHeapUsage() {
+        return heapUsage;
+    }
+
+    @ManagedAttribute
+    public long getMaxDirectMemory() {
+        return maxDirectMemory;
+    }
+
+    /**
+     * @return minimum number of queued outbound bytes session shall have to be closed because of
+     *         overload
+     */
+    @ManagedAttribute
+    public long getOverloadCloseMinQueuedBytes() {
+        return overloadCloseMinQueuedBytes;
+    }
+
+    /**
+     * @return number of sessions closed because of overload
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getOverloadCloses() {
+        return overloadCloses.get();
+    }
+
+    /**
+     * @return maximum number of sessions closed on each check in critical state
+     */
+    @ManagedAttribute
+    public int getOverloadClosesPerCheck() {
+        return overloadClosesPerCheck;
+    }
+
+    /**
+     * @return the worst read poller loop latency (in microseconds) at last check
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public long getPollerLag() {
+        return pollerLag;
+    }
+
+    /**
+     * @return the latest state transitions with their reasons, the most recent last
+     */
+    @ManagedAttribute
+    public String[] getRecentTransitions() {
+        synchronized (recentTransitions) {
+            return recentTransitions.toArray(new String[recentTransitions.size()]);
+        }
+    }
+
+    private double getTenuredUsage() {
+        if (tenuredPool == null) {
+            return 0;
+        }
+
+        final MemoryUsage afterCollection = tenuredPool.getCollectionUsage();
+        if (afterCollection == null) {
+            return 0;
+        }
+
+        long max = afterCollection.getMax();
+        if (max <= 0) {
+            max = Runtime.getRuntime().maxMemory();
+        }
+        return (double) afterCollection.getUsed() / max;
+    }
+
+    @ManagedAttribute
+    public double getSheddingDirectMemoryUsage() {
+        return sheddingDirectMemoryUsage;
+    }
+
+    @ManagedAttribute
+    public double getSheddingExecutorQueueUsage() {
+        return sheddingExecutorQueueUsage;
+    }
+
+    @ManagedAttribute
+    public double getSheddingHeapUsage() {
+        return sheddingHeapUsage;
+    }
+
+    /**
+     * @return read poller loop latency (in microseconds) that makes server start shedding load
+     */
+    @ManagedAttribute
+    public long getSheddingPollerLag() {
+        return sheddingPollerLag;
+    }
+
+    /**
+     * @return current {@link OverloadState} name
+     */
+    @ManagedAttribute
+    public String getState() {
+        return state.name();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getStateTransitions() {
+        return stateTransitions.get();
+    }
+
+    private OverloadState level(double value, double sheddingThreshold, double criticalThreshold) {
+        if (value >= criticalThreshold) {
+            return OverloadState.CRITICAL;
+        }
+        if (value >= sheddingThreshold) {
+            return OverloadState.SHEDDING;
+        }
+        return OverloadState.NORMAL;
+    }
+
+    private OverloadState max(OverloadState a, OverloadState b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    /**
+     * @param pauseAt
+     *            state starting from which connections shall not be accepted
+     * @param next
+     *            admission to ask for permits when server is not overloaded, or <tt>null</tt>
+     */
+    AcceptorThread.AcceptAdmission newAcceptAdmission(OverloadState pauseAt,
+            @Nullable AcceptorThread.AcceptAdmission next) {
+        return new PausingAdmission(pauseAt, next);
+    }
+
+    void setAsyncOperationsExecutor(AsyncOperationsExecutor asyncOperationsExecutor) {
+        this.asyncOperationsExecutor = asyncOperationsExecutor;
+    }
+
+    @ManagedAttribute
+    public void setCriticalDirectMemoryUsage(double criticalDirectMemoryUsage) {
+        this.criticalDirectMemoryUsage = criticalDirectMemoryUsage;
+    }
+
+    @ManagedAttribute
+    public void setCriticalExecutorQueueUsage(double criticalExecutorQueueUsage) {
+        this.criticalExecutorQueueUsage = criticalExecutorQueueUsage;
+    }
+
+    @ManagedAttribute
+    public void setCriticalHeapUsage(double criticalHeapUsage) {
+        this.criticalHeapUsage = criticalHeapUsage;
+    }
+
+    @ManagedAttribute
+    public void setCriticalPollerLag(long criticalPollerLag) {
+        this.criticalPollerLag = criticalPollerLag;
+    }
+
+    @ManagedAttribute
+    public void setMaxDirectMemory(long maxDirectMemory) {
+        this.maxDirectMemory = maxDirectMemory;
+    }
+
+    @ManagedAttribute
+    public void setOverloadCloseMinQueuedBytes(long overloadCloseMinQueuedBytes) {
+        this.overloadCloseMinQueuedBytes = overloadCloseMinQueuedBytes;
+    }
+
+    @ManagedAttribute
+    public void setOverloadClosesPerCheck(int overloadClosesPerCheck) {
+        this.overloadClosesPerCheck = overloadClosesPerCheck;
+    }
+
+    void setReadPollers(ReadPollers readPollers) {
+        this.readPollers = readPollers;
+    }
+
+    @ManagedAttribute
+    public void setSheddingDirectMemoryUsage(double sheddingDirectMemoryUsage) {
+        this.sheddingDirectMemoryUsage = sheddingDirectMemoryUsage;
+    }
+
+    @ManagedAttribute
+    public void setSheddingExecutorQueueUsage(double sheddingExecutorQueueUsage) {
+        this.sheddingExecutorQueueUsage = sheddingExecutorQueueUsage;
+    }
+
+    @ManagedAttribute
+    public void setSheddingHeapUsage(double sheddingHeapUsage) {
+        this.sheddingHeapUsage = sheddingHeapUsage;
+    }
+
+    @ManagedAttribute
+    public void setSheddingPollerLag(long sheddingPollerLag) {
+        this.sheddingPollerLag = sheddingPollerLag;
+    }
+
+    void setServer(AbstractServer server) {
+        this.server = server;
+    }
+
+    @PreDestroy
+    public void stop() {
+        // paused acceptors shall not block shutdown
+        stop = true;
+    }
+
+    private void transition(OverloadState from, OverloadState to, long newRejectedTasks) {
+        state = to;
+        stateTransitions.incrementAndGet();
+        server.setReadBudgetShift(to.ordinal());
+
+        final String description = new Date() + ": " + from + " -> " + to + " (executor queue "
+                + Math.round(executorQueueUsage * 100) + "%, poller lag " + pollerLag / 1000 + " ms, heap "
+                + Math.round(heapUsage * 100) + "%, direct memory " + Math.round(directMemoryUsage * 100) + "%, "
+                + newRejectedTasks + " rejected task(s))";
+        if (to.compareTo(from) > 0) {
+            log.warn("Overload state changed: " + description);
+        } else {
+            log.info("Overload state changed: " + description);
+        }
+
+        synchronized (recentTransitions) {
+            recentTransitions.addLast(description);
+            if (recentTransitions.size() > MAX_RECENT_TRANSITIONS) {
+                recentTransitions.removeFirst();
+            }
+        }
+    }
+
+    private final class PausingAdmission implements AcceptorThread.AcceptAdmission {
+
+        @Nullable
+        private final AcceptorThread.AcceptAdmission next;
+
+        private final OverloadState pauseAt;
+
+        private PausingAdmission(OverloadState pauseAt, @Nullable AcceptorThread.AcceptAdmission next) {
+            this.pauseAt = pauseAt;
+            this.next = next;
+        }
+
+        @Override
+        public void acquire() throws InterruptedException {
+            if (!stop && state.compareTo(pauseAt) >= 0) {
+                acceptPauses.incrementAndGet();
+                while (!stop && state.compareTo(pauseAt) >= 0) {
+                    Thread.sleep(PAUSE_CHECK_DELAY);
+                }
+            }
+            if (next != null) {
+                next.acquire();
+            }
+        }
+
+        @Override
+        public void release(int permits) {
+            if (next != null) {
+                next.release(permits);
+            }
+        }
+
+        @Override
+        public int tryAcquire(int max) {
+            if (!stop && state.compareTo(pauseAt) >= 0) {
+                return 0;
+            }
+            return next == null ? max : next.tryAcquire(max);
+        }
+    }
+}
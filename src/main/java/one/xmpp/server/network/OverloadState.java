@@ -0,0 +1,25 @@
+package one.xmpp.server.network;
+
+/**
+ * Overload level of the server, see {@link OverloadController}
+ */
+public enum OverloadState {
+
+    /**
+     * Server keeps up with the load
+     */
+    NORMAL,
+
+    /**
+     * Server is falling behind: new SSL connections are not accepted (so no new handshakes are
+     * started) and read budgets are halved
+     */
+    SHEDDING,
+
+    /**
+     * Server is about to lose events or run out of memory: no connections are accepted at all,
+     * read budgets are quartered and sessions with the longest output queues are closed with
+     * stream error
+     */
+    CRITICAL;
+}
@@ -0,0 +1,28 @@
+package one.xmpp.server.network;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * Index of the poller socket is assigned to (within {@link ReadPollers} or {@link WritePollers}).
+ * Assigned when socket is added to poll for the first time, and changed only by socket operations
+ * cycle owner when socket is not in any poll, so it always points to the poller socket can be
+ * removed from.
+ */
+@NotNullByDefault
+final class PollerAssignment {
+
+    /**
+     * <tt>-1</tt> if socket was never added to poll
+     */
+    volatile int index = -1;
+
+    /**
+     * Index of the poller socket shall be moved to next time it is added to poll, or <tt>-1</tt>
+     */
+    volatile int migrateTo = -1;
+
+    @Override
+    public String toString() {
+        return migrateTo < 0 ? String.valueOf(index) : index + " -> " + migrateTo;
+    }
+}
@@ -1,27 +1,49 @@
 package one.xmpp.server.network;
 
+import java.util.ArrayList;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
-import org.apache.tomcat.jni.Poll;
-import org.apache.tomcat.jni.Status;
-
 import one.ejb.NotNullByDefault;
 import one.xmpp.server.network.AbstractServer.AbstractSocket;
 
+/**
+ * Waits for sockets to become readable. In unified polling mode also waits for sockets with pending
+ * output to become writable. In reactor mode also runs tasks of its sockets.
+ */
 @NotNullByDefault
 class ReadPoller extends AbstractPoller {
 
+    /**
+     * Sockets removed from poll, whose operations cycle was rejected by overloaded executor.
+     * Retried at next poller loop. Accessed from poller thread only.
+     */
+    private final ArrayList<AbstractSocket> deferredOperationsCycles = new ArrayList<AbstractSocket>();
+
     private final NetworkOperationsLogger opLogger;
 
     private final Queue<AbstractSocket> toScheduleOperationsCycle = new ConcurrentLinkedQueue<AbstractSocket>();
 
-    public ReadPoller(final NetworkOperationsLogger opLogger, int maxConnections, long socketPollTimeoutUs, int index) {
-        super("ReadPoller-" + index, Poll.APR_POLLIN, maxConnections, socketPollTimeoutUs);
+    public ReadPoller(final NetworkOperationsLogger opLogger, int maxConnections, int queueCapacity,
+            boolean oneShotPolling, boolean reactor, int index) {
+        super((reactor ? "Reactor-" : "ReadPoller-") + index, Transport.POLLIN, maxConnections, queueCapacity,
+                oneShotPolling, reactor, index);
         this.opLogger = opLogger;
     }
 
+    @Override
+    protected void addToPollQueueLater(AbstractSocket socket) {
+        // shall be set before socket is visible to poller thread
+        socket.pendingReadPollAdd.set(index);
+        super.addToPollQueueLater(socket);
+    }
+
     public boolean addToScheduleOperationsCycle(AbstractSocket socket) {
+        if (!socket.pendingOperationsCycle.compareAndSet(false, true)) {
+            // already in queue
+            return false;
+        }
+
         final boolean add = toScheduleOperationsCycle.add(socket);
         wakeUpPoll();
         return add;
@@ -33,20 +55,29 @@ class ReadPoller extends AbstractPoller {
 
         final boolean logTraceEnabled = log.isTraceEnabled();
 
+        if (!deferredOperationsCycles.isEmpty()) {
+            retryDeferredOperationsCycles();
+        }
+        abstractServer.rearmRejectedSockets();
+
         AbstractSocket socket;
         while ((socket = toScheduleOperationsCycle.poll()) != null) {
+            if (!socket.pendingOperationsCycle.compareAndSet(true, false)) {
+                // operations cycle already started by someone else
+                continue;
+            }
+
             boolean removed = false;
 
-            // synchronized (pollLock) {
-            synchronized (toPollQueue) {
-                final int indexOf = toPollQueue.indexOf(socket);
-                if (indexOf != -1) {
-                    toPollQueue.remove(indexOf);
-                    removed = true;
+            /*
+             * Cancel pending add (if any) in O(1). Socket stays in add-to-poll queue, but will be
+             * skipped by beforeAddToPoll()
+             */
+            if (socket.pendingReadPollAdd.compareAndSet(index, -1)) {
+                removed = true;
 
-                    if (logTraceEnabled) {
-                        log.trace(socket + " is removed from to-poll-queue of poll #" + pollPointer);
-                    }
+                if (logTraceEnabled) {
+                    log.trace(socket + " is removed from to-poll-queue of " + poll);
                 }
             }
 
@@ -64,13 +95,32 @@ class ReadPoller extends AbstractPoller {
                     continue;
                 }
 
-                int result = Poll.remove(pollPointer, socket.getClientSocketPointer());
-
-                if (result == Status.APR_SUCCESS) {
+                if (poll.remove(socket.getClientSocketPointer())) {
                     removed = true;
                     if (logTraceEnabled) {
-                        log.trace(socket + " is removed from reading poll #" + pollPointer);
+                        log.trace(socket + " is removed from reading " + poll);
+                    }
+                } else if (socket.readPollerAssignment.index != index) {
+                    /*
+                     * Socket was migrated to other poller after request was queued here. Assignment
+                     * is changed before socket is added to new poller, so request can be passed
+                     * there.
+                     */
+                    if (logTraceEnabled) {
+                        log.trace(socket + " is migrated, passing operations cycle request to other poller");
+                    }
+                    abstractServer.scheduleOperationsCycleLater(socket);
+                    continue;
+                } else if (socket.rejectedParked.get()) {
+                    /*
+                     * Socket was parked because of rejected task after request was queued here, so
+                     * request is passed to whoever takes it out of parked state.
+                     */
+                    if (logTraceEnabled) {
+                        log.trace(socket + " is parked, passing operations cycle request to it");
                     }
+                    abstractServer.scheduleOperationsCycleLater(socket);
+                    continue;
                 }
             }
 
@@ -79,42 +129,84 @@ class ReadPoller extends AbstractPoller {
                     log.trace(socket + " added to async queue to process it's own queue");
                 }
 
-                abstractServer.scheduleOperationsCycle(socket);
+                if (!abstractServer.scheduleOperationsCycle(socket)) {
+                    deferredOperationsCycles.add(socket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sockets stay deferred until executor accepts them (or they are closed), poller doesn't wake
+     * itself up for that, so retries are made at most once per poll timeout when server is idle
+     */
+    private void retryDeferredOperationsCycles() {
+        int retained = 0;
+        for (int i = 0, size = deferredOperationsCycles.size(); i < size; i++) {
+            final AbstractSocket socket = deferredOperationsCycles.get(i);
+            if (socket.isClosed() || abstractServer.scheduleOperationsCycle(socket)) {
+                continue;
             }
+            deferredOperationsCycles.set(retained++, socket);
+        }
+        deferredOperationsCycles.subList(retained, deferredOperationsCycles.size()).clear();
+
+        if (retained != 0 && log.isDebugEnabled()) {
+            log.debug(retained + " operations cycle(s) are still deferred by " + this);
         }
     }
 
     @Override
-    protected void logSignal(long signal) {
-        opLogger.onReadPollerSignal(signal);
+    protected int getPollEvents(AbstractSocket socket) {
+        return socket.pollEvents;
     }
 
     @Override
-    protected void onHangUp(long clientSocketPointer) {
-        abstractServer.handleHangUp(clientSocketPointer);
+    protected boolean beforeAddToPoll(AbstractSocket socket) {
+        /*
+         * false if add was cancelled or socket is a duplicate of already processed one, or if
+         * socket was migrated to other poller after that
+         */
+        return socket.pendingReadPollAdd.compareAndSet(index, -1);
     }
 
     @Override
-    protected void onMaintain(long clientSocketPointer) {
-        abstractServer.handleMaintain(clientSocketPointer);
+    protected void logSignal(long signal) {
+        opLogger.onReadPollerSignal(signal);
+    }
+
+    @Override
+    protected void onHangUp(long clientSocketPointer) {
+        abstractServer.handleHangUp(index, clientSocketPointer);
     }
 
     @Override
     protected void onPendingError(long clientSocketPointer) {
-        abstractServer.handlePendingError(clientSocketPointer);
+        abstractServer.handlePendingError(index, clientSocketPointer);
     }
 
     @Override
     protected void onSignal(long clientSocketPointer, long signal) {
-        if ((signal & Poll.APR_POLLIN) != 0) {
-            this.abstractServer.canReadWithoutBlocking(clientSocketPointer);
+        final boolean canRead = (signal & Transport.POLLIN) != 0;
+        final boolean canWrite = (signal & Transport.POLLOUT) != 0;
+
+        if (canRead && canWrite) {
+            this.abstractServer.canReadAndWriteWithoutBlocking(index, clientSocketPointer);
+        } else if (canRead) {
+            this.abstractServer.canReadWithoutBlocking(index, clientSocketPointer);
+        } else if (canWrite) {
+            this.abstractServer.canWriteWithoutBlocking(index, clientSocketPointer);
         } else {
             log.warn("Unsupported signal from " + clientSocketPointer + ": " + signal + ". Socket is probably 'lost'.");
         }
     }
 
+    /**
+     * Cancels socket operations cycle scheduling in O(1). Socket stays in queue, but will be skipped
+     * by poller thread.
+     */
     public boolean removeFromToScheduleOperationsCycle(AbstractSocket socket) {
-        return toScheduleOperationsCycle.remove(socket);
+        return socket.pendingOperationsCycle.compareAndSet(true, false);
     }
 
 }
\ No newline at end of file
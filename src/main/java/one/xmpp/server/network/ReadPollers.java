@@ -27,15 +27,47 @@ public class ReadPollers extends AbstractPollers {
         getPoller(socket).addToScheduleOperationsCycle(socket);
     }
 
+    @Override
+    protected PollerAssignment getAssignment(AbstractSocket socket) {
+        return socket.readPollerAssignment;
+    }
+
+    /**
+     * In reactor mode socket lives in poller of its reactor
+     */
+    @Override
+    protected int getPinnedPoller(AbstractSocket socket) {
+        return xmppProxyConfiguration.getReactorsCount() > 0 ? socket.reactor : -1;
+    }
+
     @Override
     public ReadPoller getPoller(AbstractSocket socket) {
         return ((ReadPoller) super.getPoller(socket));
     }
 
+    /**
+     * In reactor mode each reactor is a read poller
+     */
+    @Override
+    protected int getPollersCount() {
+        final int reactors = xmppProxyConfiguration.getReactorsCount();
+        return reactors > 0 ? reactors : xmppProxyConfiguration.getReadPollersCount();
+    }
+
     @Override
     protected AbstractPoller newPoller(int maxConnectionsPerPoller, int pollerIndex) {
         return new ReadPoller(networkOperationsLogger, maxConnectionsPerPoller,
-                xmppProxyConfiguration.getSocketReadPollTimeout(), pollerIndex);
+                xmppProxyConfiguration.getPollerQueueCapacity(), xmppProxyConfiguration.isOneShotPolling(),
+                xmppProxyConfiguration.getReactorsCount() > 0, pollerIndex);
+    }
+
+    /**
+     * Pulls socket out of poll (as if some operation is queued), so migration is applied as soon
+     * as socket is added to poll again
+     */
+    @Override
+    protected void onMigrationRequested(AbstractSocket socket) {
+        addToScheduleOperationsCycle(socket);
     }
 
     public boolean removeFromToScheduleOperationsCycle(AbstractSocket socket) {
@@ -0,0 +1,46 @@
+package one.xmpp.server.network;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * Decides what to do with data queued to slow consumer: socket whose queued outbound bytes exceeded
+ * high watermark and didn't drain to low watermark yet. See {@link StandardSlowConsumerPolicy} for
+ * standard implementations.
+ */
+@NotNullByDefault
+public interface SlowConsumerPolicy {
+
+    /**
+     * Called for each write queued to slow consumer, possibly by several threads at once, so shall
+     * be fast and shall not call socket methods
+     *
+     * @param droppable
+     *            <tt>true</tt> if data can be dropped or replaced by newer data with the same
+     *            coalescing key (like presence broadcast)
+     */
+    Action onWrite(ISocket socket, boolean droppable);
+
+    enum Action {
+
+        /**
+         * Close socket (protocol implementation can notify client before closing)
+         */
+        CLOSE,
+
+        /**
+         * Replace queued data with the same coalescing key by the new one. Data is queued as
+         * usual if there is no such data, or it can't be replaced already.
+         */
+        COALESCE,
+
+        /**
+         * Don't queue data
+         */
+        DROP,
+
+        /**
+         * Queue data as usual
+         */
+        QUEUE;
+    }
+}
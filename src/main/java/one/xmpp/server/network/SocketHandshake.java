@@ -0,0 +1,44 @@
+package one.xmpp.server.network;
+
+import java.util.concurrent.Executor;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+
+/**
+ * Non-blocking handshake (like TLS one) that shall be completed before any socket data is read.
+ * Handshake is driven by read poller: each time socket becomes readable, worker thread attempts
+ * next step, and socket is returned to read poll if handshake needs more data. Handshake state is
+ * kept by socket itself (or by transport), so single instance can serve all sockets.
+ */
+@NotNullByDefault
+public interface SocketHandshake {
+
+    /**
+     * @return executor to run handshake steps by, or <tt>null</tt> to use server worker threads.
+     *         If executor rejects step, socket is closed.
+     */
+    @Nullable
+    Executor getExecutor();
+
+    /**
+     * @return maximum time in milliseconds handshake may take. Socket is closed by idle timeout if
+     *         handshake is not completed in time.
+     */
+    long getTimeout();
+
+    /**
+     * Called after socket accepted with this handshake is natively closed and destroyed, whether
+     * handshake was completed or not
+     */
+    void onSocketDestroyed(long socket);
+
+    /**
+     * Performs as much of handshake as possible without blocking
+     *
+     * @return <tt>true</tt> if handshake is completed, <tt>false</tt> if it would block
+     * @throws Exception
+     *             if handshake failed
+     */
+    boolean step(long socket) throws Exception;
+}
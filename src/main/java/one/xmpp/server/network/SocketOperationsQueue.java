@@ -0,0 +1,248 @@
+package one.xmpp.server.network;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+
+/**
+ * Lock-free multi-producer single-consumer queue of socket operations. Any thread may offer
+ * operations, but only operations cycle owner (consumer) peeks, walks and removes them, so neither
+ * side takes a lock. Write operations are queue nodes themselves, other operations are wrapped.
+ * <p>
+ * Producers can't remove operations, so they ask consumer to do it: {@link #requestDrop()} marks
+ * operations queued so far, and consumer drops them before running the next one. After
+ * {@link #close()} no operations are accepted.
+ */
+@NotNullByDefault
+final class SocketOperationsQueue {
+
+    /**
+     * Queue node. Fields other than {@link #next} are accessed by consumer only.
+     */
+    abstract static class Node {
+
+        /**
+         * Set by consumer for operation that shall be skipped
+         */
+        boolean dropped = false;
+
+        @Nullable
+        volatile Node next = null;
+
+        /**
+         * Set by consumer when node is removed from queue
+         */
+        boolean removed = false;
+
+        abstract SocketOperation getOperation();
+
+        /**
+         * Called by consumer when node is removed. Removed node is still referenced as queue head
+         * until the next one is removed, so node shall release its data here.
+         */
+        void onRemoved() {
+            // no op
+        }
+    }
+
+    private static final class OperationNode extends Node {
+
+        private final SocketOperation operation;
+
+        OperationNode(SocketOperation operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        SocketOperation getOperation() {
+            return operation;
+        }
+    }
+
+    private static final class StubNode extends Node {
+
+        @Override
+        SocketOperation getOperation() {
+            throw new IllegalStateException("Stub node has no operation");
+        }
+    }
+
+    /**
+     * Tail of closed queue
+     */
+    private static final Node CLOSED = new StubNode();
+
+    private static final AtomicReferenceFieldUpdater<SocketOperationsQueue, Node> DROP_MARK = AtomicReferenceFieldUpdater
+            .newUpdater(SocketOperationsQueue.class, Node.class, "dropMark");
+
+    private static final AtomicIntegerFieldUpdater<SocketOperationsQueue> SIZE = AtomicIntegerFieldUpdater.newUpdater(
+            SocketOperationsQueue.class, "size");
+
+    private static final AtomicReferenceFieldUpdater<SocketOperationsQueue, Node> TAIL = AtomicReferenceFieldUpdater
+            .newUpdater(SocketOperationsQueue.class, Node.class, "tail");
+
+    /**
+     * The last node to drop, see {@link #requestDrop()}
+     */
+    @Nullable
+    private volatile Node dropMark = null;
+
+    /**
+     * The last removed node (or initial stub), queued operations follow it. Modified by consumer
+     * only.
+     */
+    private volatile Node head;
+
+    /**
+     * The last node of closed queue
+     */
+    @Nullable
+    private volatile Node last = null;
+
+    private volatile int size = 0;
+
+    private volatile Node tail;
+
+    SocketOperationsQueue() {
+        final Node stub = new StubNode();
+        // so drop requested while queue is empty drops nothing
+        stub.removed = true;
+        this.head = stub;
+        this.tail = stub;
+    }
+
+    /**
+     * Closes queue, so further offers fail. Consumer only; queued operations are still available
+     * to consumer.
+     */
+    void close() {
+        if (tail == CLOSED) {
+            return;
+        }
+        last = TAIL.getAndSet(this, CLOSED);
+    }
+
+    /**
+     * Removes dropped operations from queue head. Consumer only.
+     *
+     * @return the first queued operation, or <tt>null</tt> if queue is empty
+     */
+    @Nullable
+    Node first() {
+        while (true) {
+            final Node node = next(head);
+            if (node == null || !node.dropped) {
+                return node;
+            }
+            remove(node);
+        }
+    }
+
+    /**
+     * Any thread. Operations marked as dropped, but not removed by consumer yet, are counted.
+     */
+    boolean isEmpty() {
+        final Node currentTail = tail;
+        if (currentTail == CLOSED) {
+            return head == last;
+        }
+        return currentTail == head;
+    }
+
+    /**
+     * Any thread
+     *
+     * @return <tt>true</tt> if node is the last queued one
+     */
+    boolean isTail(Node node) {
+        return tail == node;
+    }
+
+    /**
+     * Consumer only. Waits for producer that added node after the specified one, but didn't link
+     * it yet.
+     *
+     * @return node queued after the specified one, or <tt>null</tt> if it is the last one
+     */
+    @Nullable
+    Node next(Node node) {
+        Node next = node.next;
+        if (next == null && node != tail && node != last) {
+            do {
+                Thread.yield();
+                next = node.next;
+            } while (next == null);
+        }
+        return next;
+    }
+
+    /**
+     * @return <tt>false</tt> if queue is closed
+     */
+    boolean offer(SocketOperation operation) {
+        return offer(operation instanceof Node ? (Node) operation : new OperationNode(operation));
+    }
+
+    private boolean offer(Node node) {
+        // before node is visible, so consumer doesn't make size negative
+        SIZE.incrementAndGet(this);
+        while (true) {
+            final Node currentTail = tail;
+            if (currentTail == CLOSED) {
+                SIZE.decrementAndGet(this);
+                return false;
+            }
+            if (TAIL.compareAndSet(this, currentTail, node)) {
+                currentTail.next = node;
+                return true;
+            }
+        }
+    }
+
+    private void remove(Node node) {
+        node.removed = true;
+        head = node;
+        SIZE.decrementAndGet(this);
+        node.onRemoved();
+    }
+
+    /**
+     * Removes operation if it is still the first one (i.e. it was not removed or dropped already).
+     * Consumer only.
+     */
+    void removeFirst(Node node) {
+        if (first() == node) {
+            remove(node);
+        }
+    }
+
+    /**
+     * Asks consumer to drop operations queued so far, see {@link #takeDropMark()}
+     */
+    void requestDrop() {
+        final Node currentTail = tail;
+        if (currentTail != CLOSED) {
+            dropMark = currentTail;
+        }
+    }
+
+    /**
+     * @return number of queued operations
+     */
+    int size() {
+        return Math.max(0, size);
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the last node to drop (that may be removed or dropped already), or <tt>null</tt> if
+     *         drop is not requested
+     */
+    @Nullable
+    Node takeDropMark() {
+        return dropMark == null ? null : DROP_MARK.getAndSet(this, null);
+    }
+}
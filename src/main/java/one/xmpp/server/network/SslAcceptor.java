@@ -1,78 +1,295 @@
 package one.xmpp.server.network;
 
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.tomcat.jni.Address;
-import org.apache.tomcat.jni.Error;
 import org.apache.tomcat.jni.Pool;
 import org.apache.tomcat.jni.SSL;
-import org.apache.tomcat.jni.SSLContext;
 import org.apache.tomcat.jni.SSLSocket;
-import org.apache.tomcat.jni.Socket;
 import org.apache.tomcat.jni.Status;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 
 import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
 import one.xmpp.server.XmppProxyConfiguration;
-import one.xmpp.utils.AsyncOperationsExecutor;
+import one.xmpp.utils.TokenBucket;
 
 /**
- * Accepts new connections AND handles SSL handshakes
+ * Accepts new connections AND handles SSL handshakes. Requires {@link AprTransport}, since handshake is
+ * done by APR SSL implementation.
+ *
+ * <p>
+ * Handshakes are non-blocking: socket is registered in server right after SSL is attached to it, and
+ * each time read poller signals it, worker thread attempts next handshake step (see
+ * {@link SocketHandshake}). So handshakes in progress hold only memory, not worker threads.
+ * Tomcat Native doesn't tell whether handshake waits for input or for output, so socket always waits
+ * for input: server handshake messages fit into socket send buffer.
+ *
+ * <p>
+ * To make reconnect storms cheaper, SSL sessions are resumable by session ID and by session ticket
+ * (see {@link SslServerContexts}). Ticket keys are rotated every
+ * {@link SslConfiguration#getSessionTicketKeysRotationPeriod()}.
+ *
+ * <p>
+ * Handshake steps are done by dedicated bounded thread pool, so CPU-heavy handshakes of reconnect
+ * storm don't delay traffic of already connected clients. Acceptor threads take connections from
+ * listen queue not faster than {@link XmppProxyConfiguration#getSslHandshakeRate()} per second,
+ * so excess clients wait in kernel (and retry SYN) instead of consuming memory and handshake
+ * queue. If handshake queue is full anyway, socket is closed.
  * 
  * @author Sergey Vladimirov ( sergey {dot} vladimirov {at} odnoklassniki {dot} ru )
  */
 @Component
+@ManagedResource
 @NotNullByDefault
 public class SslAcceptor implements AcceptorThread.SocketAcceptedListener {
 
-    private static final String ADDRESS = "0.0.0.0";
+    /**
+     * How often (in milliseconds) handshakes rate is measured
+     */
+    private static final long HANDSHAKE_RATE_MEASURE_DELAY = 1000;
+
+    /**
+     * Time in milliseconds client has to complete SSL handshake
+     */
+    private static final long HANDSHAKE_TIMEOUT = 10 * 1000;
+
+    private static final String HANDSHAKE_WORKER_NAME_PREFIX = "SslHandshakeWorker-";
 
     private static final Log logger = LogFactory.getLog(SslAcceptor.class);
 
-    private static final int PORT = 5223;
+    /**
+     * How often (in milliseconds) acceptor checks if session ticket keys shall be rotated
+     */
+    private static final long TICKET_KEYS_ROTATION_CHECK_DELAY = 60 * 1000;
 
     static {
         TomcatNativeLibrary.load();
     }
 
-    private AcceptorThread acceptorThread;
+    /**
+     * Accept rate limiter, or <tt>null</tt> if rate is not limited
+     */
+    @Nullable
+    private volatile TokenBucket admissionBucket;
 
-    @Autowired
-    private AsyncOperationsExecutor asyncOperationsExecutor;
+    private final AtomicLong admissionWaits = new AtomicLong(0);
+
+    private ThreadPoolExecutor handshakeExecutor;
+
+    private volatile double handshakeRate;
+
+    private final AtomicLong handshakeRejections = new AtomicLong(0);
 
-    private long inetAddress = 0;
+    private long lastHandshakesCompleted;
+
+    private long lastHandshakeRateMeasure;
+
+    private volatile long lastTicketKeysRotation;
+
+    private Listeners listeners;
+
+    @Autowired
+    private OverloadController overloadController;
 
     private long poolPointer;
 
     @Resource
     private AbstractServer server;
 
-    private long serverSocketPointer;
-
     @Autowired
     private SslConfiguration sslConfiguration;
 
-    public long sslServerContextPointer;
+    private SslServerContexts sslServerContexts;
+
+    @Autowired
+    private Transport transport;
 
     @Autowired
     private XmppProxyConfiguration xmppServiceConfiguration;
 
+    /**
+     * @return number of times acceptor threads waited for accept rate limiter
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getAdmissionWaits() {
+        return admissionWaits.get();
+    }
+
+    /**
+     * @return maximum number of SSL connections accepted per second, or <tt>0</tt> if unlimited
+     */
+    @ManagedAttribute
+    public int getAdmissionRate() {
+        final TokenBucket bucket = admissionBucket;
+        return bucket == null ? 0 : (int) bucket.getRate();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getHandshakeQueueSize() {
+        return handshakeExecutor.getQueue().size();
+    }
+
+    /**
+     * @return number of handshakes completed per second, measured every second
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public double getHandshakeRate() {
+        return handshakeRate;
+    }
+
+    /**
+     * @return number of sockets closed because handshake queue was full
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getHandshakeRejections() {
+        return handshakeRejections.get();
+    }
+
     AbstractServer getServer() {
         return server;
     }
 
+    /**
+     * @return number of SSL sessions resumed (by session ID or by session ticket), or <tt>-1</tt>
+     *         if statistics is not supported by Tomcat Native
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getSessionCacheHits() {
+        return sslServerContexts.getSessionHits();
+    }
+
+    /**
+     * @return number of session IDs not found in session cache, or <tt>-1</tt> if statistics is
+     *         not supported by Tomcat Native
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getSessionCacheMisses() {
+        return sslServerContexts.getSessionMisses();
+    }
+
+    /**
+     * @return part of completed handshakes that resumed previous session instead of full
+     *         handshake, or <tt>-1</tt> if statistics is not supported by Tomcat Native
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public double getSessionResumptionRate() {
+        final long hits = sslServerContexts.getSessionHits();
+        if (hits < 0) {
+            return -1;
+        }
+        final long handshakes = server.getHandshakesCompleted();
+        return handshakes == 0 ? 0 : Math.min(1, (double) hits / handshakes);
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getSessionTicketKeysRotations() {
+        return sslServerContexts.getTicketKeysRotations();
+    }
+
+    /**
+     * @return number of SSL contexts: current one and ones replaced by ticket keys rotations, that
+     *         still have open sockets
+     */
+    @ManagedMetric(metricType = MetricType.GAUGE)
+    public int getSslContexts() {
+        return sslServerContexts.getContextsCount();
+    }
+
+    @Scheduled(fixedDelay = HANDSHAKE_RATE_MEASURE_DELAY)
+    public void measureHandshakeRate() {
+        if (server == null) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final long handshakesCompleted = server.getHandshakesCompleted();
+        if (lastHandshakeRateMeasure != 0) {
+            final long elapsed = now - lastHandshakeRateMeasure;
+            if (elapsed > 0) {
+                handshakeRate = (double) (handshakesCompleted - lastHandshakesCompleted) * TimeUnit.SECONDS.toNanos(1)
+                        / elapsed;
+            }
+        }
+        lastHandshakesCompleted = handshakesCompleted;
+        lastHandshakeRateMeasure = now;
+    }
+
     @Override
-    public void onAcceptedSocket(long clientSocketPointer) {
-        asyncOperationsExecutor.submit(new SslSocketAcceptTask(clientSocketPointer));
+    public void onAcceptedSockets(int acceptorIndex, long[] clientSocketPointers) {
+        try {
+            server.executeAcceptTask(acceptorIndex, new SslSocketsAcceptTask(clientSocketPointers));
+        } catch (RejectedExecutionException exc) {
+            logger.warn("Closing " + clientSocketPointers.length + " accepted connection(s), executor is overloaded");
+            for (long clientSocketPointer : clientSocketPointers) {
+                transport.closeAndDestroy(clientSocketPointer);
+            }
+        }
+    }
+
+    /**
+     * Replaces session ticket keys immediately. Sessions issued before are not resumed after that.
+     */
+    @ManagedOperation
+    public void rotateSessionTicketKeys() throws Exception {
+        sslServerContexts.rotateTicketKeys();
+        lastTicketKeysRotation = System.currentTimeMillis();
     }
 
-    void setAsyncOperationsExecutor(AsyncOperationsExecutor asyncOperationsExecutor) {
-        this.asyncOperationsExecutor = asyncOperationsExecutor;
+    @Scheduled(fixedDelay = TICKET_KEYS_ROTATION_CHECK_DELAY)
+    public void rotateSessionTicketKeysIfNeeded() {
+        final long period = sslConfiguration.getSessionTicketKeysRotationPeriod();
+        if (sslServerContexts == null || period <= 0
+                || System.currentTimeMillis() - lastTicketKeysRotation < period) {
+            return;
+        }
+
+        try {
+            sslServerContexts.rotateTicketKeys();
+            lastTicketKeysRotation = System.currentTimeMillis();
+        } catch (Exception exc) {
+            logger.error("Unable to rotate SSL session ticket keys: " + exc, exc);
+        }
+    }
+
+    /**
+     * Changes accept rate limit. Limit can't be set if acceptor started without one (since acceptor
+     * threads don't ask unlimited admission for permits).
+     *
+     * @param rate
+     *            maximum number of SSL connections accepted per second, positive
+     */
+    @ManagedAttribute
+    public void setAdmissionRate(int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Illegal admission rate: " + rate);
+        }
+        final TokenBucket bucket = admissionBucket;
+        if (bucket == null) {
+            throw new IllegalStateException("SSL acceptor started without admission rate limit");
+        }
+        bucket.setRate(rate);
+        logger.info("SSL admission rate changed to " + rate + " connections per second");
     }
 
     void setServer(AbstractServer sslServer) {
@@ -89,80 +306,169 @@ public class SslAcceptor implements AcceptorThread.SocketAcceptedListener {
 
     @PostConstruct
     public void start() throws Exception {
+        if (!(transport instanceof AprTransport)) {
+            throw new IllegalStateException("SSL acceptor is not supported by " + transport);
+        }
 
         poolPointer = Pool.create(0);
 
-        /* Create SSL Context, one for each Virtual Host */
-        sslServerContextPointer = SSLContext.make(poolPointer, SSL.SSL_PROTOCOL_SSLV2 | SSL.SSL_PROTOCOL_SSLV3
-                | SSL.SSL_PROTOCOL_TLSV1, SSL.SSL_MODE_SERVER);
-        sslConfiguration.setupSslContext(sslServerContextPointer);
+        sslServerContexts = new SslServerContexts(poolPointer, sslConfiguration);
+        lastTicketKeysRotation = System.currentTimeMillis();
+
+        handshakeExecutor = new ThreadPoolExecutor(xmppServiceConfiguration.getSslHandshakeThreads(),
+                xmppServiceConfiguration.getSslHandshakeThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(xmppServiceConfiguration.getSslHandshakeQueueCapacity()),
+                new CustomizableThreadFactory(HANDSHAKE_WORKER_NAME_PREFIX), new HandshakeRejectedHandler());
+
+        AcceptorThread.AcceptAdmission admission = null;
+        final int rate = xmppServiceConfiguration.getSslHandshakeRate();
+        if (rate > 0) {
+            // one second burst
+            final TokenBucket bucket = new TokenBucket(rate, rate);
+            admissionBucket = bucket;
+            admission = new RateAdmission(bucket);
+        }
 
-        logger.info("Accepting: " + ADDRESS + ":" + PORT);
+        // new handshakes are deferred as soon as server starts shedding load
+        listeners = new Listeners(transport, this, overloadController.newAcceptAdmission(OverloadState.SHEDDING,
+                admission));
+        listeners.start(xmppServiceConfiguration.getSslListenAddresses(),
+                Listeners.getListenersPerAddress(xmppServiceConfiguration),
+                xmppServiceConfiguration.socketListenBacklog());
+    }
 
-        inetAddress = Address.info(ADDRESS, Socket.APR_INET, PORT, 0, poolPointer);
-        serverSocketPointer = Socket.create(Socket.APR_INET, Socket.SOCK_STREAM, Socket.APR_PROTO_TCP, poolPointer);
-        Socket.optSet(serverSocketPointer, Socket.APR_TCP_DEFER_ACCEPT, 1);
+    @PreDestroy
+    public void stop() {
+        listeners.stop();
+        handshakeExecutor.shutdownNow();
+        Pool.destroy(poolPointer);
+    }
 
-        int status = Socket.bind(serverSocketPointer, inetAddress);
-        if (status != Status.APR_SUCCESS) {
+    private final class HandshakeRejectedHandler implements RejectedExecutionHandler {
 
-            if (status == 730048) {
-                throw (new Exception("Can't create Acceptor. IP address and port " + ADDRESS + ":" + PORT
-                        + " is already occupied by other application."));
+        @Override
+        @NotNullByDefault(false)
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (!executor.isShutdown()) {
+                handshakeRejections.incrementAndGet();
             }
+            throw new RejectedExecutionException("SSL handshake queue is full (" + executor.getQueue().size()
+                    + " steps queued)");
+        }
+    }
+
+    private final class RateAdmission implements AcceptorThread.AcceptAdmission {
 
-            throw (new Exception("Can't create Acceptor. Error #" + status + ": " + Error.strerror(status)));
+        private final TokenBucket bucket;
+
+        private RateAdmission(TokenBucket bucket) {
+            this.bucket = bucket;
         }
-        Socket.listen(serverSocketPointer, xmppServiceConfiguration.socketListenBacklog());
 
-        acceptorThread = new AcceptorThread("AcceptorThread-" + PORT, serverSocketPointer, this);
-        acceptorThread.start();
-    }
+        @Override
+        public void acquire() throws InterruptedException {
+            if (bucket.tryAcquire(1) == 1) {
+                return;
+            }
+            admissionWaits.incrementAndGet();
+            bucket.acquire(1);
+        }
 
-    @PreDestroy
-    public void stop() {
-        acceptorThread.setStop(true);
-        Socket.destroy(serverSocketPointer);
-        Pool.destroy(poolPointer);
+        @Override
+        public void release(int permits) {
+            bucket.release(permits);
+        }
+
+        @Override
+        public int tryAcquire(int max) {
+            return bucket.tryAcquire(max);
+        }
     }
 
-    private final class SslSocketAcceptTask implements Runnable {
-        private final long clientSocketPointer;
+    /**
+     * Handshake of sockets attached to the same SSL context
+     */
+    private final class SslHandshake implements SocketHandshake {
+
+        private final SslServerContexts.Context context;
 
-        private SslSocketAcceptTask(long clientSocketPointer) {
-            this.clientSocketPointer = clientSocketPointer;
+        private SslHandshake(SslServerContexts.Context context) {
+            this.context = context;
         }
 
         @Override
-        public void run() {
-            boolean done = false;
-            try {
-                Socket.timeoutSet(clientSocketPointer, 10 * 1000 * 1000);
-                SSLSocket.attach(sslServerContextPointer, clientSocketPointer);
-                final int sslStatus = SSLSocket.handshake(clientSocketPointer);
-
-                if (sslStatus != Status.APR_SUCCESS) {
-                    logger.debug("SSL handshake failed: Error #" + sslStatus + ": " + SSL.getLastError());
-                    return;
-                }
+        public Executor getExecutor() {
+            return handshakeExecutor;
+        }
 
-                server.accepted(clientSocketPointer, true);
-                done = true;
+        @Override
+        public long getTimeout() {
+            return HANDSHAKE_TIMEOUT;
+        }
 
-            } catch (Exception exc) {
+        @Override
+        public void onSocketDestroyed(long socket) {
+            sslServerContexts.release(context);
+        }
 
-                logger.error("Socket not accepted: " + exc);
+        @Override
+        public boolean step(long socket) throws Exception {
+            final int sslStatus = SSLSocket.handshake(socket);
+            if (sslStatus == Status.APR_SUCCESS) {
+                return true;
+            }
+            if (Status.APR_STATUS_IS_EAGAIN(sslStatus) || Status.APR_STATUS_IS_TIMEUP(sslStatus)
+                    || transport.isWouldBlock(sslStatus)) {
+                return false;
+            }
+            throw new Exception("SSL handshake failed: Error #" + sslStatus + ": " + SSL.getLastError());
+        }
 
-            } finally {
-                if (!done) {
-                    AprUtils.closeAndDestroySocketSafe(clientSocketPointer);
+        @Override
+        public String toString() {
+            return "SslHandshake [context=" + context + "]";
+        }
+    }
+
+    /**
+     * Attaches SSL to accepted sockets and registers them in server. Handshakes are done later, when
+     * sockets become readable.
+     */
+    private final class SslSocketsAcceptTask implements Runnable {
+        private final long[] clientSocketPointers;
+
+        private SslSocketsAcceptTask(long[] clientSocketPointers) {
+            this.clientSocketPointers = clientSocketPointers;
+        }
+
+        @Override
+        public void run() {
+            final SslServerContexts.Context context = sslServerContexts.acquireCurrent(clientSocketPointers.length);
+            final long[] attached = new long[clientSocketPointers.length];
+            int count = 0;
+            for (long clientSocketPointer : clientSocketPointers) {
+                try {
+                    final int status = SSLSocket.attach(context.pointer, clientSocketPointer);
+                    if (status != Status.APR_SUCCESS) {
+                        throw new Exception("Error #" + status + ": " + SSL.getLastError());
+                    }
+                    attached[count++] = clientSocketPointer;
+                } catch (Exception exc) {
+                    logger.error("Socket not accepted, unable to attach SSL: " + exc);
+                    transport.closeAndDestroy(clientSocketPointer);
+                    sslServerContexts.release(context);
                 }
             }
+
+            if (count > 0) {
+                server.accepted(count == attached.length ? attached : Arrays.copyOf(attached, count), true,
+                        new SslHandshake(context));
+            }
         }
 
         @Override
         public String toString() {
-            return "SslSocketAcceptTask [" + clientSocketPointer + "]";
+            return "SslSocketsAcceptTask [" + clientSocketPointers.length + " sockets]";
         }
     }
 
@@ -5,6 +5,18 @@ import one.ejb.NotNullByDefault;
 @NotNullByDefault
 public interface SslConfiguration {
 
+    /**
+     * @return maximum number of SSL sessions kept in server session cache for session ID
+     *         resumption. When cache is full, least recently used sessions are evicted.
+     */
+    public int getSessionCacheSize();
+
+    /**
+     * @return period in milliseconds session ticket keys are replaced with new random ones, or
+     *         <tt>0</tt> to keep them for server lifetime
+     */
+    public long getSessionTicketKeysRotationPeriod();
+
     /**
      * Set SSL Context parameters, including chain file path, certificate file path, accepted
      * protocols, password (if required)
@@ -0,0 +1,238 @@
+package one.xmpp.server.network;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.tomcat.jni.SSL;
+import org.apache.tomcat.jni.SSLContext;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+
+/**
+ * Server SSL contexts of {@link SslAcceptor}. SSL sessions can be resumed either by session ID,
+ * looked up in context session cache, or by session ticket, encrypted by context ticket keys.
+ * OpenSSL generates random ticket keys for each context, so keys are rotated by replacing current
+ * context with new one (sessions issued by previous context are not resumed after that). Replaced
+ * context can't be freed while sockets attached to it are open, so sockets are counted per context
+ * and replaced (retired) context is freed when the last of them is destroyed. XMPP connections live
+ * for hours, so any number of retired contexts may be kept, and rotation never waits for them.
+ *
+ * <p>
+ * Session cache size and statistics methods appeared in later Tomcat Native versions than the one
+ * server is built against, so they are resolved reflectively and used only if available.
+ */
+@NotNullByDefault
+final class SslServerContexts {
+
+    /**
+     * Sessions are resumed only by contexts with the same session ID context
+     */
+    private static final String CONTEXT_ID = "one-xmpp-proxy";
+
+    private static final Log log = LogFactory.getLog(SslServerContexts.class);
+
+    @Nullable
+    private static final Method SESSION_HITS = findMethod("sessionHits", long.class);
+
+    @Nullable
+    private static final Method SESSION_MISSES = findMethod("sessionMisses", long.class);
+
+    @Nullable
+    private static final Method SET_SESSION_CACHE_SIZE = findMethod("setSessionCacheSize", long.class, long.class);
+
+    @Nullable
+    private static Method findMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return SSLContext.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException exc) {
+            return null;
+        }
+    }
+
+    private volatile Context current;
+
+    /**
+     * Statistics of freed contexts
+     */
+    private long freedSessionHits = 0;
+
+    /**
+     * Statistics of freed contexts
+     */
+    private long freedSessionMisses = 0;
+
+    private final long poolPointer;
+
+    /**
+     * Contexts replaced by rotations, that still have open sockets. Guarded by this.
+     */
+    private final List<Context> retired = new ArrayList<Context>();
+
+    private final SslConfiguration sslConfiguration;
+
+    private final AtomicLong ticketKeysRotations = new AtomicLong(0);
+
+    SslServerContexts(long poolPointer, SslConfiguration sslConfiguration) throws Exception {
+        this.poolPointer = poolPointer;
+        this.sslConfiguration = sslConfiguration;
+
+        if (SET_SESSION_CACHE_SIZE == null) {
+            log.warn("Tomcat Native doesn't support session cache size configuration, default size is used");
+        }
+        this.current = newContext();
+    }
+
+    /**
+     * @return context new sockets shall be attached to. Caller shall {@link #release(Context)} it
+     *         for each of sockets, once socket is destroyed (or not attached).
+     */
+    synchronized Context acquireCurrent(int sockets) {
+        current.sockets.addAndGet(sockets);
+        return current;
+    }
+
+    private void free(Context context) {
+        freedSessionHits += Math.max(0, invoke(SESSION_HITS, context));
+        freedSessionMisses += Math.max(0, invoke(SESSION_MISSES, context));
+        SSLContext.free(context.pointer);
+        log.info("SSL context #" + context.pointer + " freed");
+    }
+
+    private synchronized void freeIfRetired(Context context) {
+        if (context.sockets.get() == 0 && retired.remove(context)) {
+            free(context);
+        }
+    }
+
+    /**
+     * @return number of contexts: current one and retired ones that still have open sockets
+     */
+    synchronized int getContextsCount() {
+        return 1 + retired.size();
+    }
+
+    /**
+     * @return number of resumed sessions (by session ID or ticket), or <tt>-1</tt> if not
+     *         supported by Tomcat Native
+     */
+    synchronized long getSessionHits() {
+        return sum(SESSION_HITS, freedSessionHits);
+    }
+
+    /**
+     * @return number of session IDs not found in session cache, or <tt>-1</tt> if not supported by
+     *         Tomcat Native
+     */
+    synchronized long getSessionMisses() {
+        return sum(SESSION_MISSES, freedSessionMisses);
+    }
+
+    long getTicketKeysRotations() {
+        return ticketKeysRotations.get();
+    }
+
+    private long invoke(@Nullable Method statisticsMethod, Context context) {
+        if (statisticsMethod == null) {
+            return -1;
+        }
+
+        try {
+            return ((Number) statisticsMethod.invoke(null, Long.valueOf(context.pointer))).longValue();
+        } catch (Exception exc) {
+            log.error("Unable to get SSL session statistics: " + exc, exc);
+            return -1;
+        }
+    }
+
+    private Context newContext() throws Exception {
+        final long contextPointer = SSLContext.make(poolPointer, SSL.SSL_PROTOCOL_SSLV2 | SSL.SSL_PROTOCOL_SSLV3
+                | SSL.SSL_PROTOCOL_TLSV1, SSL.SSL_MODE_SERVER);
+        sslConfiguration.setupSslContext(contextPointer);
+        SSLContext.setContextId(contextPointer, CONTEXT_ID);
+
+        if (SET_SESSION_CACHE_SIZE != null) {
+            SET_SESSION_CACHE_SIZE.invoke(null, Long.valueOf(contextPointer),
+                    Long.valueOf(sslConfiguration.getSessionCacheSize()));
+        }
+
+        return new Context(contextPointer);
+    }
+
+    /**
+     * Shall be called once for each of sockets context was acquired for
+     */
+    void release(Context context) {
+        if (context.sockets.decrementAndGet() == 0) {
+            freeIfRetired(context);
+        }
+    }
+
+    /**
+     * Replaces current context with new one, that has new random session ticket keys and empty
+     * session cache. Replaced context is retired until its sockets are destroyed.
+     */
+    synchronized void rotateTicketKeys() throws Exception {
+        final Context replaced = current;
+        current = newContext();
+        retired.add(replaced);
+        freeIfRetired(replaced);
+        ticketKeysRotations.incrementAndGet();
+
+        log.info("SSL session ticket keys rotated, " + replaced.sockets.get()
+                + " socket(s) still use previous context, " + retired.size() + " context(s) retired");
+    }
+
+    private long sum(@Nullable Method statisticsMethod, long freed) {
+        if (statisticsMethod == null) {
+            return -1;
+        }
+
+        final long currentValue = invoke(statisticsMethod, current);
+        if (currentValue < 0) {
+            return -1;
+        }
+
+        long result = freed + currentValue;
+        for (Context context : retired) {
+            final long value = invoke(statisticsMethod, context);
+            if (value < 0) {
+                return -1;
+            }
+            result += value;
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SslServerContexts [current=" + current + "; retired=" + retired + "]";
+    }
+
+    /**
+     * Native SSL context with number of sockets attached to it
+     */
+    static final class Context {
+
+        final long pointer;
+
+        /**
+         * Number of sockets SSL of this context is attached to (or being attached)
+         */
+        final AtomicInteger sockets = new AtomicInteger(0);
+
+        private Context(long pointer) {
+            this.pointer = pointer;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + pointer + " (" + sockets.get() + " sockets)";
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package one.xmpp.server.network;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * Standard {@link SlowConsumerPolicy} implementations. Non-droppable data is queued as usual by
+ * {@link #DROP} and {@link #COALESCE}, so client that doesn't read at all is closed by write poll
+ * timeout.
+ */
+@NotNullByDefault
+public enum StandardSlowConsumerPolicy implements SlowConsumerPolicy {
+
+    /**
+     * Closes slow consumer as soon as it exceeds high watermark
+     */
+    CLOSE {
+        @Override
+        public Action onWrite(ISocket socket, boolean droppable) {
+            return Action.CLOSE;
+        }
+    },
+
+    /**
+     * Replaces queued droppable data by newer one with the same key (like previous presence of the
+     * same contact)
+     */
+    COALESCE {
+        @Override
+        public Action onWrite(ISocket socket, boolean droppable) {
+            return droppable ? Action.COALESCE : Action.QUEUE;
+        }
+    },
+
+    /**
+     * Drops droppable data
+     */
+    DROP {
+        @Override
+        public Action onWrite(ISocket socket, boolean droppable) {
+            return droppable ? Action.DROP : Action.QUEUE;
+        }
+    };
+}
@@ -0,0 +1,146 @@
+package one.xmpp.server.network;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * Network transport SPI: everything server needs to accept, poll, read, write and close sockets.
+ * Sockets are identified by <tt>long</tt> handles, which are unique among opened sockets, but may
+ * be reused after socket is closed (for example, APR uses native pointers as handles).
+ *
+ * <p>
+ * Error codes returned by read and write operations are transport-specific. Use
+ * {@link #isWouldBlock(int)} and {@link #getErrorDescription(int)} to interpret them.
+ *
+ * @see AprTransport
+ * @see NioTransport
+ */
+@NotNullByDefault
+public interface Transport {
+
+    /**
+     * Can read without blocking. Event values are the same as APR ones.
+     */
+    public static final int POLLIN = 1;
+
+    /**
+     * Can write without blocking
+     */
+    public static final int POLLOUT = 4;
+
+    /**
+     * Pending error
+     */
+    public static final int POLLERR = 16;
+
+    /**
+     * Hang up occurred
+     */
+    public static final int POLLHUP = 32;
+
+    /**
+     * Descriptor invalid
+     */
+    public static final int POLLNVAL = 64;
+
+    /**
+     * Drains listen queue without blocking until it is empty or <tt>max</tt> connections are
+     * accepted. Can be called by several threads concurrently.
+     *
+     * @param sockets
+     *            array to put handles of accepted client sockets to
+     * @param max
+     *            maximum number of connections to accept, not more than <tt>sockets</tt> length
+     * @return number of accepted client sockets, <tt>0</tt> if there were no pending connections
+     * @throws Exception
+     *             if server socket is closed or accept failed
+     */
+    int accept(long serverSocket, long[] sockets, int max) throws Exception;
+
+    /**
+     * Blocks until server socket has pending connection, or for a while (so caller can check
+     * whether it shall stop). Pending connection may be accepted by other thread meanwhile.
+     *
+     * @throws Exception
+     *             if server socket is closed or can't be polled
+     */
+    void awaitAcceptable(long serverSocket) throws Exception;
+
+    /**
+     * Closes and destroys client socket. Never throws exceptions (only logs them).
+     */
+    void closeAndDestroy(long socket);
+
+    /**
+     * Closes listening server socket, unblocking acceptor thread.
+     */
+    void closeServer(long serverSocket);
+
+    /**
+     * Creates poll without socket TTL: idle sockets are expired by server itself (see
+     * {@link one.xmpp.utils.HashedTimingWheel}), so poll doesn't need to scan them.
+     *
+     * @param maxSockets
+     *            expected maximum number of sockets in poll
+     */
+    TransportPoll createPoll(int maxSockets) throws Exception;
+
+    String getErrorDescription(int errorCode);
+
+    InetSocketAddress getRemoteAddress(long socket) throws Exception;
+
+    /**
+     * @return <tt>true</tt> if several server sockets can be bound to the same address and port
+     *         (<tt>SO_REUSEPORT</tt>), letting kernel spread incoming connections among them
+     */
+    boolean isReusePortSupported();
+
+    /**
+     * @param errorCode
+     *            (positive) error code returned by read or write operation
+     * @return <tt>true</tt> if operation failed only because it would block
+     */
+    boolean isWouldBlock(int errorCode);
+
+    /**
+     * Creates server socket listening on specified address and port
+     *
+     * @param reusePort
+     *            <tt>true</tt> if server socket shall be bound with <tt>SO_REUSEPORT</tt> option.
+     *            Allowed only if {@link #isReusePortSupported()}.
+     * @return handle of server socket
+     */
+    long listen(String address, int port, int backlog, boolean reusePort) throws Exception;
+
+    /**
+     * Reads data from socket into specified buffer region. Buffer position and limit are not
+     * changed.
+     *
+     * @return number of bytes read, <tt>0</tt> if connection is closed by remote side, or negative
+     *         error code
+     */
+    int read(long socket, ByteBuffer buffer, int offset, int length);
+
+    /**
+     * Prepares newly accepted socket for non-blocking operations. Options are set once: reads and
+     * writes rely on them and don't set them again.
+     */
+    void setupAccepted(long socket) throws Exception;
+
+    /**
+     * Writes data from specified buffer region. Buffer position and limit are not changed.
+     *
+     * @return number of bytes written (may be <tt>0</tt>) or negative error code
+     */
+    int write(long socket, ByteBuffer buffer, int offset, int length);
+
+    /**
+     * Gathering write: writes remaining bytes of first <tt>count</tt> buffers using single
+     * operation. Buffers positions and limits are not changed.
+     *
+     * @return total number of bytes written (may be <tt>0</tt>) or negative error code
+     */
+    int write(long socket, ByteBuffer[] buffers, int count);
+}
@@ -0,0 +1,64 @@
+package one.xmpp.server.network;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * Set of sockets waiting for I/O events. Except {@link #wakeUp()} and statistics methods, all
+ * methods shall be called from single (poller) thread.
+ */
+@NotNullByDefault
+public interface TransportPoll {
+
+    /**
+     * Adds socket to poll
+     *
+     * @param events
+     *            combination of {@link Transport#POLLIN} and {@link Transport#POLLOUT}
+     */
+    void add(long socket, int events);
+
+    /**
+     * Re-arms socket that was previously added to this poll and disarmed because it was signalled
+     * or removed. Unlike {@link #add(long, int)} can be called from any thread. Poll shall be woken
+     * up after that to make sure new interest set is taken into account.
+     *
+     * @return <tt>false</tt> if socket can't be re-armed outside of poller thread (not supported
+     *         by transport or socket was never added to this poll). In that case caller shall pass
+     *         socket to poller thread and use {@link #add(long, int)}.
+     */
+    boolean arm(long socket, int events);
+
+    void destroy();
+
+    /**
+     * @return number of times {@link #poll(long, long[])} returned because of {@link #wakeUp()}
+     */
+    long getWakeUpSignalsReceived();
+
+    /**
+     * Waits for I/O events. Signalled sockets are removed from poll.
+     *
+     * @param timeout
+     *            in microseconds
+     * @param descriptors
+     *            array to put pairs of (signalled events, socket handle)
+     * @return number of signalled sockets (<tt>0</tt> if timeout is reached or poll was woken up),
+     *         or negative error code
+     */
+    int poll(long timeout, long[] descriptors);
+
+    /**
+     * @return <tt>true</tt> if socket was in poll
+     */
+    boolean remove(long socket);
+
+    /**
+     * @return number of sockets in poll. Can be expensive.
+     */
+    int size();
+
+    /**
+     * Interrupts {@link #poll(long, long[])}. Can be called from any thread.
+     */
+    void wakeUp();
+}
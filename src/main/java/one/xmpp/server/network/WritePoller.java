@@ -1,7 +1,5 @@
 package one.xmpp.server.network;
 
-import org.apache.tomcat.jni.Poll;
-
 import one.ejb.NotNullByDefault;
 
 @NotNullByDefault
@@ -9,8 +7,10 @@ class WritePoller extends AbstractPoller {
 
     private final NetworkOperationsLogger opLogger;
 
-    public WritePoller(NetworkOperationsLogger opLogger, int maxConnections, long socketPollTimeoutUs, int index) {
-        super("WritePoller-" + index, Poll.APR_POLLOUT, maxConnections, socketPollTimeoutUs);
+    public WritePoller(NetworkOperationsLogger opLogger, int maxConnections, int queueCapacity,
+            boolean oneShotPolling, int index) {
+        super("WritePoller-" + index, Transport.POLLOUT, maxConnections, queueCapacity, oneShotPolling, false,
+                index);
         this.opLogger = opLogger;
     }
 
@@ -21,23 +21,18 @@ class WritePoller extends AbstractPoller {
 
     @Override
     protected void onHangUp(long clientSocketPointer) {
-        abstractServer.handleHangUp(clientSocketPointer);
-    }
-
-    @Override
-    protected void onMaintain(long clientSocketPointer) {
-        abstractServer.handleMaintain(clientSocketPointer);
+        abstractServer.handleHangUp(index, clientSocketPointer);
     }
 
     @Override
     protected void onPendingError(long clientSocketPointer) {
-        abstractServer.handlePendingError(clientSocketPointer);
+        abstractServer.handlePendingError(index, clientSocketPointer);
     }
 
     @Override
     protected void onSignal(long clientSocketPointer, long signal) {
-        if ((signal & Poll.APR_POLLOUT) != 0) {
-            abstractServer.canWriteWithoutBlocking(clientSocketPointer);
+        if ((signal & Transport.POLLOUT) != 0) {
+            abstractServer.canWriteWithoutBlocking(index, clientSocketPointer);
         } else {
             log.warn("Unsupported signal from " + clientSocketPointer + ": " + signal + ". Socket is probably 'lost'.");
         }
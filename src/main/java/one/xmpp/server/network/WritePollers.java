@@ -24,15 +24,30 @@ public class WritePollers extends AbstractPollers {
         super("writePoller-");
     }
 
+    @Override
+    protected PollerAssignment getAssignment(AbstractSocket socket) {
+        return socket.writePollerAssignment;
+    }
+
     @Override
     public WritePoller getPoller(AbstractSocket socket) {
         return ((WritePoller) super.getPoller(socket));
     }
 
+    /**
+     * In unified polling (and reactor) mode sockets are waiting for write readiness in read pollers
+     */
+    @Override
+    protected int getPollersCount() {
+        return xmppProxyConfiguration.isUnifiedPolling() || xmppProxyConfiguration.getReactorsCount() > 0 ? 0
+                : xmppProxyConfiguration.getWritePollersCount();
+    }
+
     @Override
     protected AbstractPoller newPoller(int maxConnectionsPerPoller, int pollerIndex) {
         return new WritePoller(networkOperationsLogger, maxConnectionsPerPoller,
-                xmppProxyConfiguration.getSocketWritePollTimeout(), pollerIndex);
+                xmppProxyConfiguration.getPollerQueueCapacity(), xmppProxyConfiguration.isOneShotPolling(),
+                pollerIndex);
     }
 
 }
@@ -5,18 +5,22 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import one.ejb.NotNull;
@@ -43,6 +47,8 @@ public class AsyncOperationsExecutor extends AsyncOperationsExecutorMBean implem
 
     private ArrayBlockingQueue<Runnable> queue;
 
+    private final AtomicLong rejectedTasks = new AtomicLong(0);
+
     private ThreadGroup threadGroup;
 
     private ThreadPoolExecutor threadPoolExecutor;
@@ -88,6 +94,14 @@ public class AsyncOperationsExecutor extends AsyncOperationsExecutorMBean implem
         return queue.size();
     }
 
+    /**
+     * @return number of tasks rejected because queue was full
+     */
+    @ManagedMetric(metricType = MetricType.COUNTER)
+    public long getRejectedTasks() {
+        return rejectedTasks.get();
+    }
+
     @Override
     protected ThreadPoolExecutor getThreadPoolExecutor() {
         return threadPoolExecutor;
@@ -99,14 +113,27 @@ public class AsyncOperationsExecutor extends AsyncOperationsExecutorMBean implem
         ThreadFactory threadFactory = new ThreadFactoryImpl(threadGroup, THREAD_NAME_PREFIX);
         queue = new ArrayBlockingQueue<Runnable>(getMaxQueueSize());
         threadPoolExecutor = new ThreadPoolExecutorImpl(DEFAULT_MIN_THREADS, DEFAULT_MAX_THREADS, 60L,
-                TimeUnit.SECONDS, queue, threadFactory);
+                TimeUnit.SECONDS, queue, threadFactory, this);
     }
 
+    /**
+     * Counts rejected task and throws {@link RejectedExecutionException}, so caller can return
+     * socket to poll (or close it) instead of losing the event
+     */
     @Override
     @NotNullByDefault(false)
     public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-        log.warn("Cannot add new task: " + r + " (threads = " + executor.getActiveCount() + ", tasks = "
-                + executor.getTaskCount() + ")");
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Executor is shut down, task rejected: " + r);
+        }
+
+        rejectedTasks.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Cannot add new task: " + r + " (threads = " + executor.getActiveCount() + ", tasks = "
+                    + executor.getTaskCount() + ")");
+        }
+        throw new RejectedExecutionException("Queue is full (" + executor.getQueue().size() + " tasks), task rejected: "
+                + r);
     }
 
     public void setMaxQueueSize(int queueSize) {
@@ -193,8 +220,8 @@ public class AsyncOperationsExecutor extends AsyncOperationsExecutorMBean implem
     private static final class ThreadPoolExecutorImpl extends ThreadPoolExecutor {
 
         private ThreadPoolExecutorImpl(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
-                BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory) {
-            super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
+                BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory, RejectedExecutionHandler handler) {
+            super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler);
         }
 
         @Override
@@ -0,0 +1,154 @@
+package one.xmpp.utils;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+
+/**
+ * Bounded lock-free multi-producer / single-consumer queue. Producers never block: if queue is full
+ * {@link #offer(Object)} returns <tt>false</tt> and it's up to caller what to do. Consumer side
+ * methods ({@link #poll()} and {@link #drainTo(Collection)}) MUST be called from single thread
+ * only.
+ *
+ * Based on bounded MPMC queue algorithm by Dmitry Vyukov (each slot has it's own sequence number,
+ * so producers synchronize only on tail counter), simplified for the single consumer case.
+ *
+ * @see http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+ */
+@NotNullByDefault
+public class BoundedMpscQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+
+    private final int capacity;
+
+    /**
+     * Next slot to read. Written only by consumer thread
+     */
+    private final AtomicLong head = new AtomicLong(0);
+
+    private final int mask;
+
+    private final AtomicLongArray sequences;
+
+    /**
+     * Next slot to write. Shared between producers
+     */
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * @param capacity
+     *            minimum queue capacity. Actual capacity is rounded up to the power of 2
+     */
+    public BoundedMpscQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.buffer = new AtomicReferenceArray<E>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Moves all currently available elements to specified collection. Consumer thread only.
+     *
+     * @return number of moved elements
+     */
+    public int drainTo(Collection<? super E> target) {
+        int result = 0;
+        E element;
+        while ((element = poll()) != null) {
+            target.add(element);
+            result++;
+        }
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Adds element to the tail of the queue. Can be called from any thread.
+     *
+     * @return <tt>false</tt> if queue is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        long position;
+        int index;
+        for (;;) {
+            position = tail.get();
+            index = (int) (position & mask);
+            final long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                // slot is not yet released by consumer
+                return false;
+            }
+            // otherwise other producer already took this slot, retry
+        }
+
+        buffer.lazySet(index, element);
+        // publish element to consumer
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Removes element from the head of the queue. Consumer thread only.
+     *
+     * @return <tt>null</tt> if queue is empty
+     */
+    @Nullable
+    public E poll() {
+        final long position = head.get();
+        final int index = (int) (position & mask);
+
+        if (sequences.get(index) != position + 1) {
+            // empty or producer didn't finish publishing yet
+            return null;
+        }
+
+        final E element = buffer.get(index);
+        buffer.lazySet(index, null);
+        // release slot for producers from the next round
+        sequences.lazySet(index, position + capacity);
+        head.lazySet(position + 1);
+        return element;
+    }
+
+    /**
+     * @return approximate number of elements in queue (exact only if there are no concurrent
+     *         modifications)
+     */
+    public int size() {
+        final long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(capacity, size));
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedMpscQueue [size=" + size() + "; capacity=" + capacity + "]";
+    }
+}
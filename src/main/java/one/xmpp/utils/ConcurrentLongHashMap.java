@@ -0,0 +1,313 @@
+package one.xmpp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+
+/**
+ * Concurrent hash map with primitive <tt>long</tt> keys. Unlike
+ * <tt>ConcurrentHashMap&lt;Long, V&gt;</tt> doesn't allocate nodes and boxed keys for entries, so
+ * million-entries map is just a few arrays.
+ *
+ * <p>
+ * Map is split into segments, each one is open-addressing table with linear probing. Reads are
+ * lock-free, writes lock single segment. Value slot is written after key slot (and read before it),
+ * so reader never sees key without value. To keep that invariant, slot of removed entry is never
+ * reused for other key: it is marked as deleted and dropped when segment is rehashed.
+ */
+@NotNullByDefault
+public class ConcurrentLongHashMap<V> {
+
+    private static final Object DELETED = new Object();
+
+    private static final float FILL_FACTOR = 0.66f;
+
+    private static int alignToPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * MurmurHash3 64-bit finalizer. Socket handles are pointers (APR) or sequence numbers (NIO), so
+     * their low bits can't be used as is.
+     */
+    static long hash(long key) {
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private final int segmentMask;
+
+    private final Segment<V>[] segments;
+
+    private final int segmentShift;
+
+    public ConcurrentLongHashMap() {
+        this(16, 16);
+    }
+
+    /**
+     * @param expectedSize
+     *            number of entries map shall hold without rehashing
+     * @param concurrencyLevel
+     *            number of segments (rounded up to the power of two)
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ConcurrentLongHashMap(int expectedSize, int concurrencyLevel) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Illegal expected size: " + expectedSize);
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("Illegal concurrency level: " + concurrencyLevel);
+        }
+
+        final int segmentsCount = alignToPowerOfTwo(concurrencyLevel);
+        final int perSegment = Math.max(2, (int) ((expectedSize / segmentsCount + 1) / FILL_FACTOR) + 1);
+
+        this.segments = new Segment[segmentsCount];
+        for (int i = 0; i < segmentsCount; i++) {
+            segments[i] = new Segment<V>(alignToPowerOfTwo(perSegment));
+        }
+        this.segmentMask = segmentsCount - 1;
+        // high bits choose segment, low bits choose slot in it
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentsCount);
+    }
+
+    /**
+     * Visits map values without copying them. Weakly consistent, like iterators of concurrent
+     * collections: visitor may or may not see entries put or removed concurrently.
+     */
+    public void forEach(Visitor<? super V> visitor) {
+        for (Segment<V> segment : segments) {
+            segment.forEach(visitor);
+        }
+    }
+
+    @Nullable
+    public V get(long key) {
+        final long hash = hash(key);
+        return segment(hash).get(key, (int) hash);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return previous value associated with key
+     */
+    @Nullable
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+        final long hash = hash(key);
+        return segment(hash).put(key, (int) hash, value);
+    }
+
+    /**
+     * @return removed value
+     */
+    @Nullable
+    public V remove(long key) {
+        final long hash = hash(key);
+        return segment(hash).remove(key, (int) hash);
+    }
+
+    private Segment<V> segment(long hash) {
+        if (segmentMask == 0) {
+            return segments[0];
+        }
+        return segments[(int) (hash >>> segmentShift) & segmentMask];
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentLongHashMap [size=" + size() + "]";
+    }
+
+    /**
+     * @return snapshot of map values. Weakly consistent, like iterators of concurrent collections.
+     */
+    public List<V> values() {
+        final List<V> result = new ArrayList<V>(size());
+        forEach(new Visitor<V>() {
+            @Override
+            public void visit(V value) {
+                result.add(value);
+            }
+        });
+        return result;
+    }
+
+    private static final class Segment<V> {
+
+        /**
+         * Number of deleted slots in current table. Guarded by segment lock.
+         */
+        private int deleted = 0;
+
+        volatile int size = 0;
+
+        /**
+         * Replaced (but never modified after that) on rehash
+         */
+        private volatile Table table;
+
+        Segment(int capacity) {
+            this.table = new Table(capacity);
+        }
+
+        @SuppressWarnings("unchecked")
+        void forEach(Visitor<? super V> visitor) {
+            final Table current = table;
+            for (int i = 0; i < current.keys.length; i++) {
+                final Object value = current.values.get(i);
+                if (value != null && value != DELETED) {
+                    visitor.visit((V) value);
+                }
+            }
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        V get(long key, int hash) {
+            final Table current = table;
+            final int mask = current.keys.length - 1;
+
+            int index = hash & mask;
+            for (int i = 0; i <= mask; i++) {
+                // value first: it is published after key
+                final Object value = current.values.get(index);
+                if (value == null) {
+                    return null;
+                }
+                if (value != DELETED && current.keys[index] == key) {
+                    return (V) value;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        synchronized V put(long key, int hash, V value) {
+            final Table current = table;
+            final int mask = current.keys.length - 1;
+
+            int index = hash & mask;
+            while (true) {
+                final Object existing = current.values.get(index);
+                if (existing == null) {
+                    break;
+                }
+                if (existing != DELETED && current.keys[index] == key) {
+                    current.values.set(index, value);
+                    return (V) existing;
+                }
+                index = (index + 1) & mask;
+            }
+
+            current.keys[index] = key;
+            current.values.set(index, value);
+            size++;
+
+            if (size + deleted > current.keys.length * FILL_FACTOR) {
+                rehash();
+            }
+            return null;
+        }
+
+        /**
+         * Copies live entries to new table. Table grows only if it is filled by live entries,
+         * otherwise it is just cleaned from deleted slots.
+         */
+        private void rehash() {
+            final Table current = table;
+            final int capacity = size * 2 > current.keys.length * FILL_FACTOR ? current.keys.length * 2
+                    : current.keys.length;
+
+            final Table next = new Table(capacity);
+            final int mask = capacity - 1;
+            for (int i = 0; i < current.keys.length; i++) {
+                final Object value = current.values.get(i);
+                if (value == null || value == DELETED) {
+                    continue;
+                }
+
+                final long key = current.keys[i];
+                int index = (int) hash(key) & mask;
+                while (next.values.get(index) != null) {
+                    index = (index + 1) & mask;
+                }
+                next.keys[index] = key;
+                next.values.set(index, value);
+            }
+
+            deleted = 0;
+            table = next;
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        synchronized V remove(long key, int hash) {
+            final Table current = table;
+            final int mask = current.keys.length - 1;
+
+            int index = hash & mask;
+            for (int i = 0; i <= mask; i++) {
+                final Object value = current.values.get(index);
+                if (value == null) {
+                    return null;
+                }
+                if (value != DELETED && current.keys[index] == key) {
+                    current.values.set(index, DELETED);
+                    size--;
+                    deleted++;
+                    return (V) value;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+    private static final class Table {
+
+        final long[] keys;
+
+        /**
+         * <tt>null</tt> for free slots, {@link ConcurrentLongHashMap#DELETED} for removed entries
+         */
+        final AtomicReferenceArray<Object> values;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new AtomicReferenceArray<Object>(capacity);
+        }
+    }
+
+    /**
+     * Callback of {@link ConcurrentLongHashMap#forEach(Visitor)}
+     */
+    public interface Visitor<V> {
+
+        void visit(V value);
+    }
+}
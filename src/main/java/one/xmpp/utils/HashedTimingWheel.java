@@ -0,0 +1,290 @@
+package one.xmpp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+
+/**
+ * Hashed timing wheel (Varghese & Lauck): timeouts are put into one of <tt>wheelSize</tt> buckets
+ * (doubly-linked lists) by deadline, so schedule and cancel are O(1). Single daemon thread wakes up
+ * once per tick, expires timeouts of the current bucket and passes all of them to listener as single
+ * batch.
+ *
+ * <p>
+ * Timeouts are not precise: they expire within one tick after deadline. Listener is called from the
+ * wheel thread and may reschedule expired timeouts (i.e. if deadline was moved forward since
+ * timeout was scheduled).
+ */
+@NotNullByDefault
+public class HashedTimingWheel<T> {
+
+    private static final Log log = LogFactory.getLog(HashedTimingWheel.class);
+
+    private final Timeout<T>[] buckets;
+
+    /**
+     * Number of ticks passed since wheel start. Guarded by {@link #lock}
+     */
+    private long currentTick = 0;
+
+    private final ExpirationListener<T> listener;
+
+    private final Object lock = new Object();
+
+    private final int mask;
+
+    private int size = 0;
+
+    private final long startTime = System.currentTimeMillis();
+
+    private volatile boolean stop = false;
+
+    private final Thread thread;
+
+    private final long tickMillis;
+
+    /**
+     * @param wheelSize
+     *            number of buckets. Rounded up to the power of 2
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public HashedTimingWheel(String threadName, long tickMillis, int wheelSize, ExpirationListener<T> listener) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickMillis);
+        }
+        if (wheelSize <= 0) {
+            throw new IllegalArgumentException("Wheel size must be positive: " + wheelSize);
+        }
+
+        final int normalizedSize = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+
+        this.buckets = new Timeout[normalizedSize];
+        this.mask = normalizedSize - 1;
+        this.tickMillis = tickMillis;
+        this.listener = listener;
+
+        this.thread = new Thread(threadName) {
+            @Override
+            public void run() {
+                HashedTimingWheel.this.run();
+            }
+        };
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Cancels timeout in O(1)
+     *
+     * @return <tt>false</tt> if timeout was not scheduled (expired or cancelled already)
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        synchronized (lock) {
+            return unlink(timeout);
+        }
+    }
+
+    private void link(Timeout<T> timeout, long deadline) {
+        final long calculated = (deadline - startTime) / tickMillis;
+        final long ticks = Math.max(calculated, currentTick);
+
+        timeout.deadline = deadline;
+        timeout.remainingRounds = (ticks - currentTick) / buckets.length;
+        timeout.bucket = (int) (ticks & mask);
+
+        final Timeout<T> head = buckets[timeout.bucket];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[timeout.bucket] = timeout;
+        timeout.scheduled = true;
+        size++;
+    }
+
+    /**
+     * Moves already scheduled (or expired) timeout to the new deadline in O(1)
+     */
+    public void reschedule(Timeout<T> timeout, long deadline) {
+        synchronized (lock) {
+            unlink(timeout);
+            link(timeout, deadline);
+        }
+    }
+
+    /**
+     * Moves timeout to the new deadline only if it is earlier than current one. Expired or
+     * cancelled timeouts are not rescheduled.
+     */
+    public void rescheduleIfEarlier(Timeout<T> timeout, long deadline) {
+        synchronized (lock) {
+            if (!timeout.scheduled || timeout.deadline <= deadline) {
+                return;
+            }
+            unlink(timeout);
+            link(timeout, deadline);
+        }
+    }
+
+    void run() {
+        final List<Timeout<T>> expired = new ArrayList<Timeout<T>>();
+
+        while (!stop) {
+            final long tickTime;
+            synchronized (lock) {
+                tickTime = startTime + (currentTick + 1) * tickMillis;
+            }
+
+            final long sleep = tickTime - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException exc) {
+                    // stop() interrupts the thread
+                    continue;
+                }
+            }
+
+            synchronized (lock) {
+                final int bucket = (int) (currentTick & mask);
+
+                Timeout<T> timeout = buckets[bucket];
+                while (timeout != null) {
+                    final Timeout<T> next = timeout.next;
+                    if (timeout.remainingRounds <= 0) {
+                        unlink(timeout);
+                        expired.add(timeout);
+                    } else {
+                        timeout.remainingRounds--;
+                    }
+                    timeout = next;
+                }
+
+                currentTick++;
+            }
+
+            if (expired.isEmpty()) {
+                continue;
+            }
+
+            try {
+                listener.onExpired(expired);
+            } catch (Throwable exc) {
+                log.error("Unable to process " + expired.size() + " expired timeout(s): " + exc, exc);
+            }
+            // to remove links to items
+            expired.clear();
+        }
+    }
+
+    /**
+     * Schedules new timeout in O(1)
+     *
+     * @param deadline
+     *            time in milliseconds
+     */
+    public Timeout<T> schedule(T item, long deadline) {
+        final Timeout<T> timeout = new Timeout<T>(item);
+        synchronized (lock) {
+            link(timeout, deadline);
+        }
+        return timeout;
+    }
+
+    /**
+     * @return number of scheduled timeouts
+     */
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        stop = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException exc) {
+            log.error(exc, exc);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HashedTimingWheel [" + thread.getName() + "]";
+    }
+
+    private boolean unlink(Timeout<T> timeout) {
+        if (!timeout.scheduled) {
+            return false;
+        }
+
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        size--;
+        return true;
+    }
+
+    public interface ExpirationListener<T> {
+
+        /**
+         * Called from wheel thread with all timeouts expired during one tick
+         */
+        void onExpired(List<Timeout<T>> timeouts);
+    }
+
+    /**
+     * Scheduled timeout handle. All fields except item are guarded by wheel lock.
+     */
+    public static final class Timeout<T> {
+
+        int bucket;
+
+        long deadline;
+
+        private final T item;
+
+        @Nullable
+        Timeout<T> next;
+
+        @Nullable
+        Timeout<T> prev;
+
+        long remainingRounds;
+
+        boolean scheduled = false;
+
+        Timeout(T item) {
+            this.item = item;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        @Override
+        public String toString() {
+            return "Timeout [" + item + "; " + deadline + "]";
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package one.xmpp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * Token bucket rate limiter. Tokens are added at constant rate up to bucket capacity, so short
+ * bursts are allowed while average rate is limited. Unlike semaphore, permits are not returned after
+ * use (except unused ones, see {@link #release(int)}).
+ */
+@NotNullByDefault
+public class TokenBucket {
+
+    /**
+     * Maximum time acquiring thread sleeps at once, so rate change is noticed soon
+     */
+    private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int capacity;
+
+    private long lastRefillTime;
+
+    /**
+     * Tokens per nanosecond
+     */
+    private double rate;
+
+    private double tokens;
+
+    /**
+     * @param ratePerSecond
+     *            number of tokens added per second
+     * @param capacity
+     *            maximum number of tokens in bucket (bucket is full initially)
+     */
+    public TokenBucket(double ratePerSecond, int capacity) {
+        this(ratePerSecond, capacity, System.nanoTime());
+    }
+
+    TokenBucket(double ratePerSecond, int capacity, long now) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        if (ratePerSecond < 0) {
+            throw new IllegalArgumentException("Illegal rate: " + ratePerSecond);
+        }
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillTime = now;
+        this.rate = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Blocks until at least one token is available
+     *
+     * @return number of acquired tokens, from <tt>1</tt> to <tt>max</tt>
+     */
+    public int acquire(int max) throws InterruptedException {
+        while (true) {
+            final long waitNanos;
+            synchronized (this) {
+                final int acquired = tryAcquire(max, System.nanoTime());
+                if (acquired > 0) {
+                    return acquired;
+                }
+                waitNanos = rate == 0 ? MAX_SLEEP_NANOS
+                        : Math.min(MAX_SLEEP_NANOS, (long) ((1 - tokens) / rate) + 1);
+            }
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized double getRate() {
+        return rate * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * @return number of whole tokens currently in bucket
+     */
+    public synchronized int getTokens() {
+        refill(System.nanoTime());
+        return (int) tokens;
+    }
+
+    private void refill(long now) {
+        final long elapsed = now - lastRefillTime;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * rate);
+            lastRefillTime = now;
+        }
+    }
+
+    /**
+     * Returns unused tokens to bucket
+     */
+    public synchronized void release(int released) {
+        tokens = Math.min(capacity, tokens + released);
+    }
+
+    public synchronized void setRate(double ratePerSecond) {
+        if (ratePerSecond < 0) {
+            throw new IllegalArgumentException("Illegal rate: " + ratePerSecond);
+        }
+        refill(System.nanoTime());
+        this.rate = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * @return number of acquired tokens, from <tt>0</tt> to <tt>max</tt>
+     */
+    public synchronized int tryAcquire(int max) {
+        return tryAcquire(max, System.nanoTime());
+    }
+
+    synchronized int tryAcquire(int max, long now) {
+        refill(now);
+        final int acquired = (int) Math.min(max, Math.floor(tokens));
+        if (acquired <= 0) {
+            return 0;
+        }
+        tokens -= acquired;
+        return acquired;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket [rate=" + getRate() + "; capacity=" + capacity + "]";
+    }
+}
@@ -8,7 +8,10 @@ import org.springframework.jmx.export.annotation.AnnotationMBeanExporter;
 import org.springframework.scheduling.annotation.ScheduledAnnotationBeanPostProcessor;
 
 import one.xmpp.server.DefaultXmppProxyConfiguration;
+import one.xmpp.server.network.AprTransport;
 import one.xmpp.server.network.DefaultNetworkOperationsLogger;
+import one.xmpp.server.network.NioTransport;
+import one.xmpp.server.network.OverloadController;
 import one.xmpp.server.network.PlainAcceptor;
 import one.xmpp.server.network.ReadPollers;
 import one.xmpp.server.network.SslAcceptor;
@@ -18,6 +21,11 @@ import one.xmpp.utils.ThreadPoolExecutorAdjuster;
 
 public abstract class AbstractSpringTest {
 
+    /**
+     * Set to <tt>nio</tt> to run tests without Tomcat Native library
+     */
+    public static final String TRANSPORT_PROPERTY = "one.xmpp.transport";
+
     protected static AnnotationConfigApplicationContext context;
 
     @AfterClass
@@ -29,16 +37,37 @@ public abstract class AbstractSpringTest {
 
     protected static void beforeClass(boolean loadPlainAcceptor, boolean loadSslAcceptor, Class<?> serverClass,
             Class<?>... additionalBeans) throws Exception {
+        beforeClass(null, loadPlainAcceptor, loadSslAcceptor, serverClass, additionalBeans);
+    }
+
+    /**
+     * @param configuration
+     *            configuration to use instead of default one (for settings that are read at
+     *            startup only), or <tt>null</tt>
+     */
+    protected static void beforeClass(DefaultXmppProxyConfiguration configuration, boolean loadPlainAcceptor,
+            boolean loadSslAcceptor, Class<?> serverClass, Class<?>... additionalBeans) throws Exception {
 
         context = new AnnotationConfigApplicationContext();
 
         context.register(AsyncOperationsExecutor.class);
         context.register(DefaultNetworkOperationsLogger.class);
-        context.register(DefaultXmppProxyConfiguration.class);
+        if (configuration == null) {
+            context.register(DefaultXmppProxyConfiguration.class);
+        } else {
+            context.getBeanFactory().registerSingleton("defaultXmppProxyConfiguration", configuration);
+        }
+        context.register(OverloadController.class);
         context.register(ReadPollers.class);
         context.register(ThreadPoolExecutorAdjuster.class);
         context.register(WritePollers.class);
 
+        if ("nio".equals(System.getProperty(TRANSPORT_PROPERTY))) {
+            context.register(NioTransport.class);
+        } else {
+            context.register(AprTransport.class);
+        }
+
         context.register(serverClass);
 
         if (loadPlainAcceptor) {
@@ -25,6 +25,17 @@ public class TestSslConfiguration implements SslConfiguration {
         }
     }
 
+    @Override
+    public int getSessionCacheSize() {
+        return 1024;
+    }
+
+    @Override
+    public long getSessionTicketKeysRotationPeriod() {
+        // 12 hours
+        return 12 * 60 * 60 * 1000;
+    }
+
     @Override
     public void setupSslContext(long contextPointer) throws Exception {
         SSLContext.setCertificateChainFile(contextPointer, CHAIN.getAbsolutePath(), false);
@@ -15,8 +15,10 @@ public class EchoServer extends AbstractServer {
 
     @Override
     protected void handleRead(AbstractSocket socket, ByteBuffer readBuffer) {
-        ByteBuffer byteBuffer = readBuffer.duplicate();
-        readBuffer.flip();
+        // read buffer is reused after return, so copy data
+        ByteBuffer byteBuffer = ByteBuffer.allocate(readBuffer.remaining());
+        byteBuffer.put(readBuffer);
+        byteBuffer.flip();
         socket.queueWrite(byteBuffer);
     }
 
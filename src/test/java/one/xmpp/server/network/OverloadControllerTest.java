@@ -0,0 +1,194 @@
+package one.xmpp.server.network;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import one.xmpp.utils.AsyncOperationsExecutor;
+
+public class OverloadControllerTest {
+
+    private static final int QUEUE_CAPACITY = 1000;
+
+    private int closeHeaviestSocketsCalls;
+
+    private OverloadController controller;
+
+    private long pollerLag;
+
+    private long queueSize;
+
+    private int readBudgetShift;
+
+    private long rejectedTasks;
+
+    private void assertState(OverloadState expected) {
+        Assert.assertEquals(expected.name(), controller.getState());
+        Assert.assertEquals(expected.ordinal(), readBudgetShift);
+    }
+
+    private void checkTimes(int times) {
+        for (int i = 0; i < times; i++) {
+            controller.check();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        controller = new OverloadController();
+        controller.setAsyncOperationsExecutor(new AsyncOperationsExecutor() {
+            @Override
+            public long getQueueSize() {
+                return queueSize;
+            }
+
+            @Override
+            public long getRejectedTasks() {
+                return rejectedTasks;
+            }
+
+            @Override
+            public long getRemainingCapacity() {
+                return QUEUE_CAPACITY - queueSize;
+            }
+        });
+        controller.setReadPollers(new ReadPollers() {
+            @Override
+            public long getMaxLoopLatency() {
+                return pollerLag;
+            }
+        });
+        controller.setServer(new EchoServer() {
+            @Override
+            int closeHeaviestSockets(int maxCount, long minQueuedBytes) {
+                closeHeaviestSocketsCalls++;
+                return maxCount;
+            }
+
+            @Override
+            void setReadBudgetShift(int readBudgetShift) {
+                OverloadControllerTest.this.readBudgetShift = readBudgetShift;
+            }
+        });
+
+        // memory of test JVM shall not interfere
+        controller.setSheddingHeapUsage(2);
+        controller.setCriticalHeapUsage(2);
+        controller.setSheddingDirectMemoryUsage(2);
+        controller.setCriticalDirectMemoryUsage(2);
+
+        controller.setSheddingExecutorQueueUsage(0.25);
+        controller.setCriticalExecutorQueueUsage(0.75);
+        controller.setSheddingPollerLag(20 * 1000);
+        controller.setCriticalPollerLag(100 * 1000);
+    }
+
+    @Test
+    public void testAcceptAdmission() throws Exception {
+        final AcceptorThread.AcceptAdmission admission = controller.newAcceptAdmission(OverloadState.SHEDDING,
+                null);
+        admission.acquire();
+        Assert.assertEquals(5, admission.tryAcquire(5));
+
+        queueSize = QUEUE_CAPACITY / 2;
+        controller.check();
+        assertState(OverloadState.SHEDDING);
+        Assert.assertEquals(0, admission.tryAcquire(5));
+    }
+
+    @Test
+    public void testEscalation() {
+        controller.check();
+        assertState(OverloadState.NORMAL);
+
+        queueSize = QUEUE_CAPACITY / 2;
+        controller.check();
+        assertState(OverloadState.SHEDDING);
+        Assert.assertEquals(0, closeHeaviestSocketsCalls);
+
+        // the worst signal wins
+        queueSize = 0;
+        pollerLag = 200 * 1000;
+        controller.check();
+        assertState(OverloadState.CRITICAL);
+        Assert.assertEquals(1, closeHeaviestSocketsCalls);
+        Assert.assertEquals((long) controller.getOverloadClosesPerCheck(), controller.getOverloadCloses());
+
+        // directly from normal to critical as well
+        setUp();
+        queueSize = QUEUE_CAPACITY;
+        controller.check();
+        assertState(OverloadState.CRITICAL);
+        Assert.assertEquals(1L, controller.getStateTransitions());
+        Assert.assertEquals(1, controller.getRecentTransitions().length);
+    }
+
+    @Test
+    public void testRecoveryHysteresis() {
+        queueSize = QUEUE_CAPACITY;
+        controller.check();
+        assertState(OverloadState.CRITICAL);
+
+        queueSize = 0;
+        checkTimes(OverloadController.RECOVERY_CHECKS - 1);
+        assertState(OverloadState.CRITICAL);
+        Assert.assertEquals(OverloadController.RECOVERY_CHECKS, closeHeaviestSocketsCalls);
+
+        // signal at current level restarts recovery
+        queueSize = QUEUE_CAPACITY;
+        controller.check();
+        queueSize = 0;
+        checkTimes(OverloadController.RECOVERY_CHECKS - 1);
+        assertState(OverloadState.CRITICAL);
+
+        // steps back one state at a time
+        controller.check();
+        assertState(OverloadState.SHEDDING);
+        checkTimes(OverloadController.RECOVERY_CHECKS - 1);
+        assertState(OverloadState.SHEDDING);
+        controller.check();
+        assertState(OverloadState.NORMAL);
+
+        final int closeCalls = closeHeaviestSocketsCalls;
+        checkTimes(OverloadController.RECOVERY_CHECKS * 2);
+        assertState(OverloadState.NORMAL);
+        Assert.assertEquals(closeCalls, closeHeaviestSocketsCalls);
+        Assert.assertEquals(3L, controller.getStateTransitions());
+    }
+
+    @Test
+    public void testRejectedTasksEscalateToCritical() {
+        controller.check();
+        assertState(OverloadState.NORMAL);
+
+        // queue looks fine, but executor rejected tasks since last check
+        rejectedTasks = 1;
+        controller.check();
+        assertState(OverloadState.CRITICAL);
+        Assert.assertEquals(1, closeHeaviestSocketsCalls);
+
+        // rejections already seen don't keep server critical
+        checkTimes(OverloadController.RECOVERY_CHECKS);
+        assertState(OverloadState.SHEDDING);
+
+        rejectedTasks = 2;
+        controller.check();
+        assertState(OverloadState.CRITICAL);
+    }
+
+    @Test
+    public void testShedding() {
+        pollerLag = 50 * 1000;
+        controller.check();
+        assertState(OverloadState.SHEDDING);
+
+        // still shedding, no sockets are closed
+        checkTimes(OverloadController.RECOVERY_CHECKS * 2);
+        assertState(OverloadState.SHEDDING);
+        Assert.assertEquals(0, closeHeaviestSocketsCalls);
+
+        pollerLag = 0;
+        checkTimes(OverloadController.RECOVERY_CHECKS);
+        assertState(OverloadState.NORMAL);
+    }
+}
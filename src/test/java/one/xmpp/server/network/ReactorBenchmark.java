@@ -0,0 +1,236 @@
+package one.xmpp.server.network;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+
+import one.xmpp.AbstractSpringTest;
+import one.xmpp.server.DefaultXmppProxyConfiguration;
+import one.xmpp.server.XmppProxyConfiguration;
+
+/**
+ * Compares shared worker pool topology with shared-nothing reactors (see
+ * {@link XmppProxyConfiguration#getReactorsCount()}) on echo server: <tt>N</tt> connections are
+ * opened, then each one sends small message and waits for the echo before sending the next one.
+ * Prints round trips per second and latency percentiles of both topologies.
+ *
+ * <p>
+ * Not a unit test. Server and clients share the same JVM, so open files limit shall be more than
+ * twice the number of connections. Client connections are bound to several loopback addresses, so
+ * ephemeral ports are not exhausted. Run manually:
+ * <tt>java -Xmx4g -cp ... one.xmpp.server.network.ReactorBenchmark [connections] [seconds] [reactors]</tt>
+ *
+ * <p>
+ * Results of the default 100k connections run on multi-core host are not recorded yet; single-CPU
+ * runs with few thousands connections show no difference between topologies.
+ */
+public class ReactorBenchmark extends AbstractSpringTest {
+
+    private static final int CONNECTIONS_PER_ADDRESS = 20000;
+
+    private static final int ITERATIONS = 2;
+
+    private static final int MESSAGE_SIZE = 16;
+
+    /**
+     * Latencies of the last round trips kept by each client thread
+     */
+    private static final int SAMPLES_PER_THREAD = 1 << 20;
+
+    private static final long WARM_UP_SECONDS = 5;
+
+    private static SocketChannel[] connect(int connections) throws Exception {
+        final InetSocketAddress serverAddress = new InetSocketAddress("127.0.0.1", 5222);
+        final SocketChannel[] channels = new SocketChannel[connections];
+        for (int i = 0; i < connections; i++) {
+            channels[i] = SocketChannel.open();
+            channels[i].socket().bind(new InetSocketAddress("127.0.0." + (1 + i / CONNECTIONS_PER_ADDRESS), 0));
+            channels[i].connect(serverAddress);
+        }
+
+        // sockets are registered asynchronously
+        final AbstractServer server = context.getBean(AbstractServer.class);
+        for (int i = 0; i < 600 && server.getActiveSockets() < connections; i++) {
+            Thread.sleep(100);
+        }
+        if (server.getActiveSockets() < connections) {
+            throw new IllegalStateException("Only " + server.getActiveSockets() + " of " + connections
+                    + " connections are registered by server");
+        }
+        return channels;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        final int reactors = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final int clientThreads = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Connections: " + connections + ", seconds: " + seconds + ", reactors: " + reactors
+                + ", client threads: " + clientThreads);
+
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            measure("Shared worker pool: ", 0, connections, seconds, clientThreads);
+            measure("Reactors:           ", reactors, connections, seconds, clientThreads);
+        }
+    }
+
+    private static void measure(String name, int reactors, int connections, int seconds, int clientThreads)
+            throws Exception {
+        final DefaultXmppProxyConfiguration configuration = new DefaultXmppProxyConfiguration();
+        configuration.setReactorsCount(reactors);
+        beforeClass(configuration, true, false, EchoServer.class);
+
+        SocketChannel[] channels = new SocketChannel[0];
+        try {
+            channels = connect(connections);
+
+            final Client[] clients = new Client[clientThreads];
+            final CountDownLatch done = new CountDownLatch(clientThreads);
+            final long measureStart = System.nanoTime() + WARM_UP_SECONDS * 1000 * 1000 * 1000;
+            final long measureEnd = measureStart + seconds * 1000L * 1000 * 1000;
+            for (int t = 0; t < clientThreads; t++) {
+                clients[t] = new Client(channels, t, clientThreads, measureStart, measureEnd, done);
+                clients[t].start();
+            }
+            done.await();
+
+            long roundTrips = 0;
+            int samplesCount = 0;
+            for (Client client : clients) {
+                if (client.failure != null) {
+                    throw new IllegalStateException("Client failed: " + client.failure, client.failure);
+                }
+                roundTrips += client.roundTrips;
+                samplesCount += (int) Math.min(client.roundTrips, SAMPLES_PER_THREAD);
+            }
+
+            final long[] samples = new long[samplesCount];
+            int offset = 0;
+            for (Client client : clients) {
+                final int count = (int) Math.min(client.roundTrips, SAMPLES_PER_THREAD);
+                System.arraycopy(client.samples, 0, samples, offset, count);
+                offset += count;
+            }
+            Arrays.sort(samples);
+
+            System.out.println(name + (roundTrips / seconds) + " round trips/s, latency p50 "
+                    + percentile(samples, 0.5) + " us, p99 " + percentile(samples, 0.99) + " us, p99.9 "
+                    + percentile(samples, 0.999) + " us");
+        } finally {
+            for (SocketChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            afterClass();
+        }
+    }
+
+    private static long percentile(long[] sortedSamples, double percentile) {
+        if (sortedSamples.length == 0) {
+            return 0;
+        }
+        return sortedSamples[(int) Math.min(sortedSamples.length - 1, sortedSamples.length * percentile)] / 1000;
+    }
+
+    /**
+     * Keeps single message in flight on each of its connections
+     */
+    private static final class Client extends Thread {
+
+        private final SocketChannel[] channels;
+
+        private final CountDownLatch done;
+
+        volatile Throwable failure = null;
+
+        private final int first;
+
+        private final long measureEnd;
+
+        private final long measureStart;
+
+        long roundTrips = 0;
+
+        /**
+         * Round trip times in nanoseconds, ring buffer
+         */
+        final long[] samples = new long[SAMPLES_PER_THREAD];
+
+        private final int step;
+
+        Client(SocketChannel[] channels, int first, int step, long measureStart, long measureEnd,
+                CountDownLatch done) {
+            super("BenchmarkClient-" + first);
+            this.channels = channels;
+            this.first = first;
+            this.step = step;
+            this.measureStart = measureStart;
+            this.measureEnd = measureEnd;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Selector selector = Selector.open();
+                try {
+                    for (int i = first; i < channels.length; i += step) {
+                        channels[i].configureBlocking(false);
+                        channels[i].register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(MESSAGE_SIZE));
+                        send(channels[i]);
+                    }
+
+                    long now;
+                    while ((now = System.nanoTime()) < measureEnd) {
+                        selector.select(100);
+
+                        final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                        while (iterator.hasNext()) {
+                            final SelectionKey key = iterator.next();
+                            iterator.remove();
+
+                            final SocketChannel channel = (SocketChannel) key.channel();
+                            final ByteBuffer buffer = (ByteBuffer) key.attachment();
+                            if (channel.read(buffer) < 0) {
+                                throw new IllegalStateException("Connection closed by server");
+                            }
+                            if (buffer.hasRemaining()) {
+                                continue;
+                            }
+
+                            final long received = System.nanoTime();
+                            if (now >= measureStart) {
+                                samples[(int) (roundTrips++ & (SAMPLES_PER_THREAD - 1))] = received
+                                        - buffer.getLong(0);
+                            }
+                            buffer.clear();
+                            send(channel);
+                        }
+                    }
+                } finally {
+                    selector.close();
+                }
+            } catch (Throwable exc) {
+                failure = exc;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void send(SocketChannel channel) throws Exception {
+            final ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+            message.putLong(0, System.nanoTime());
+            // fits into empty socket send buffer
+            if (channel.write(message) != MESSAGE_SIZE) {
+                throw new IllegalStateException("Message is not sent at once");
+            }
+        }
+    }
+}
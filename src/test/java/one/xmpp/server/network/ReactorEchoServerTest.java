@@ -0,0 +1,127 @@
+package one.xmpp.server.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import one.xmpp.AbstractSpringTest;
+import one.xmpp.server.DefaultXmppProxyConfiguration;
+
+public class ReactorEchoServerTest extends AbstractSpringTest {
+
+    private static final int REACTORS = 2;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        final DefaultXmppProxyConfiguration configuration = new DefaultXmppProxyConfiguration();
+        configuration.setReactorsCount(REACTORS);
+        AbstractSpringTest.beforeClass(configuration, true, false, EchoServer.class);
+        Thread.sleep(1000);
+    }
+
+    private static void echo(Socket socket, byte[] data) throws Exception {
+        socket.getOutputStream().write(data);
+        Assert.assertTrue(Arrays.equals(data, read(socket, data.length)));
+    }
+
+    private static byte[] read(Socket socket, int length) throws Exception {
+        final InputStream inputStream = socket.getInputStream();
+        final byte[] buffer = new byte[length];
+        int read = 0;
+        while (read < buffer.length) {
+            final int result = inputStream.read(buffer, read, buffer.length - read);
+            Assert.assertTrue("Connection closed after " + read + " bytes", result > 0);
+            read += result;
+        }
+        return buffer;
+    }
+
+    private static int sum(int[] values) {
+        int result = 0;
+        for (int value : values) {
+            result += value;
+        }
+        return result;
+    }
+
+    @Test
+    public void testBigEcho() throws Exception {
+        // larger than socket buffers, so reactor waits for write readiness
+        final byte[] data = new byte[1 << 20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        final Socket socket = new Socket("localhost", 5222);
+        try {
+            socket.setSoTimeout(10000);
+            final OutputStream outputStream = socket.getOutputStream();
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        outputStream.write(data);
+                    } catch (IOException exc) {
+                        exc.printStackTrace();
+                    }
+                }
+            }.start();
+
+            Assert.assertTrue(Arrays.equals(data, read(socket, data.length)));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testConnectionsLiveInReactors() throws Exception {
+        final AbstractServer server = context.getBean(AbstractServer.class);
+        final ReadPollers readPollers = context.getBean(ReadPollers.class);
+        final WritePollers writePollers = context.getBean(WritePollers.class);
+
+        Assert.assertEquals(REACTORS, server.getReactorsCount());
+        Assert.assertEquals(REACTORS, readPollers.getPollerAssignedSockets().length);
+        Assert.assertEquals(0, writePollers.getPollerAssignedSockets().length);
+
+        final Socket[] sockets = new Socket[20];
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = new Socket("localhost", 5222);
+                sockets[i].setSoTimeout(10000);
+            }
+            for (int i = 0; i < sockets.length; i++) {
+                echo(sockets[i], ("Hello, " + i + "!").getBytes());
+            }
+
+            Assert.assertEquals(sockets.length, server.getActiveSockets());
+            Assert.assertEquals(sockets.length, sum(readPollers.getPollerAssignedSockets()));
+            Assert.assertTrue(readPollers.getTasksExecuted() > 0);
+
+            // pinned to their reactors
+            for (int i = 0; i < REACTORS; i++) {
+                Assert.assertEquals(0, readPollers.migrateSockets(i, sockets.length));
+            }
+            for (int i = 0; i < sockets.length; i++) {
+                echo(sockets[i], ("Bye, " + i + "!").getBytes());
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+
+        for (int i = 0; i < 100 && server.getActiveSockets() != 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, server.getActiveSockets());
+        Assert.assertEquals(0, sum(readPollers.getPollerAssignedSockets()));
+    }
+}
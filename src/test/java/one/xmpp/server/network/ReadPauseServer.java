@@ -0,0 +1,36 @@
+package one.xmpp.server.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import one.ejb.NotNullByDefault;
+import one.ejb.Nullable;
+
+/**
+ * Hands off each read for asynchronous processing that is completed by test only
+ */
+@NotNullByDefault
+public class ReadPauseServer extends AbstractServer {
+
+    @Nullable
+    volatile AbstractSocket lastSocket;
+
+    final AtomicInteger reads = new AtomicInteger(0);
+
+    @Override
+    protected void handleAccepted(AbstractSocket socket) {
+        addToReadPoll(socket);
+    }
+
+    @Override
+    protected void handleRead(AbstractSocket socket, ByteBuffer readBuffer) {
+        lastSocket = socket;
+        reads.incrementAndGet();
+        socket.onStanzaProcessingStarted();
+    }
+
+    @Override
+    protected AbstractSocket newISocket(long clientSocketPointer, boolean secured) throws Exception {
+        return new AbstractSocket(clientSocketPointer);
+    }
+}
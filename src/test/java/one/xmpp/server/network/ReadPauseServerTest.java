@@ -0,0 +1,62 @@
+package one.xmpp.server.network;
+
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import one.xmpp.AbstractSpringTest;
+import one.xmpp.server.DefaultXmppProxyConfiguration;
+
+public class ReadPauseServerTest extends AbstractSpringTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        AbstractSpringTest.beforeClass(true, false, ReadPauseServer.class);
+        context.getBean(DefaultXmppProxyConfiguration.class).setReadPauseStanzasPerSocket(1);
+        Thread.sleep(1000);
+    }
+
+    private static void waitFor(ReadPauseServer server, int reads, int pausedSockets) throws Exception {
+        for (int i = 0; i < 100
+                && (server.reads.get() != reads || server.getReadPausedSockets() != pausedSockets); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(reads, server.reads.get());
+        Assert.assertEquals(pausedSockets, server.getReadPausedSockets());
+    }
+
+    @Test
+    public void testPauseAndResume() throws Exception {
+        final ReadPauseServer server = context.getBean(ReadPauseServer.class);
+
+        final Socket socket = new Socket("localhost", 5222);
+        try {
+            final OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(new byte[] { 50 });
+            waitFor(server, 1, 1);
+
+            // not read until the first one is processed
+            outputStream.write(new byte[] { 51 });
+            Thread.sleep(300);
+            waitFor(server, 1, 1);
+            Assert.assertEquals(1, server.getTotalPendingStanzas());
+
+            server.lastSocket.onStanzaProcessingCompleted();
+            waitFor(server, 2, 1);
+            Assert.assertEquals(2L, server.getReadPauses());
+
+            server.lastSocket.onStanzaProcessingCompleted();
+            waitFor(server, 2, 0);
+            Assert.assertEquals(0, server.getTotalPendingStanzas());
+
+            // returned to read poll
+            outputStream.write(new byte[] { 52 });
+            waitFor(server, 3, 1);
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package one.xmpp.server.network;
+
+import java.nio.ByteBuffer;
+
+import one.ejb.NotNullByDefault;
+
+/**
+ * Queues {@link #FILLER_SIZE} bytes to client that doesn't read them yet, and then
+ * {@link #PRESENCES} droppable writes with the same coalescing key. If client sends
+ * {@link #INTERLEAVED}, {@link #MESSAGE} is queued between each two of them.
+ */
+@NotNullByDefault
+public class SlowConsumerServer extends AbstractServer {
+
+    static final int FILLER_CHUNK_SIZE = 8 << 10;
+
+    static final int FILLER_SIZE = 64 * FILLER_CHUNK_SIZE;
+
+    static final byte INTERLEAVED = 51;
+
+    static final String MESSAGE = "m";
+
+    static final int PRESENCES = 1000;
+
+    static String presence(int i) {
+        return "p" + String.format("%04d", Integer.valueOf(i));
+    }
+
+    @Override
+    protected void handleAccepted(AbstractSocket socket) {
+        addToReadPoll(socket);
+    }
+
+    @Override
+    protected void handleRead(AbstractSocket socket, ByteBuffer readBuffer) {
+        final boolean interleaved = readBuffer.get(0) == INTERLEAVED;
+
+        // nothing is sent until read task is completed
+        for (int i = 0; i < FILLER_SIZE / FILLER_CHUNK_SIZE; i++) {
+            socket.queueWrite(ByteBuffer.allocate(FILLER_CHUNK_SIZE));
+        }
+        for (int i = 0; i < PRESENCES; i++) {
+            if (interleaved && i != 0) {
+                socket.queueWrite(ByteBuffer.wrap(MESSAGE.getBytes()));
+            }
+            socket.queueWriteImpl(ByteBuffer.wrap(presence(i).getBytes()), "presence");
+        }
+    }
+
+    @Override
+    protected AbstractSocket newISocket(long clientSocketPointer, boolean secured) throws Exception {
+        return new AbstractSocket(clientSocketPointer);
+    }
+}
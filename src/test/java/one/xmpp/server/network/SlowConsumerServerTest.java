@@ -0,0 +1,99 @@
+package one.xmpp.server.network;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import one.xmpp.AbstractSpringTest;
+
+public class SlowConsumerServerTest extends AbstractSpringTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        AbstractSpringTest.beforeClass(true, false, SlowConsumerServer.class);
+        Thread.sleep(1000);
+    }
+
+    private static byte[] read(InputStream inputStream, int length) throws Exception {
+        final byte[] buffer = new byte[length];
+        int read = 0;
+        while (read < buffer.length) {
+            final int result = inputStream.read(buffer, read, buffer.length - read);
+            Assert.assertTrue("Connection closed after " + read + " bytes", result > 0);
+            read += result;
+        }
+        return buffer;
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        final SlowConsumerServer server = context.getBean(SlowConsumerServer.class);
+        final String lastPresence = SlowConsumerServer.presence(SlowConsumerServer.PRESENCES - 1);
+        final long coalesces = server.getSlowConsumerCoalesces();
+        final long slowConsumers = server.getSlowConsumers();
+        final long drops = server.getSlowConsumerDrops();
+
+        final Socket socket = new Socket("localhost", 5222);
+        try {
+            final OutputStream outputStream = socket.getOutputStream();
+            final InputStream inputStream = socket.getInputStream();
+            outputStream.write(new byte[] { 50 });
+
+            // filler and only the latest presence
+            final byte[] buffer = read(inputStream, SlowConsumerServer.FILLER_SIZE + lastPresence.length());
+
+            Assert.assertEquals(lastPresence, new String(buffer, SlowConsumerServer.FILLER_SIZE,
+                    lastPresence.length()));
+            Assert.assertEquals((long) SlowConsumerServer.PRESENCES - 1, server.getSlowConsumerCoalesces()
+                    - coalesces);
+            Assert.assertEquals(1L, server.getSlowConsumers() - slowConsumers);
+            Assert.assertEquals(0L, server.getSlowConsumerDrops() - drops);
+
+            for (int i = 0; i < 100 && server.getTotalQueuedWriteBytes() != 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0L, server.getTotalQueuedWriteBytes());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testCoalesceKeepsOrder() throws Exception {
+        final SlowConsumerServer server = context.getBean(SlowConsumerServer.class);
+        final String lastPresence = SlowConsumerServer.presence(SlowConsumerServer.PRESENCES - 1);
+        final long coalesces = server.getSlowConsumerCoalesces();
+
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 1; i < SlowConsumerServer.PRESENCES; i++) {
+            expected.append(SlowConsumerServer.MESSAGE);
+        }
+        expected.append(lastPresence);
+
+        final Socket socket = new Socket("localhost", 5222);
+        try {
+            final OutputStream outputStream = socket.getOutputStream();
+            final InputStream inputStream = socket.getInputStream();
+            outputStream.write(new byte[] { SlowConsumerServer.INTERLEAVED });
+
+            // filler, all messages and only the latest presence, that doesn't overtake them
+            final byte[] buffer = read(inputStream, SlowConsumerServer.FILLER_SIZE + expected.length());
+
+            Assert.assertEquals(expected.toString(), new String(buffer, SlowConsumerServer.FILLER_SIZE,
+                    expected.length()));
+            Assert.assertEquals((long) SlowConsumerServer.PRESENCES - 1, server.getSlowConsumerCoalesces()
+                    - coalesces);
+
+            for (int i = 0; i < 100 && server.getTotalQueuedWriteBytes() != 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0L, server.getTotalQueuedWriteBytes());
+        } finally {
+            socket.close();
+        }
+    }
+}
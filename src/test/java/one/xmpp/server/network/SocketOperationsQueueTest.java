@@ -0,0 +1,129 @@
+package one.xmpp.server.network;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SocketOperationsQueueTest {
+
+    private static final class TestOperation implements SocketOperation {
+
+        final int producer;
+
+        final int sequence;
+
+        TestOperation(int producer, int sequence) {
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return true;
+        }
+
+        @Override
+        public boolean run(ISocket socket) {
+            return false;
+        }
+    }
+
+    private static TestOperation poll(SocketOperationsQueue queue) {
+        final SocketOperationsQueue.Node node = queue.first();
+        if (node == null) {
+            return null;
+        }
+        queue.removeFirst(node);
+        return (TestOperation) node.getOperation();
+    }
+
+    @Test
+    public void testClose() {
+        final SocketOperationsQueue queue = new SocketOperationsQueue();
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertTrue(queue.offer(new TestOperation(0, 0)));
+        Assert.assertTrue(queue.offer(new TestOperation(0, 1)));
+
+        queue.close();
+        Assert.assertFalse(queue.offer(new TestOperation(0, 2)));
+        Assert.assertFalse(queue.isEmpty());
+        Assert.assertEquals(2, queue.size());
+
+        // queued before close are still available
+        Assert.assertEquals(0, poll(queue).sequence);
+        Assert.assertEquals(1, poll(queue).sequence);
+        Assert.assertNull(poll(queue));
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 100000;
+
+        final SocketOperationsQueue queue = new SocketOperationsQueue();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException exc) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer(new TestOperation(producer, i));
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+
+        final int[] expected = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            final TestOperation operation = poll(queue);
+            if (operation == null) {
+                Thread.yield();
+                continue;
+            }
+            // order of each producer is kept
+            Assert.assertEquals(expected[operation.producer], operation.sequence);
+            expected[operation.producer]++;
+            received++;
+        }
+        Assert.assertNull(poll(queue));
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testDropMark() {
+        final SocketOperationsQueue queue = new SocketOperationsQueue();
+        Assert.assertNull(queue.takeDropMark());
+
+        // nothing to drop
+        queue.requestDrop();
+        Assert.assertTrue(queue.takeDropMark().removed);
+
+        queue.offer(new TestOperation(0, 0));
+        queue.offer(new TestOperation(0, 1));
+        queue.requestDrop();
+        queue.offer(new TestOperation(0, 2));
+
+        final SocketOperationsQueue.Node mark = queue.takeDropMark();
+        Assert.assertEquals(1, ((TestOperation) mark.getOperation()).sequence);
+        Assert.assertNull(queue.takeDropMark());
+
+        // dropped operations are skipped
+        queue.first().dropped = true;
+        mark.dropped = true;
+        Assert.assertEquals(2, poll(queue).sequence);
+        Assert.assertTrue(mark.removed);
+        Assert.assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+package one.xmpp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedMpscQueueTest {
+
+    @Test
+    public void testBounds() {
+        BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<Integer>(3);
+        Assert.assertEquals(4, queue.capacity());
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(queue.offer(Integer.valueOf(i)));
+        }
+        Assert.assertFalse(queue.offer(Integer.valueOf(4)));
+        Assert.assertEquals(4, queue.size());
+
+        Assert.assertEquals(Integer.valueOf(0), queue.poll());
+        Assert.assertTrue(queue.offer(Integer.valueOf(4)));
+
+        List<Integer> drained = new ArrayList<Integer>();
+        Assert.assertEquals(4, queue.drainTo(drained));
+        Assert.assertEquals("[1, 2, 3, 4]", drained.toString());
+        Assert.assertNull(queue.poll());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 100000;
+
+        final BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<Integer>(1 << 10);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException exc) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        final Integer value = Integer.valueOf(producer * perProducer + i);
+                        while (!queue.offer(value)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+
+        final int[] lastSeen = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            lastSeen[p] = -1;
+        }
+
+        List<Integer> batch = new ArrayList<Integer>();
+        int received = 0;
+        final long deadline = System.currentTimeMillis() + 30000;
+        while (received < producers * perProducer) {
+            Assert.assertTrue("Timeout", System.currentTimeMillis() < deadline);
+
+            batch.clear();
+            received += queue.drainTo(batch);
+            for (Integer value : batch) {
+                final int producer = value.intValue() / perProducer;
+                final int index = value.intValue() % perProducer;
+                // FIFO per producer
+                Assert.assertEquals(lastSeen[producer] + 1, index);
+                lastSeen[producer] = index;
+            }
+        }
+
+        Assert.assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,174 @@
+package one.xmpp.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares {@link ConcurrentLongHashMap} with <tt>ConcurrentHashMap&lt;Long, V&gt;</tt> used as
+ * socket registry before: map is filled with <tt>N</tt> entries, then several threads look up
+ * random existing keys (as socket tasks do) while one thread replaces entries (as accept and close
+ * do). Prints lookup throughput and retained heap for both maps.
+ *
+ * <p>
+ * Not a unit test. Run manually:
+ * <tt>java -Xmx2g -cp ... one.xmpp.utils.ConcurrentLongHashMapBenchmark [entries] [threads]</tt>
+ */
+public class ConcurrentLongHashMapBenchmark {
+
+    private static final int ITERATIONS = 3;
+
+    private static final long LOOKUPS_PER_THREAD = 10 * 1000 * 1000;
+
+    private static final Object VALUE = new Object();
+
+    private interface Factory {
+        Registry create(int entries);
+    }
+
+    private interface Registry {
+        Object get(long key);
+
+        void put(long key, Object value);
+
+        void remove(long key);
+    }
+
+    private static long keyOf(int i) {
+        // looks like native pointer: aligned and far from zero
+        return 0x7f0000000000L + ((long) i << 6);
+    }
+
+    private static long lookups(final Registry registry, final int entries, int threads) throws Exception {
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] found = new long[threads];
+
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    long random = 0x9E3779B97F4A7C15L * (thread + 1);
+                    long count = 0;
+                    for (long i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                        random ^= random << 13;
+                        random ^= random >>> 7;
+                        random ^= random << 17;
+                        if (registry.get(keyOf((int) ((random >>> 1) % entries))) != null) {
+                            count++;
+                        }
+                    }
+                    found[thread] = count;
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        // churn: close and accept sockets while lookups are in progress
+        int next = entries;
+        while (done.getCount() != 0) {
+            registry.remove(keyOf(next - entries));
+            registry.put(keyOf(next), VALUE);
+            registry.remove(keyOf(next));
+            registry.put(keyOf(next - entries), VALUE);
+            next++;
+            // sockets are accepted and closed much less often than looked up
+            Thread.yield();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        long total = 0;
+        for (long count : found) {
+            total += count;
+        }
+        if (total == 0) {
+            throw new AssertionError("Nothing found");
+        }
+        return threads * LOOKUPS_PER_THREAD * 1000 * 1000 * 1000 / elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Entries: " + entries + ", lookup threads: " + threads);
+
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            measure("ConcurrentHashMap:     ", new Factory() {
+                @Override
+                public Registry create(int size) {
+                    return wrap(new ConcurrentHashMap<Long, Object>(size, 0.75f, 256));
+                }
+            }, entries, threads);
+            measure("ConcurrentLongHashMap: ", new Factory() {
+                @Override
+                public Registry create(int size) {
+                    return wrap(new ConcurrentLongHashMap<Object>(size, 256));
+                }
+            }, entries, threads);
+        }
+    }
+
+    /**
+     * Registry is created here, so it is unreachable after method returns and doesn't affect
+     * retained heap measurement of the next one
+     */
+    private static void measure(String name, Factory factory, int entries, int threads) throws Exception {
+        final long before = usedMemory();
+        final Registry registry = factory.create(entries);
+        for (int i = 0; i < entries; i++) {
+            registry.put(keyOf(i), VALUE);
+        }
+        final long retained = usedMemory() - before;
+
+        System.out.println(name + lookups(registry, entries, threads) + " lookups/s, " + (retained >> 20)
+                + " MB retained");
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static Registry wrap(final ConcurrentLongHashMap<Object> map) {
+        return new Registry() {
+            @Override
+            public Object get(long key) {
+                return map.get(key);
+            }
+
+            @Override
+            public void put(long key, Object value) {
+                map.put(key, value);
+            }
+
+            @Override
+            public void remove(long key) {
+                map.remove(key);
+            }
+        };
+    }
+
+    private static Registry wrap(final Map<Long, Object> map) {
+        return new Registry() {
+            @Override
+            public Object get(long key) {
+                return map.get(Long.valueOf(key));
+            }
+
+            @Override
+            public void put(long key, Object value) {
+                map.put(Long.valueOf(key), value);
+            }
+
+            @Override
+            public void remove(long key) {
+                map.remove(Long.valueOf(key));
+            }
+        };
+    }
+}
@@ -0,0 +1,136 @@
+package one.xmpp.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentLongHashMapTest {
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>(16, 4);
+        // never removed, shall always be visible to readers
+        for (long key = 0; key < 100; key++) {
+            map.put(key, "stable-" + key);
+        }
+
+        final int readers = 4;
+        final AtomicInteger errors = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(readers);
+        final long deadline = System.currentTimeMillis() + 500;
+
+        for (int r = 0; r < readers; r++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            for (long key = 0; key < 100; key++) {
+                                if (!("stable-" + key).equals(map.get(key))) {
+                                    errors.incrementAndGet();
+                                }
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        // churn causes rehashes of all segments
+        long key = 1000;
+        while (done.getCount() != 0) {
+            map.put(key, "churn");
+            map.remove(key - 50);
+            key++;
+        }
+
+        Assert.assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void testForEach() {
+        final ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<Long>(16, 4);
+        for (long key = 0; key < 1000; key++) {
+            map.put(key, Long.valueOf(key));
+        }
+        for (long key = 0; key < 1000; key += 3) {
+            map.remove(key);
+        }
+
+        final List<Long> visited = new ArrayList<Long>();
+        map.forEach(new ConcurrentLongHashMap.Visitor<Long>() {
+            @Override
+            public void visit(Long value) {
+                visited.add(value);
+            }
+        });
+
+        Assert.assertEquals(map.size(), visited.size());
+        for (Long value : visited) {
+            Assert.assertTrue(value.longValue() % 3 != 0);
+            Assert.assertEquals(value, map.get(value.longValue()));
+        }
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        final ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>(4, 2);
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.get(1));
+
+        Assert.assertNull(map.put(1, "a"));
+        Assert.assertNull(map.put(-1, "b"));
+        Assert.assertNull(map.put(Long.MAX_VALUE, "c"));
+        Assert.assertEquals("a", map.put(1, "d"));
+
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("d", map.get(1));
+        Assert.assertEquals("b", map.get(-1));
+        Assert.assertEquals("c", map.get(Long.MAX_VALUE));
+
+        Assert.assertEquals("b", map.remove(-1));
+        Assert.assertNull(map.remove(-1));
+        Assert.assertNull(map.get(-1));
+        Assert.assertEquals(2, map.size());
+
+        final List<String> values = map.values();
+        Collections.sort(values);
+        Assert.assertEquals("[c, d]", values.toString());
+    }
+
+    @Test
+    public void testRehash() {
+        final ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<Long>(4, 4);
+        final List<Long> keys = new ArrayList<Long>();
+        for (long i = 0; i < 10000; i++) {
+            keys.add(Long.valueOf(i * 8));
+        }
+
+        for (Long key : keys) {
+            map.put(key.longValue(), key);
+        }
+        Assert.assertEquals(keys.size(), map.size());
+
+        // remove every other key, so segments are filled with deleted slots
+        for (int i = 0; i < keys.size(); i += 2) {
+            Assert.assertEquals(keys.get(i), map.remove(keys.get(i).longValue()));
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertEquals(i % 2 == 0 ? null : keys.get(i), map.get(keys.get(i).longValue()));
+        }
+
+        // reinsert, slots of deleted entries are cleaned up by rehash
+        for (int i = 0; i < keys.size(); i += 2) {
+            map.put(keys.get(i).longValue(), keys.get(i));
+        }
+        Assert.assertEquals(keys.size(), map.size());
+        Assert.assertEquals(keys.size(), map.values().size());
+    }
+}
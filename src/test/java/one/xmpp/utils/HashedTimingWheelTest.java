@@ -0,0 +1,92 @@
+package one.xmpp.utils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import one.xmpp.utils.HashedTimingWheel.Timeout;
+
+public class HashedTimingWheelTest {
+
+    private static HashedTimingWheel<String> newWheel(final List<String> expired) {
+        return new HashedTimingWheel<String>("test-wheel", 10, 8, new HashedTimingWheel.ExpirationListener<String>() {
+            @Override
+            public void onExpired(List<Timeout<String>> timeouts) {
+                for (Timeout<String> timeout : timeouts) {
+                    expired.add(timeout.getItem());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final List<String> expired = new CopyOnWriteArrayList<String>();
+        final HashedTimingWheel<String> wheel = newWheel(expired);
+        wheel.start();
+        try {
+            final long now = System.currentTimeMillis();
+            final Timeout<String> first = wheel.schedule("first", now + 50);
+            wheel.schedule("second", now + 50);
+            Assert.assertEquals(2, wheel.size());
+
+            Assert.assertTrue(wheel.cancel(first));
+            Assert.assertFalse(wheel.cancel(first));
+            Assert.assertEquals(1, wheel.size());
+
+            Thread.sleep(200);
+            Assert.assertEquals(1, expired.size());
+            Assert.assertEquals("second", expired.get(0));
+            Assert.assertEquals(0, wheel.size());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void testExpireInOrder() throws Exception {
+        final List<String> expired = new CopyOnWriteArrayList<String>();
+        final HashedTimingWheel<String> wheel = newWheel(expired);
+        wheel.start();
+        try {
+            final long now = System.currentTimeMillis();
+            // more than one round of the wheel (8 * 10 ms)
+            wheel.schedule("late", now + 250);
+            wheel.schedule("early", now + 30);
+
+            Thread.sleep(120);
+            Assert.assertEquals(1, expired.size());
+            Assert.assertEquals("early", expired.get(0));
+
+            Thread.sleep(250);
+            Assert.assertEquals(2, expired.size());
+            Assert.assertEquals("late", expired.get(1));
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void testReschedule() throws Exception {
+        final List<String> expired = new CopyOnWriteArrayList<String>();
+        final HashedTimingWheel<String> wheel = newWheel(expired);
+        wheel.start();
+        try {
+            final long now = System.currentTimeMillis();
+            final Timeout<String> timeout = wheel.schedule("item", now + 30);
+            wheel.reschedule(timeout, now + 300);
+
+            wheel.rescheduleIfEarlier(timeout, now + 400);
+            Thread.sleep(150);
+            Assert.assertTrue(expired.isEmpty());
+
+            wheel.rescheduleIfEarlier(timeout, now + 200);
+            Thread.sleep(150);
+            Assert.assertEquals(1, expired.size());
+        } finally {
+            wheel.stop();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package one.xmpp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testBurstAndRefill() {
+        final long start = 1000 * MILLISECOND;
+        // 100 tokens per second, i.e. one per 10 ms
+        final TokenBucket bucket = new TokenBucket(100, 10, start);
+
+        Assert.assertEquals(4, bucket.tryAcquire(4, start));
+        Assert.assertEquals(6, bucket.tryAcquire(100, start));
+        Assert.assertEquals(0, bucket.tryAcquire(1, start));
+
+        Assert.assertEquals(0, bucket.tryAcquire(1, start + 5 * MILLISECOND));
+        Assert.assertEquals(1, bucket.tryAcquire(10, start + 10 * MILLISECOND));
+        Assert.assertEquals(3, bucket.tryAcquire(10, start + 40 * MILLISECOND));
+
+        // never more than capacity
+        Assert.assertEquals(10, bucket.tryAcquire(100, start + 10000 * MILLISECOND));
+    }
+
+    @Test
+    public void testRelease() {
+        final long start = 1000 * MILLISECOND;
+        final TokenBucket bucket = new TokenBucket(0, 8, start);
+
+        Assert.assertEquals(8, bucket.tryAcquire(8, start));
+        bucket.release(3);
+        Assert.assertEquals(3, bucket.tryAcquire(8, start + 1000 * MILLISECOND));
+
+        bucket.release(100);
+        Assert.assertEquals(8, bucket.tryAcquire(100, start + 1000 * MILLISECOND));
+    }
+
+    @Test(timeout = 5000)
+    public void testAcquireWaits() throws Exception {
+        final TokenBucket bucket = new TokenBucket(20, 1);
+        Assert.assertEquals(1, bucket.acquire(5));
+
+        final long start = System.nanoTime();
+        Assert.assertEquals(1, bucket.acquire(5));
+        // next token in 50 ms
+        Assert.assertTrue(System.nanoTime() - start >= 40 * MILLISECOND);
+    }
+}